@@ -0,0 +1,41 @@
+package dev.abarmin.icloud.importer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from a fresh JVM to a finished {@code help} command, the way a cron job starts the
+ * importer. Every fork measures a single cold start, so class loading and bean creation are
+ * included and nothing is warmed up by an earlier invocation.
+ * <p>
+ * The archive of {@code ./gradlew cdsTrain} isn't used here, compare it with
+ * {@code time java -XX:SharedArchiveFile=build/cds/application.jsa -jar build/cds/application/<jar> --batch help}.
+ */
+@Fork(10)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StartupBenchmark {
+
+    @Benchmark
+    public void interactiveProfile() {
+        try (ConfigurableApplicationContext context = SpringApplication.run(ImporterApplication.class, "help")) {
+            // the command has run once the context is started
+        }
+    }
+
+    @Benchmark
+    public int batchProfile() {
+        return ImporterApplication.runBatch(new String[]{"help"});
+    }
+}
@@ -0,0 +1,180 @@
+package dev.abarmin.icloud.importer.metadata;
+
+import com.google.common.io.CountingInputStream;
+import org.apache.commons.imaging.Imaging;
+import org.apache.commons.imaging.common.ImageMetadata;
+import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
+import org.apache.commons.imaging.formats.tiff.TiffField;
+import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares {@link ExifDateReader} with the commons-imaging path on generated JPEGs. Bytes read
+ * per file is the {@code bytesRead} counter divided by the score, both are reported per second.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ExifDateReaderBenchmark {
+
+    @Param({"256"})
+    int corpusSize;
+
+    @Param({"1024"})
+    int imageWidth;
+
+    Path corpus;
+    List<Path> files;
+    int next;
+
+    final ExifDateReader reader = new ExifDateReader();
+
+    @Setup(Level.Trial)
+    public void createCorpus() throws IOException {
+        corpus = Files.createTempDirectory("exif-benchmark");
+        files = new ArrayList<>();
+        for (int i = 0; i < corpusSize; i++) {
+            final String date = "20%02d:%02d:%02d 10:20:30".formatted(i % 25, i % 12 + 1, i % 28 + 1);
+            final ByteOrder order = i % 2 == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            // 24 KB of filler in front of the image data, like an embedded thumbnail
+            final byte[] content = JpegFixtures.jpeg(imageWidth, imageWidth * 3 / 4, date, order, 24 * 1024);
+            files.add(Files.write(corpus.resolve("IMG_%04d.JPG".formatted(i)), content));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCorpus() throws IOException {
+        try (Stream<Path> paths = Files.walk(corpus)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public Optional<String> exifDateReader(BytesRead bytesRead) throws IOException {
+        try (CountingChannel channel = new CountingChannel(FileChannel.open(nextFile(), StandardOpenOption.READ))) {
+            final Optional<String> result = reader.readDateTimeOriginal(channel);
+            bytesRead.bytesRead += channel.count;
+            return result;
+        }
+    }
+
+    @Benchmark
+    public Optional<String> imagingMetadata(BytesRead bytesRead) throws IOException {
+        final Path file = nextFile();
+        try (CountingInputStream inputStream = new CountingInputStream(Files.newInputStream(file))) {
+            final ImageMetadata metadata = Imaging.getMetadata(inputStream, file.getFileName().toString());
+            bytesRead.bytesRead += inputStream.getCount();
+            if (metadata instanceof JpegImageMetadata jpegMetadata && jpegMetadata.getExif() != null) {
+                final TiffField field = jpegMetadata.getExif().findField(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL);
+                return field == null ? Optional.empty() : Optional.of(field.getStringValue());
+            }
+            return Optional.empty();
+        }
+    }
+
+    private Path nextFile() {
+        final Path file = files.get(next);
+        next = (next + 1) % files.size();
+        return file;
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class BytesRead {
+        public long bytesRead;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesRead = 0;
+        }
+    }
+
+    static class CountingChannel implements SeekableByteChannel {
+        private final SeekableByteChannel delegate;
+        long count;
+
+        CountingChannel(SeekableByteChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            final int read = delegate.read(dst);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return delegate.write(src);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
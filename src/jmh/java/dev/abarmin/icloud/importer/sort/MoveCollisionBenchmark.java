@@ -0,0 +1,86 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Moves a file into a directory which already has {@code collisions} files of the same name,
+ * {@code IMG_0001.JPG}, {@code IMG_0001_1.JPG} and so on, as after sorting many exports with
+ * restarted camera counters. The file is moved back after each move, which is one more rename.
+ * <p>
+ * {@code moveAvoidingDuplicates} lists the directory on every call, {@code moveWithNameRegistry}
+ * shares one {@link NameRegistry} between calls like the workers of a sorting run do.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class MoveCollisionBenchmark {
+
+    @Param({"10", "1000"})
+    int collisions;
+
+    final CsvImageSorter sorter = new CsvImageSorter();
+
+    Path directory;
+    Path source;
+    Path file;
+    Path target;
+    NameRegistry names;
+
+    @Setup(Level.Trial)
+    public void createDirectories() throws IOException {
+        directory = Files.createTempDirectory("move-collision-benchmark");
+        source = Files.createDirectories(directory.resolve("source"));
+        target = Files.createDirectories(directory.resolve("target"));
+        Files.createFile(target.resolve("IMG_0001.JPG"));
+        for (int i = 1; i < collisions; i++) {
+            Files.createFile(target.resolve("IMG_0001_%d.JPG".formatted(i)));
+        }
+        file = Files.writeString(source.resolve("IMG_0001.JPG"), "content");
+        names = new NameRegistry();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDirectories() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public Path moveAvoidingDuplicates() throws IOException {
+        final Path moved = sorter.moveAvoidingDuplicates(file, target);
+        Files.move(moved, file);
+        return moved;
+    }
+
+    @Benchmark
+    public Path moveWithNameRegistry() throws IOException {
+        final Path moved = sorter.moveAvoidingDuplicates(file, target, names, null);
+        Files.move(moved, file);
+        return moved;
+    }
+}
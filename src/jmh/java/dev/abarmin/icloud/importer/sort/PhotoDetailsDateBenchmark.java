@@ -0,0 +1,65 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of photo details dates: the locale-aware formatter the sorter used before against
+ * {@link PhotoDetailsReader#parseDateFast(String)}. Run with {@code -prof gc} to compare
+ * allocations per row.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class PhotoDetailsDateBenchmark {
+
+    final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("EEEE MMMM d,yyyy h:mm a z", Locale.ENGLISH);
+
+    String[] dates;
+    int next;
+
+    @Setup(Level.Trial)
+    public void createDates() {
+        dates = new String[1024];
+        ZonedDateTime date = ZonedDateTime.of(2015, 1, 1, 9, 15, 0, 0, ZoneId.of("GMT"));
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = date.format(formatter);
+            date = date.plusDays(3).plusMinutes(17);
+        }
+    }
+
+    @Benchmark
+    public LocalDate formatter() {
+        return ZonedDateTime.parse(nextDate(), formatter).toLocalDate();
+    }
+
+    @Benchmark
+    public LocalDate fastParser() {
+        return PhotoDetailsReader.parseDateFast(nextDate());
+    }
+
+    private String nextDate() {
+        final String date = dates[next];
+        next = (next + 1) & (dates.length - 1);
+        return date;
+    }
+}
@@ -0,0 +1,46 @@
+package dev.abarmin.icloud.importer.sort;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Generates "Photo Details" CSV files in the format of iCloud exports.
+ */
+final class PhotoDetailsFixtures {
+
+    static final String HEADER = "imgName,fileChecksum,favorite,hidden,deleted,originalCreationDate,viewCount,importDate";
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("EEEE MMMM d,yyyy h:mm a z", Locale.ENGLISH);
+
+    private PhotoDetailsFixtures() {
+    }
+
+    /**
+     * Writes rows for {@code IMG_<first>.JPG} to {@code IMG_<first + rows - 1>.JPG}.
+     */
+    static Path write(Path file, int first, int rows) throws IOException {
+        ZonedDateTime date = ZonedDateTime.of(2015, 1, 1, 9, 15, 0, 0, ZoneId.of("GMT")).plusHours(first * 7L);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (int i = first; i < first + rows; i++) {
+                final String formatted = date.format(DATE_FORMATTER);
+                writer.write("%s,%08x,no,no,no,\"%s\",%d,\"%s\"".formatted(filename(i), i * 31, formatted, i % 5, formatted));
+                writer.newLine();
+                date = date.plusHours(7);
+            }
+        }
+        return file;
+    }
+
+    static String filename(int i) {
+        return "IMG_%07d.JPG".formatted(i);
+    }
+}
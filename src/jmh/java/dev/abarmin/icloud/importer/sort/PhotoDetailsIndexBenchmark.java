@@ -0,0 +1,121 @@
+package dev.abarmin.icloud.importer.sort;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap retained by the lookup structures of the sorter: maps of objects against the compact
+ * {@link PhotoDetailsIndex} and {@link EntryList}. Retained heap is the {@code retainedBytes}
+ * counter, the score is the time to fill the structure.
+ */
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class PhotoDetailsIndexBenchmark {
+
+    private static final Path SOURCE = Path.of("/photos/export");
+    private static final LocalDate START = LocalDate.of(2010, 1, 1);
+
+    @Param({"1000000"})
+    int entries;
+
+    @Benchmark
+    public Object detailsHashMap(Footprint footprint) {
+        final long before = usedHeap();
+        final Map<String, PhotoDetails> details = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            final PhotoDetails row = new PhotoDetails()
+                    .setFilename(filename(i))
+                    .setCreationDate(START.plusDays(i % 5000));
+            details.put(row.getFilename(), row);
+        }
+        footprint.retainedBytes = usedHeap() - before;
+        return details;
+    }
+
+    @Benchmark
+    public Object detailsIndex(Footprint footprint) {
+        final long before = usedHeap();
+        final PhotoDetailsIndex details = new PhotoDetailsIndex();
+        for (int i = 0; i < entries; i++) {
+            details.put(filename(i), START.plusDays(i % 5000));
+        }
+        footprint.retainedBytes = usedHeap() - before;
+        return details;
+    }
+
+    @Benchmark
+    public Object entryArrayList(Footprint footprint) {
+        final long before = usedHeap();
+        final List<SourceScanner.Entry> files = new ArrayList<>();
+        for (int i = 0; i < entries; i++) {
+            files.add(entry(i));
+        }
+        footprint.retainedBytes = usedHeap() - before;
+        return files;
+    }
+
+    @Benchmark
+    public Object entryList(Footprint footprint) {
+        final long before = usedHeap();
+        final EntryList files = new EntryList(List.of(SOURCE));
+        for (int i = 0; i < entries; i++) {
+            files.add(entry(i));
+        }
+        footprint.retainedBytes = usedHeap() - before;
+        return files;
+    }
+
+    private String filename(int i) {
+        return "IMG_%07d.JPG".formatted(i);
+    }
+
+    private SourceScanner.Entry entry(int i) {
+        return new SourceScanner.Entry(SourceScanner.Kind.IMAGE,
+                SOURCE.resolve("Photos %03d".formatted(i / 10_000)).resolve(filename(i)));
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // row object the sorter kept per filename before the index
+    @Data
+    @Accessors(chain = true)
+    static class PhotoDetails {
+        private String filename;
+        private LocalDate creationDate;
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public long retainedBytes;
+    }
+}
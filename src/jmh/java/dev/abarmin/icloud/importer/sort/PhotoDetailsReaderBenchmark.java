@@ -0,0 +1,60 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a generated photo details file into a fresh {@link PhotoDetailsIndex}, from CSV rows to
+ * dates, the way the sorter does for every shard of an export.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class PhotoDetailsReaderBenchmark {
+
+    @Param({"10000", "100000"})
+    int rows;
+
+    final PhotoDetailsReader reader = new PhotoDetailsReader();
+
+    Path directory;
+    Path file;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        directory = Files.createTempDirectory("photo-details-benchmark");
+        file = PhotoDetailsFixtures.write(directory.resolve("Photo Details.csv"), 0, rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        Files.delete(file);
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public Object read() throws IOException {
+        final PhotoDetailsIndex index = new PhotoDetailsIndex();
+        reader.read(file, index);
+        return index;
+    }
+}
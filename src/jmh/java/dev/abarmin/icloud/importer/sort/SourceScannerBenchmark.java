@@ -0,0 +1,78 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Scans a generated export tree shaped like an extracted iCloud download: folders of a few
+ * thousand photos and videos, each with its photo details file. Files are empty, the scan
+ * only lists and stats them. The second run onwards hits the page cache, as on a re-run.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class SourceScannerBenchmark {
+
+    private static final int FILES_PER_FOLDER = 2000;
+
+    @Param({"20000"})
+    int files;
+
+    final SourceScanner scanner = new SourceScanner();
+
+    Path source;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        source = Files.createTempDirectory("source-scanner-benchmark");
+        for (int i = 0; i < files; i++) {
+            final Path folder = source.resolve("iCloud Photos Part %d of %d".formatted(i / FILES_PER_FOLDER + 1,
+                    (files + FILES_PER_FOLDER - 1) / FILES_PER_FOLDER)).resolve("Photos");
+            if (i % FILES_PER_FOLDER == 0) {
+                Files.createDirectories(folder);
+                PhotoDetailsFixtures.write(folder.resolve("Photo Details.csv"), i, 1);
+            }
+            // every tenth file is a video
+            Files.createFile(folder.resolve(i % 10 == 0 ? "IMG_%07d.MOV".formatted(i) : PhotoDetailsFixtures.filename(i)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public int scan() {
+        final AtomicInteger entries = new AtomicInteger();
+        scanner.scan(List.of(source), entry -> entries.incrementAndGet()).join();
+        return entries.get();
+    }
+}
@@ -0,0 +1,64 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks local files up in the listing of a large remote folder, once per file of the folder
+ * as the uploader does. A quarter of the names are missing remotely, ex. new photos of the
+ * month.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class RemoteListingBenchmark {
+
+    @Param({"1000", "10000"})
+    int listingSize;
+
+    Set<WebDavImageUploader.RemoteResource> listing;
+    String[] names;
+    int next;
+
+    @Setup(Level.Trial)
+    public void createListing() {
+        listing = new HashSet<>();
+        for (int i = 0; i < listingSize; i++) {
+            if (i % 4 != 0) {
+                listing.add(new WebDavImageUploader.RemoteResource(name(i), 1000 + i));
+            }
+        }
+        names = new String[Integer.highestOneBit(listingSize)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = name((int) ((i * 2654435761L) % listingSize));
+        }
+    }
+
+    @Benchmark
+    public Object getByName() {
+        final String name = names[next];
+        next = (next + 1) & (names.length - 1);
+        return WebDavImageUploader.getByName(listing, name);
+    }
+
+    private static String name(int i) {
+        return "IMG_%05d.JPG".formatted(i);
+    }
+}
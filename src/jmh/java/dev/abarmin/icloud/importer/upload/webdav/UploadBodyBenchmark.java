@@ -0,0 +1,89 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.github.sardine.Sardine;
+import com.github.sardine.SardineFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads a file to {@link LocalWebDavServer} through Sardine's stream entity, as the uploader
+ * did before, and through {@link FileRegionEntity} with and without hashing the content. The server discards what it receives, run
+ * with {@code -prof gc} to compare allocations per upload.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class UploadBodyBenchmark {
+
+    @Param({"1048576", "67108864"})
+    int fileSize;
+
+    LocalWebDavServer server;
+    Sardine sardine;
+    Path directory;
+    Path file;
+    String url;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        server = new LocalWebDavServer();
+        server.discardContent();
+        server.createFolder("/photos");
+        sardine = SardineFactory.begin();
+
+        directory = Files.createTempDirectory("upload-body-benchmark");
+        final byte[] content = new byte[fileSize];
+        new Random(fileSize).nextBytes(content);
+        file = Files.write(directory.resolve("MOV_0001.MOV"), content);
+        url = server.url("/photos/MOV_0001.MOV");
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        sardine.shutdown();
+        server.close();
+        Files.delete(file);
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public void inputStream() throws IOException {
+        try (InputStream content = Files.newInputStream(file)) {
+            sardine.put(url, content);
+        }
+    }
+
+    @Benchmark
+    public void fileRegion() throws IOException {
+        new FileRegionEntity(file, 0, fileSize, BandwidthLimit.UNLIMITED).put(sardine, url, Map.of());
+    }
+
+    @Benchmark
+    public String fileRegionWithChecksum() throws IOException {
+        final FileRegionEntity entity = new FileRegionEntity(file, 0, fileSize, BandwidthLimit.UNLIMITED, Checksums.newDigest());
+        entity.put(sardine, url, Map.of());
+        return Checksums.format(entity.getDigest());
+    }
+}
@@ -0,0 +1,52 @@
+package dev.abarmin.icloud.importer;
+
+import org.springframework.boot.ExitCodeGenerator;
+import org.springframework.shell.command.CommandExceptionResolver;
+import org.springframework.shell.command.CommandHandlingResult;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outcome of the commands run by the application, used as the exit code of {@code --batch}
+ * runs. The first problem reported wins, a command failing after invalid arguments of an
+ * earlier one still exits with {@link #INVALID_ARGUMENTS}.
+ */
+@Component
+public class CommandStatus implements ExitCodeGenerator, CommandExceptionResolver {
+
+    public static final int OK = 0;
+    // the command threw, ex. the source couldn't be read
+    public static final int FAILED = 1;
+    public static final int INVALID_ARGUMENTS = 2;
+    // the command finished but left some files for a next run, ex. in the dead letters
+    public static final int PARTIAL = 3;
+
+    private final AtomicInteger exitCode = new AtomicInteger(OK);
+
+    public void invalidArguments() {
+        report(INVALID_ARGUMENTS);
+    }
+
+    public void partial() {
+        report(PARTIAL);
+    }
+
+    @Override
+    public int getExitCode() {
+        return exitCode.get();
+    }
+
+    /**
+     * Only remembers the failure, the exception is still printed by the shell.
+     */
+    @Override
+    public CommandHandlingResult resolve(Exception ex) {
+        report(FAILED);
+        return null;
+    }
+
+    private void report(int code) {
+        exitCode.compareAndSet(OK, code);
+    }
+}
@@ -3,11 +3,41 @@ package dev.abarmin.icloud.importer;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
+import java.util.Arrays;
+
 @SpringBootApplication
 public class ImporterApplication {
 
+	static final String BATCH = "--batch";
+	static final String BATCH_PROFILE = "batch";
+
+	/**
+	 * Starts the interactive shell, or with {@code --batch} as the first argument runs the rest
+	 * of the arguments as a single command and exits with its {@link CommandStatus}, ex.
+	 * {@code --batch image-sort --src /photos --dest /photos_sorted}.
+	 */
 	public static void main(String[] args) {
+		if (args.length > 0 && BATCH.equals(args[0])) {
+			System.exit(runBatch(Arrays.copyOfRange(args, 1, args.length)));
+		}
 		SpringApplication.run(ImporterApplication.class, args);
 	}
 
+	/**
+	 * Runs a single command with the {@code batch} profile, which initializes beans lazily and
+	 * turns the interactive shell off.
+	 *
+	 * @return exit code of the command
+	 */
+	static int runBatch(String[] command) {
+		final SpringApplication application = new SpringApplication(ImporterApplication.class);
+		application.setAdditionalProfiles(BATCH_PROFILE);
+		try {
+			return SpringApplication.exit(application.run(command));
+		} catch (RuntimeException e) {
+			// the context failed to start or the command failed outside of the shell, both are logged
+			return CommandStatus.FAILED;
+		}
+	}
+
 }
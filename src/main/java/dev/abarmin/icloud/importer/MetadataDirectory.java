@@ -0,0 +1,21 @@
+package dev.abarmin.icloud.importer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Hidden directory with importer state (indexes, journals, manifests). It is kept inside the
+ * directory the state describes, so it moves together with the photos.
+ */
+public final class MetadataDirectory {
+
+    public static final String NAME = ".icloud-importer";
+
+    private MetadataDirectory() {
+    }
+
+    public static Path resolve(Path root) throws IOException {
+        return Files.createDirectories(root.resolve(NAME));
+    }
+}
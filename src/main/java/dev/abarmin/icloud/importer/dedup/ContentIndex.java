@@ -0,0 +1,554 @@
+package dev.abarmin.icloud.importer.dedup;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Persistent index of content hashes of files placed into a directory, used to detect
+ * byte-identical files with different names.
+ * <p>
+ * Files are compared in three steps: size, hash of the head and tail of the file, and hash of
+ * the whole file. Hashes are computed lazily, only when another file with the same size
+ * appears, so most files are never read at all.
+ * <p>
+ * A record keeps the size and modification time the file had when it was placed, its cached
+ * hashes are only trusted while the file still has both.
+ * <p>
+ * Records live in a memory-mapped append-only file. The heap only holds a record offset and a
+ * chain link per entry plus an open-addressing table from file size to the first record.
+ */
+@Slf4j
+public class ContentIndex implements Closeable {
+
+    public static final String FILE_NAME = "content-index.bin";
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    static final int PARTIAL_CHUNK = 64 * 1024;
+
+    private static final int MAGIC = 0x49434849;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+
+    // record layout
+    private static final int SIZE = 0;
+    private static final int PARTIAL_HASH = 8;
+    private static final int FULL_HASH = 16;
+    private static final int MODIFIED = 32;
+    private static final int FLAGS = 40;
+    private static final int PATH_LENGTH = 42;
+    private static final int PATH = 44;
+
+    // record layout of version 1, without the modification time
+    private static final int V1_FLAGS = 32;
+    private static final int V1_PATH_LENGTH = 34;
+    private static final int V1_PATH = 36;
+
+    private static final byte FLAG_PARTIAL = 1;
+    private static final byte FLAG_FULL = 2;
+    private static final byte FLAG_MISSING = 4;
+    // marks the unused tail of a segment, the next record starts in the next segment
+    private static final long SEGMENT_END = -1;
+
+    private final Path root;
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final Striped<Lock> sizeLocks = Striped.lock(256);
+
+    private long end;
+    private int count;
+    private long[] offsets = new long[1024];
+    private int[] next = new int[1024];
+    // open addressing table, file size -> id of the last record with this size + 1
+    private long[] tableSizes = new long[2048];
+    private int[] tableHeads = new int[2048];
+    private int tableCount;
+
+    ContentIndex(Path root, Path file, int segmentSize) throws IOException {
+        this.root = root;
+        this.segmentSize = segmentSize;
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            final ByteBuffer header = segment(0);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            end = HEADER_SIZE;
+            header.putLong(8, end);
+        } else {
+            load();
+        }
+    }
+
+    /**
+     * Opens the index which describes files inside {@code root}.
+     */
+    public static ContentIndex open(Path root, Path file) throws IOException {
+        return new ContentIndex(root, file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Runs the placement unless a file with the same content is already indexed. Files of the
+     * same size are handled one at a time, so two identical files can't both be placed.
+     *
+     * @param placement moves the file to its final location and returns that location
+     * @return already indexed copy of the file, or empty if the file has been placed and indexed
+     */
+    public Optional<Path> placeIfUnique(Path file, Placement placement) throws IOException {
+        final long size = Files.size(file);
+        final Lock lock = sizeLocks.get(size);
+        lock.lock();
+        try {
+            final Hashes hashes = new Hashes(file, size);
+            for (int id : candidates(size)) {
+                if (matches(id, hashes)) {
+                    return Optional.of(path(id));
+                }
+            }
+            final Path placed = placement.place();
+            add(size, hashes, placed, Files.getLastModifiedTime(placed).toMillis());
+            return Optional.empty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets a placed file, ex. moved back to its source by an undo, so a file with the same
+     * content can be placed again.
+     *
+     * @param size size of the file when it was placed
+     */
+    public void remove(Path placed, long size) {
+        final Path absolute = placed.toAbsolutePath().normalize();
+        for (int id : candidates(size)) {
+            if (path(id).toAbsolutePath().normalize().equals(absolute)) {
+                markMissing(offsetOf(id));
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        channel.close();
+    }
+
+    private boolean matches(int id, Hashes hashes) throws IOException {
+        final Optional<Long> partial = partialHash(id);
+        if (partial.isEmpty() || partial.get() != hashes.partial()) {
+            return false;
+        }
+        if (hashes.size <= 2L * PARTIAL_CHUNK) {
+            // partial hash already covers the whole file
+            return true;
+        }
+        final Optional<HashCode> full = fullHash(id);
+        return full.isPresent() && full.get().equals(hashes.full());
+    }
+
+    private Optional<Long> partialHash(int id) throws IOException {
+        final long offset;
+        Long cached = null;
+        synchronized (this) {
+            offset = offsets[id];
+            final byte flags = flags(offset);
+            if ((flags & FLAG_MISSING) != 0) {
+                return Optional.empty();
+            }
+            if ((flags & FLAG_PARTIAL) != 0) {
+                cached = buffer(offset).getLong(index(offset) + PARTIAL_HASH);
+            }
+        }
+        if (!isUnchanged(id, offset)) {
+            return Optional.empty();
+        }
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        final Path path = path(id);
+        final long hash;
+        try {
+            hash = partialHash(path, Files.size(path));
+        } catch (NoSuchFileException e) {
+            markMissing(offset);
+            return Optional.empty();
+        }
+        synchronized (this) {
+            buffer(offset).putLong(index(offset) + PARTIAL_HASH, hash);
+            setFlag(offset, FLAG_PARTIAL);
+        }
+        return Optional.of(hash);
+    }
+
+    private Optional<HashCode> fullHash(int id) throws IOException {
+        final long offset;
+        HashCode cached = null;
+        synchronized (this) {
+            offset = offsets[id];
+            final byte flags = flags(offset);
+            if ((flags & FLAG_MISSING) != 0) {
+                return Optional.empty();
+            }
+            if ((flags & FLAG_FULL) != 0) {
+                final byte[] hash = new byte[16];
+                buffer(offset).get(index(offset) + FULL_HASH, hash);
+                cached = HashCode.fromBytes(hash);
+            }
+        }
+        if (!isUnchanged(id, offset)) {
+            return Optional.empty();
+        }
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        final HashCode hash;
+        try {
+            hash = fullHash(path(id));
+        } catch (NoSuchFileException e) {
+            markMissing(offset);
+            return Optional.empty();
+        }
+        synchronized (this) {
+            buffer(offset).put(index(offset) + FULL_HASH, hash.asBytes());
+            setFlag(offset, FLAG_FULL);
+        }
+        return Optional.of(hash);
+    }
+
+    /**
+     * A record only describes the indexed file while it is there with the same size and
+     * modification time, it may have been deleted, moved back by an undo, replaced or edited in
+     * place since. Such records are marked missing, so they never match again.
+     */
+    private boolean isUnchanged(int id, long offset) throws IOException {
+        final Path path = path(id);
+        final long size;
+        final long modified;
+        synchronized (this) {
+            size = buffer(offset).getLong(index(offset) + SIZE);
+            modified = buffer(offset).getLong(index(offset) + MODIFIED);
+        }
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.size() == size && attributes.lastModifiedTime().toMillis() == modified) {
+                return true;
+            }
+        } catch (NoSuchFileException e) {
+            // gone, marked below
+        }
+        markMissing(offset);
+        return false;
+    }
+
+    private synchronized void markMissing(long offset) {
+        setFlag(offset, FLAG_MISSING);
+    }
+
+    private synchronized int[] candidates(long size) {
+        final int slot = findSlot(size);
+        final int head = tableSizes[slot] == size ? tableHeads[slot] - 1 : -1;
+        int length = 0;
+        for (int id = head; id >= 0; id = next[id]) {
+            length++;
+        }
+        final int[] result = new int[length];
+        int position = 0;
+        for (int id = head; id >= 0; id = next[id]) {
+            result[position++] = id;
+        }
+        return result;
+    }
+
+    private synchronized void add(long size, Hashes hashes, Path placed, long modified) throws IOException {
+        final String relative = placed.startsWith(root)
+                ? root.relativize(placed).toString()
+                : placed.toAbsolutePath().toString();
+        final byte[] path = relative.getBytes(StandardCharsets.UTF_8);
+        final int length = align(PATH + path.length);
+        if (length > segmentSize) {
+            throw new IOException("Path is too long for the content index: " + relative);
+        }
+        final long remaining = segmentSize - end % segmentSize;
+        if (remaining < length) {
+            buffer(end).putLong(index(end), SEGMENT_END);
+            end += remaining;
+        }
+
+        final long offset = end;
+        final ByteBuffer buffer = buffer(offset);
+        final int index = index(offset);
+        byte flags = 0;
+        buffer.putLong(index + SIZE, size);
+        buffer.putLong(index + MODIFIED, modified);
+        if (hashes.partial != null) {
+            buffer.putLong(index + PARTIAL_HASH, hashes.partial);
+            flags |= FLAG_PARTIAL;
+        }
+        if (hashes.full != null) {
+            buffer.put(index + FULL_HASH, hashes.full.asBytes());
+            flags |= FLAG_FULL;
+        }
+        buffer.putShort(index + PATH_LENGTH, (short) path.length);
+        buffer.put(index + PATH, path);
+        // flags go last, a record torn by a crash never claims hashes it doesn't have
+        buffer.put(index + FLAGS, flags);
+
+        end += length;
+        segment(0).putLong(8, end);
+        link(size, offset);
+    }
+
+    private void load() throws IOException {
+        final ByteBuffer header = segment(0);
+        if (header.getInt(0) == MAGIC && header.getInt(4) == 1) {
+            upgrade();
+            return;
+        }
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Unknown content index format");
+        }
+        end = header.getLong(8);
+        long offset = HEADER_SIZE;
+        while (offset < end) {
+            final ByteBuffer buffer = buffer(offset);
+            final long size = buffer.getLong(index(offset) + SIZE);
+            if (size == SEGMENT_END) {
+                offset += segmentSize - offset % segmentSize;
+                continue;
+            }
+            link(size, offset);
+            offset += align(PATH + buffer.getShort(index(offset) + PATH_LENGTH));
+        }
+        log.debug("Loaded {} entries from content index", count);
+    }
+
+    /**
+     * Rewrites an index of version 1 in place. Its records are read first, files which are
+     * still there with the same size are indexed again with their current modification time.
+     * Their hashes are not kept, they are computed again when needed.
+     */
+    private void upgrade() throws IOException {
+        final ByteBuffer header = segment(0);
+        final long oldEnd = header.getLong(8);
+        final List<Path> paths = new ArrayList<>();
+        final List<Long> sizes = new ArrayList<>();
+        long offset = HEADER_SIZE;
+        while (offset < oldEnd) {
+            final ByteBuffer buffer = buffer(offset);
+            final long size = buffer.getLong(index(offset) + SIZE);
+            if (size == SEGMENT_END) {
+                offset += segmentSize - offset % segmentSize;
+                continue;
+            }
+            final byte[] path = new byte[buffer.getShort(index(offset) + V1_PATH_LENGTH)];
+            buffer.get(index(offset) + V1_PATH, path);
+            if ((buffer.get(index(offset) + V1_FLAGS) & FLAG_MISSING) == 0) {
+                paths.add(root.resolve(new String(path, StandardCharsets.UTF_8)));
+                sizes.add(size);
+            }
+            offset += align(V1_PATH + path.length);
+        }
+
+        header.putInt(4, VERSION);
+        end = HEADER_SIZE;
+        header.putLong(8, end);
+        for (int i = 0; i < paths.size(); i++) {
+            final Path path = paths.get(i);
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.size() == sizes.get(i)) {
+                    add(sizes.get(i), new Hashes(path, sizes.get(i)), path, attributes.lastModifiedTime().toMillis());
+                }
+            } catch (NoSuchFileException e) {
+                // gone since it was placed
+            }
+        }
+        log.info("Upgraded content index to version {}, {} of {} entries kept", VERSION, count, paths.size());
+    }
+
+    private void link(long size, long offset) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            next = Arrays.copyOf(next, count * 2);
+        }
+        final int id = count++;
+        offsets[id] = offset;
+        int slot = findSlot(size);
+        if (tableHeads[slot] == 0) {
+            if ((tableCount + 1) * 2 > tableSizes.length) {
+                rehash();
+                slot = findSlot(size);
+            }
+            tableSizes[slot] = size;
+            tableCount++;
+        }
+        next[id] = tableHeads[slot] - 1;
+        tableHeads[slot] = id + 1;
+    }
+
+    private int findSlot(long size) {
+        final int mask = tableSizes.length - 1;
+        int slot = Long.hashCode(size * 0x9E3779B97F4A7C15L) & mask;
+        while (tableHeads[slot] != 0 && tableSizes[slot] != size) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        final long[] oldSizes = tableSizes;
+        final int[] oldHeads = tableHeads;
+        tableSizes = new long[oldSizes.length * 2];
+        tableHeads = new int[oldHeads.length * 2];
+        for (int i = 0; i < oldSizes.length; i++) {
+            if (oldHeads[i] != 0) {
+                final int slot = findSlot(oldSizes[i]);
+                tableSizes[slot] = oldSizes[i];
+                tableHeads[slot] = oldHeads[i];
+            }
+        }
+    }
+
+    private synchronized long offsetOf(int id) {
+        return offsets[id];
+    }
+
+    private synchronized Path path(int id) {
+        final long offset = offsets[id];
+        final ByteBuffer buffer = buffer(offset);
+        final byte[] path = new byte[buffer.getShort(index(offset) + PATH_LENGTH)];
+        buffer.get(index(offset) + PATH, path);
+        return root.resolve(new String(path, StandardCharsets.UTF_8));
+    }
+
+    private byte flags(long offset) {
+        return buffer(offset).get(index(offset) + FLAGS);
+    }
+
+    private void setFlag(long offset, byte flag) {
+        buffer(offset).put(index(offset) + FLAGS, (byte) (flags(offset) | flag));
+    }
+
+    private ByteBuffer buffer(long offset) {
+        try {
+            return segment((int) (offset / segmentSize));
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't map content index segment", e);
+        }
+    }
+
+    private int index(long offset) {
+        return (int) (offset % segmentSize);
+    }
+
+    private MappedByteBuffer segment(int number) throws IOException {
+        while (segments.size() <= number) {
+            final long position = (long) segments.size() * segmentSize;
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, segmentSize));
+        }
+        return segments.get(number);
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    static long partialHash(Path file, long size) throws IOException {
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putLong(size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (size <= 2L * PARTIAL_CHUNK) {
+                hash(channel, 0, size, hasher);
+            } else {
+                hash(channel, 0, PARTIAL_CHUNK, hasher);
+                hash(channel, size - PARTIAL_CHUNK, PARTIAL_CHUNK, hasher);
+            }
+        }
+        return hasher.hash().asLong();
+    }
+
+    static HashCode fullHash(Path file) throws IOException {
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            hash(channel, 0, channel.size(), hasher);
+        }
+        return hasher.hash();
+    }
+
+    private static void hash(FileChannel channel, long position, long length, Hasher hasher) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, 1024 * 1024));
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+            final int read = channel.read(buffer, position + length - remaining);
+            if (read < 0) {
+                break;
+            }
+            hasher.putBytes(buffer.flip());
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Hashes of the file being placed, computed on first use.
+     */
+    private static class Hashes {
+        private final Path file;
+        private final long size;
+        private Long partial;
+        private HashCode full;
+
+        Hashes(Path file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        long partial() throws IOException {
+            if (partial == null) {
+                partial = partialHash(file, size);
+            }
+            return partial;
+        }
+
+        HashCode full() throws IOException {
+            if (full == null) {
+                full = fullHash(file);
+            }
+            return full;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Placement {
+        Path place() throws IOException;
+    }
+}
@@ -0,0 +1,228 @@
+package dev.abarmin.icloud.importer.metadata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * Reads {@code DateTimeOriginal} from JPEG files without parsing the whole image. Only the
+ * segments in front of the Exif block and the IFD entries on the way to the tag are read,
+ * which is usually a few kilobytes per file.
+ */
+public class ExifDateReader {
+
+    private static final int INITIAL_WINDOW = 8 * 1024;
+    private static final int MAX_WINDOW = 256 * 1024;
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TYPE_ASCII = 2;
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    /**
+     * @return DateTimeOriginal as stored in the file, ex. {@code 2023:01:05 10:20:30}, or empty
+     * if the file is a JPEG without this tag
+     * @throws UnsupportedFormatException if the file is not a JPEG or its Exif block can't be parsed
+     */
+    public Optional<String> readDateTimeOriginal(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readDateTimeOriginal(channel);
+        }
+    }
+
+    public Optional<String> readDateTimeOriginal(SeekableByteChannel channel) throws IOException {
+        final Window window = new Window(channel, 0);
+        if (window.unsignedByte(0) != 0xFF || window.unsignedByte(1) != MARKER_SOI) {
+            throw new UnsupportedFormatException("Not a JPEG file");
+        }
+        long position = 2;
+        while (true) {
+            if (window.unsignedByte(position) != 0xFF) {
+                throw new UnsupportedFormatException("Broken JPEG segment at " + position);
+            }
+            // markers can be padded with any number of 0xFF bytes
+            while (window.unsignedByte(position + 1) == 0xFF) {
+                position++;
+            }
+            final int marker = window.unsignedByte(position + 1);
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                // image data starts, there is no Exif block
+                return Optional.empty();
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= MARKER_SOI)) {
+                // standalone markers have no length
+                position += 2;
+                continue;
+            }
+            final int length = window.unsignedShort(position + 2, ByteOrder.BIG_ENDIAN);
+            if (marker == MARKER_APP1 && length >= 2 + EXIF_HEADER.length && window.startsWith(position + 4, EXIF_HEADER)) {
+                return readTiff(window, position + 4 + EXIF_HEADER.length);
+            }
+            position += 2 + length;
+        }
+    }
+
+    /**
+     * Reads DateTimeOriginal from a TIFF structure, as stored in JPEG APP1 segments and in HEIF
+     * Exif items.
+     *
+     * @param channel channel with the TIFF header at {@code tiffStart}
+     */
+    public Optional<String> readDateTimeOriginal(SeekableByteChannel channel, long tiffStart) throws IOException {
+        return readTiff(new Window(channel, tiffStart), tiffStart);
+    }
+
+    private Optional<String> readTiff(Window window, long base) throws IOException {
+        final ByteOrder order;
+        if (window.unsignedByte(base) == 'I' && window.unsignedByte(base + 1) == 'I') {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else if (window.unsignedByte(base) == 'M' && window.unsignedByte(base + 1) == 'M') {
+            order = ByteOrder.BIG_ENDIAN;
+        } else {
+            throw new UnsupportedFormatException("Unknown TIFF byte order");
+        }
+        if (window.unsignedShort(base + 2, order) != 42) {
+            throw new UnsupportedFormatException("Invalid TIFF header");
+        }
+        final long ifd0 = base + window.unsignedInt(base + 4, order);
+
+        final long dateInIfd0 = findEntry(window, ifd0, TAG_DATE_TIME_ORIGINAL, order);
+        if (dateInIfd0 >= 0) {
+            return readAscii(window, base, dateInIfd0, order);
+        }
+        final long exifPointer = findEntry(window, ifd0, TAG_EXIF_IFD_POINTER, order);
+        if (exifPointer < 0) {
+            return Optional.empty();
+        }
+        final long exifIfd = base + window.unsignedInt(exifPointer + 8, order);
+        final long dateEntry = findEntry(window, exifIfd, TAG_DATE_TIME_ORIGINAL, order);
+        if (dateEntry < 0) {
+            return Optional.empty();
+        }
+        return readAscii(window, base, dateEntry, order);
+    }
+
+    /**
+     * @return position of the IFD entry with the given tag or -1 if there is no such entry
+     */
+    private long findEntry(Window window, long ifd, int tag, ByteOrder order) throws IOException {
+        final int count = window.unsignedShort(ifd, order);
+        for (int i = 0; i < count; i++) {
+            final long entry = ifd + 2 + (long) i * IFD_ENTRY_SIZE;
+            if (window.unsignedShort(entry, order) == tag) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private Optional<String> readAscii(Window window, long base, long entry, ByteOrder order) throws IOException {
+        if (window.unsignedShort(entry + 2, order) != TYPE_ASCII) {
+            throw new UnsupportedFormatException("DateTimeOriginal is not a string");
+        }
+        final long count = window.unsignedInt(entry + 4, order);
+        if (count > 64) {
+            throw new UnsupportedFormatException("DateTimeOriginal is too long");
+        }
+        // values up to 4 bytes are stored in the entry itself
+        final long valuePosition = count <= 4 ? entry + 8 : base + window.unsignedInt(entry + 8, order);
+        final byte[] value = window.bytes(valuePosition, (int) count);
+        int length = value.length;
+        while (length > 0 && (value[length - 1] == 0 || value[length - 1] == ' ')) {
+            length--;
+        }
+        if (length == 0) {
+            return Optional.empty();
+        }
+        return Optional.of(new String(value, 0, length, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Part of the file which is read on demand and grows when parsing needs bytes beyond it.
+     */
+    private static class Window {
+        private final SeekableByteChannel channel;
+        private final long start;
+        private ByteBuffer buffer;
+
+        Window(SeekableByteChannel channel, long start) {
+            this.channel = channel;
+            this.start = start;
+            this.buffer = ByteBuffer.allocate(INITIAL_WINDOW).flip();
+        }
+
+        int unsignedByte(long position) throws IOException {
+            return buffer.get(index(position, 1)) & 0xFF;
+        }
+
+        int unsignedShort(long position, ByteOrder order) throws IOException {
+            final int index = index(position, 2);
+            return buffer.order(order).getShort(index) & 0xFFFF;
+        }
+
+        long unsignedInt(long position, ByteOrder order) throws IOException {
+            final int index = index(position, 4);
+            return buffer.order(order).getInt(index) & 0xFFFFFFFFL;
+        }
+
+        byte[] bytes(long position, int length) throws IOException {
+            final int index = index(position, length);
+            final byte[] result = new byte[length];
+            buffer.get(index, result);
+            return result;
+        }
+
+        boolean startsWith(long position, byte[] prefix) throws IOException {
+            final int index = index(position, prefix.length);
+            for (int i = 0; i < prefix.length; i++) {
+                if (buffer.get(index + i) != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int index(long position, int length) throws IOException {
+            final long end = position - start + length;
+            if (position < start || end > MAX_WINDOW) {
+                throw new UnsupportedFormatException("Metadata is outside of the header window");
+            }
+            if (end > buffer.limit()) {
+                fill((int) end);
+            }
+            return (int) (position - start);
+        }
+
+        private void fill(int required) throws IOException {
+            if (required > buffer.capacity()) {
+                final int capacity = Math.min(MAX_WINDOW, Math.max(required, buffer.capacity() * 2));
+                final ByteBuffer grown = ByteBuffer.allocate(capacity);
+                grown.put(buffer.rewind());
+                buffer = grown;
+            } else {
+                buffer.position(buffer.limit()).limit(buffer.capacity());
+            }
+            buffer.limit(buffer.capacity());
+            channel.position(start + buffer.position());
+            while (buffer.position() < required) {
+                if (channel.read(buffer) < 0) {
+                    throw new UnsupportedFormatException("Unexpected end of file");
+                }
+            }
+            buffer.flip();
+        }
+    }
+}
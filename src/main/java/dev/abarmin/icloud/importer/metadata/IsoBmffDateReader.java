@@ -0,0 +1,301 @@
+package dev.abarmin.icloud.importer.metadata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Reads capture dates from ISO base media files: MOV, MP4, M4V and 3GP videos and HEIC/HEIF
+ * images. Boxes are located by their headers and skipped by seeking, so only the few boxes
+ * with metadata are read even for multi-gigabyte videos.
+ */
+public class IsoBmffDateReader {
+
+    private static final int MAX_META_SIZE = 4 * 1024 * 1024;
+    // seconds between 1904-01-01T00:00:00Z, the ISO-BMFF epoch, and the Unix epoch
+    private static final long EPOCH_OFFSET = 2_082_844_800L;
+
+    // old QuickTime movies don't always start with ftyp
+    private static final Set<String> TOP_LEVEL_TYPES = Set.of("ftyp", "moov", "mdat", "wide", "free", "skip", "pnot");
+
+    private final ExifDateReader exifDateReader = new ExifDateReader();
+
+    /**
+     * @return creation time from the {@code mvhd} box or empty if it isn't set
+     * @throws UnsupportedFormatException if the file is not an ISO base media file
+     */
+    public Optional<Instant> readMovieCreationTime(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readMovieCreationTime(channel);
+        }
+    }
+
+    public Optional<Instant> readMovieCreationTime(SeekableByteChannel channel) throws IOException {
+        final Box moov = findBox(channel, 0, channel.size(), "moov", true);
+        if (moov == null) {
+            return Optional.empty();
+        }
+        final Box mvhd = findBox(channel, moov.payload(), moov.end(), "mvhd", false);
+        if (mvhd == null) {
+            return Optional.empty();
+        }
+        final ByteBuffer header = read(channel, mvhd.payload(), 12);
+        final int version = header.get(0);
+        final long creationTime = version == 1 ? header.getLong(4) : header.getInt(4) & 0xFFFFFFFFL;
+        if (creationTime == 0) {
+            return Optional.empty();
+        }
+        return Optional.of(Instant.ofEpochSecond(creationTime - EPOCH_OFFSET));
+    }
+
+    /**
+     * @return DateTimeOriginal from the Exif item of a HEIF image, ex. {@code 2023:01:05 10:20:30}
+     * @throws UnsupportedFormatException if the file is not a HEIF image
+     */
+    public Optional<String> readHeifDateTimeOriginal(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readHeifDateTimeOriginal(channel);
+        }
+    }
+
+    public Optional<String> readHeifDateTimeOriginal(SeekableByteChannel channel) throws IOException {
+        final Box meta = findBox(channel, 0, channel.size(), "meta", true);
+        if (meta == null) {
+            return Optional.empty();
+        }
+        if (meta.end() - meta.payload() > MAX_META_SIZE) {
+            throw new UnsupportedFormatException("HEIF meta box is too large");
+        }
+        // meta is a full box, children start after version and flags
+        final long childrenStart = meta.payload() + 4;
+        final ByteBuffer children = read(channel, childrenStart, (int) (meta.end() - childrenStart));
+        try {
+            return readExifItem(channel, children, childrenStart);
+        } catch (IndexOutOfBoundsException e) {
+            throw new UnsupportedFormatException("Broken HEIF meta box");
+        }
+    }
+
+    private Optional<String> readExifItem(SeekableByteChannel channel, ByteBuffer children, long childrenStart) throws IOException {
+        final Box iinf = findBox(children, "iinf");
+        final Box iloc = findBox(children, "iloc");
+        if (iinf == null || iloc == null) {
+            return Optional.empty();
+        }
+        final long exifItem = findExifItem(children, iinf);
+        if (exifItem < 0) {
+            return Optional.empty();
+        }
+        final Box idat = findBox(children, "idat");
+        final long idatStart = idat == null ? -1 : childrenStart + idat.payload();
+        final long itemOffset = findItemOffset(children, iloc, exifItem, idatStart);
+        if (itemOffset < 0) {
+            return Optional.empty();
+        }
+        // Exif item starts with the offset of the TIFF header, usually after "Exif\0\0"
+        final long tiffHeaderOffset = read(channel, itemOffset, 4).getInt(0) & 0xFFFFFFFFL;
+        return exifDateReader.readDateTimeOriginal(channel, itemOffset + 4 + tiffHeaderOffset);
+    }
+
+    private long findExifItem(ByteBuffer buffer, Box iinf) throws UnsupportedFormatException {
+        final int version = buffer.get((int) iinf.payload());
+        final int entriesStart = (int) iinf.payload() + 4 + (version == 0 ? 2 : 4);
+        int position = entriesStart;
+        while (position < iinf.end()) {
+            final Box infe = readBox(buffer, position, iinf.end());
+            if ("infe".equals(infe.type())) {
+                final int infeStart = (int) infe.payload();
+                final int infeVersion = buffer.get(infeStart);
+                if (infeVersion >= 2) {
+                    final long itemId;
+                    final int typeOffset;
+                    if (infeVersion == 2) {
+                        itemId = buffer.getShort(infeStart + 4) & 0xFFFF;
+                        typeOffset = infeStart + 4 + 2 + 2;
+                    } else {
+                        itemId = buffer.getInt(infeStart + 4) & 0xFFFFFFFFL;
+                        typeOffset = infeStart + 4 + 4 + 2;
+                    }
+                    if ("Exif".equals(fourCc(buffer, typeOffset))) {
+                        return itemId;
+                    }
+                }
+            }
+            position = (int) infe.end();
+        }
+        return -1;
+    }
+
+    /**
+     * @return file offset of the first extent of the item or -1 if the item has no location
+     */
+    private long findItemOffset(ByteBuffer buffer, Box iloc, long itemId, long idatStart) throws UnsupportedFormatException {
+        int position = (int) iloc.payload();
+        final int version = buffer.get(position);
+        position += 4;
+        final int offsetSize = (buffer.get(position) >> 4) & 0x0F;
+        final int lengthSize = buffer.get(position) & 0x0F;
+        final int baseOffsetSize = (buffer.get(position + 1) >> 4) & 0x0F;
+        final int indexSize = version == 1 || version == 2 ? buffer.get(position + 1) & 0x0F : 0;
+        position += 2;
+        final long itemCount;
+        if (version < 2) {
+            itemCount = buffer.getShort(position) & 0xFFFF;
+            position += 2;
+        } else {
+            itemCount = buffer.getInt(position) & 0xFFFFFFFFL;
+            position += 4;
+        }
+        for (long item = 0; item < itemCount; item++) {
+            final long id;
+            if (version < 2) {
+                id = buffer.getShort(position) & 0xFFFF;
+                position += 2;
+            } else {
+                id = buffer.getInt(position) & 0xFFFFFFFFL;
+                position += 4;
+            }
+            int constructionMethod = 0;
+            if (version == 1 || version == 2) {
+                constructionMethod = buffer.getShort(position) & 0x0F;
+                position += 2;
+            }
+            // data reference index
+            position += 2;
+            final long baseOffset = readSized(buffer, position, baseOffsetSize);
+            position += baseOffsetSize;
+            final int extentCount = buffer.getShort(position) & 0xFFFF;
+            position += 2;
+            long firstExtentOffset = -1;
+            for (int extent = 0; extent < extentCount; extent++) {
+                position += indexSize;
+                final long extentOffset = readSized(buffer, position, offsetSize);
+                position += offsetSize + lengthSize;
+                if (extent == 0) {
+                    firstExtentOffset = extentOffset;
+                }
+            }
+            if (id == itemId) {
+                if (firstExtentOffset < 0) {
+                    return -1;
+                }
+                if (constructionMethod == 0) {
+                    return baseOffset + firstExtentOffset;
+                }
+                if (constructionMethod == 1 && idatStart >= 0) {
+                    return idatStart + baseOffset + firstExtentOffset;
+                }
+                throw new UnsupportedFormatException("Unsupported item construction method " + constructionMethod);
+            }
+        }
+        return -1;
+    }
+
+    private long readSized(ByteBuffer buffer, int position, int size) throws UnsupportedFormatException {
+        return switch (size) {
+            case 0 -> 0;
+            case 4 -> buffer.getInt(position) & 0xFFFFFFFFL;
+            case 8 -> buffer.getLong(position);
+            default -> throw new UnsupportedFormatException("Unsupported field size " + size);
+        };
+    }
+
+    /**
+     * Looks for a box among siblings in the file, skipping everything else without reading it.
+     *
+     * @param topLevel whether the first box must be one of the known top level boxes, which
+     *                 identifies the format
+     */
+    private Box findBox(SeekableByteChannel channel, long start, long end, String type, boolean topLevel) throws IOException {
+        long position = start;
+        boolean first = true;
+        while (position + 8 <= end) {
+            final ByteBuffer header = read(channel, position, (int) Math.min(16, end - position));
+            final Box box = readBox(header, 0, end - position).shift(position);
+            if (topLevel && first && !TOP_LEVEL_TYPES.contains(box.type())) {
+                throw new UnsupportedFormatException("Not an ISO base media file");
+            }
+            if (type.equals(box.type())) {
+                return box;
+            }
+            position = box.end();
+            first = false;
+        }
+        if (topLevel && first) {
+            throw new UnsupportedFormatException("Not an ISO base media file");
+        }
+        return null;
+    }
+
+    private Box findBox(ByteBuffer buffer, String type) throws UnsupportedFormatException {
+        int position = 0;
+        while (position + 8 <= buffer.limit()) {
+            final Box box = readBox(buffer, position, buffer.limit());
+            if (type.equals(box.type())) {
+                return box;
+            }
+            position = (int) box.end();
+        }
+        return null;
+    }
+
+    /**
+     * @param limit end of the parent, used for boxes which extend to the end of their parent
+     */
+    private Box readBox(ByteBuffer buffer, int position, long limit) throws UnsupportedFormatException {
+        final long size = buffer.getInt(position) & 0xFFFFFFFFL;
+        final String type = fourCc(buffer, position + 4);
+        final long payload;
+        final long end;
+        if (size == 1) {
+            if (buffer.limit() < position + 16) {
+                throw new UnsupportedFormatException("Broken box " + type);
+            }
+            payload = position + 16;
+            end = position + buffer.getLong(position + 8);
+        } else if (size == 0) {
+            payload = position + 8;
+            end = limit;
+        } else {
+            payload = position + 8;
+            end = position + size;
+        }
+        if (end < payload || end > limit) {
+            throw new UnsupportedFormatException("Broken box " + type);
+        }
+        return new Box(type, payload, end);
+    }
+
+    private String fourCc(ByteBuffer buffer, int position) {
+        final byte[] type = new byte[4];
+        buffer.get(position, type);
+        return new String(type, StandardCharsets.ISO_8859_1);
+    }
+
+    private ByteBuffer read(SeekableByteChannel channel, long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.position(position);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new UnsupportedFormatException("Unexpected end of file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Box with offsets of its payload and end, relative to the buffer or the file it was read from.
+     */
+    private record Box(String type, long payload, long end) {
+        Box shift(long offset) {
+            return new Box(type, payload + offset, end + offset);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package dev.abarmin.icloud.importer.metadata;
+
+import java.io.IOException;
+
+/**
+ * File layout is not understood by a lightweight reader, callers should use a full parser instead.
+ */
+public class UnsupportedFormatException extends IOException {
+    public UnsupportedFormatException(String message) {
+        super(message);
+    }
+}
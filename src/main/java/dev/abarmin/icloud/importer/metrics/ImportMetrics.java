@@ -0,0 +1,162 @@
+package dev.abarmin.icloud.importer.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers and counters of a single command run. Phases are timed with {@link #record} and
+ * outcomes counted with {@link #count}, the totals are written as a JSON summary at the end.
+ */
+@Slf4j
+public class ImportMetrics {
+
+    public static final String SCAN = "importer.scan";
+    public static final String CSV_PARSE = "importer.csv.parse";
+    public static final String EXIF_PARSE = "importer.exif.parse";
+    public static final String CONTAINER_PARSE = "importer.container.parse";
+    public static final String MOVE = "importer.move";
+    public static final String PROPFIND = "webdav.propfind";
+    public static final String PUT = "webdav.put";
+
+    public static final String SORTED_FILES = "importer.files";
+    public static final String UPLOADED_FILES = "webdav.files";
+    // outcome is the resolver which knew the date, or none
+    public static final String RESOLVED_DATES = "importer.dates";
+    // outcome is hit or miss
+    public static final String DATE_CACHE = "importer.date.cache";
+
+    private static final String OUTCOME = "outcome";
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private final Instant startedAt = Instant.now();
+    private final long startedNanos = System.nanoTime();
+    private final Progress sorting = new Progress("sorted");
+    private final Progress uploading = new Progress("uploaded");
+
+    /**
+     * @param startedNanos {@link System#nanoTime()} when the phase started
+     */
+    public void record(String phase, long startedNanos) {
+        registry.timer(phase).record(System.nanoTime() - startedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void count(String files, String outcome) {
+        registry.counter(files, OUTCOME, outcome).increment();
+    }
+
+    public Progress getSorting() {
+        return sorting;
+    }
+
+    public Progress getUploading() {
+        return uploading;
+    }
+
+    List<Progress> getStages() {
+        return List.of(sorting, uploading);
+    }
+
+    long elapsedNanos() {
+        return System.nanoTime() - startedNanos;
+    }
+
+    /**
+     * Writes the totals of the run so far, a failure is only logged to not hide the result of
+     * the run itself.
+     */
+    public void writeSummary(Path file, String command) {
+        try {
+            Files.writeString(file, toJson(command), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.error("Can't write run summary to {}", file, e);
+        }
+    }
+
+    String toJson(String command) {
+        final double seconds = elapsedNanos() / 1e9;
+        final StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"command\": \"").append(command).append("\",\n");
+        json.append("  \"startedAt\": \"").append(startedAt).append("\",\n");
+        json.append("  \"durationSeconds\": ").append(number(seconds)).append(",\n");
+
+        json.append("  \"stages\": {");
+        String separator = "\n";
+        for (Progress stage : getStages()) {
+            if (!stage.isStarted()) {
+                continue;
+            }
+            json.append(separator).append("    \"").append(stage.getLabel()).append("\": {")
+                    .append("\"files\": ").append(stage.getDone())
+                    .append(", \"bytes\": ").append(stage.getBytes())
+                    .append(", \"filesPerSecond\": ").append(number(stage.getDone() / seconds))
+                    .append(", \"megabytesPerSecond\": ").append(number(stage.getBytes() / 1e6 / seconds))
+                    .append("}");
+            separator = ",\n";
+        }
+        json.append(separator.equals("\n") ? "},\n" : "\n  },\n");
+
+        // counters are grouped by name, one entry per outcome
+        final Map<String, Map<String, Long>> counters = new TreeMap<>();
+        final List<Meter> meters = registry.getMeters().stream()
+                .sorted(Comparator.comparing(meter -> meter.getId().getName()))
+                .toList();
+        for (Meter meter : meters) {
+            if (meter instanceof Counter counter) {
+                counters.computeIfAbsent(meter.getId().getName(), name -> new TreeMap<>())
+                        .put(meter.getId().getTag(OUTCOME), (long) counter.count());
+            }
+        }
+        json.append("  \"counters\": {");
+        separator = "\n";
+        for (Map.Entry<String, Map<String, Long>> counter : counters.entrySet()) {
+            json.append(separator).append("    \"").append(counter.getKey()).append("\": {");
+            String outcomeSeparator = "";
+            for (Map.Entry<String, Long> outcome : counter.getValue().entrySet()) {
+                json.append(outcomeSeparator).append("\"").append(outcome.getKey()).append("\": ").append(outcome.getValue());
+                outcomeSeparator = ", ";
+            }
+            json.append("}");
+            separator = ",\n";
+        }
+        json.append(separator.equals("\n") ? "},\n" : "\n  },\n");
+
+        json.append("  \"timers\": {");
+        separator = "\n";
+        for (Meter meter : meters) {
+            if (meter instanceof Timer timer) {
+                json.append(separator).append("    \"").append(meter.getId().getName()).append("\": {")
+                        .append("\"count\": ").append(timer.count())
+                        .append(", \"totalSeconds\": ").append(number(timer.totalTime(TimeUnit.SECONDS)))
+                        .append(", \"meanMillis\": ").append(number(timer.mean(TimeUnit.MILLISECONDS)))
+                        .append(", \"maxMillis\": ").append(number(timer.max(TimeUnit.MILLISECONDS)))
+                        .append("}");
+                separator = ",\n";
+            }
+        }
+        json.append(separator.equals("\n") ? "}\n" : "\n  }\n");
+        return json.append("}\n").toString();
+    }
+
+    private static String number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "0";
+        }
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
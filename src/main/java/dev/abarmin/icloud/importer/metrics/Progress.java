@@ -0,0 +1,64 @@
+package dev.abarmin.icloud.importer.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of one stage of a run, ex. sorting or uploading. The number of files to process
+ * grows while the stage discovers them, the estimate is only final once
+ * {@link #expectNoMore()} is called.
+ */
+public class Progress {
+
+    private final String label;
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder done = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private volatile boolean complete;
+
+    Progress(String label) {
+        this.label = label;
+    }
+
+    public void expect(long files) {
+        expected.add(files);
+    }
+
+    /**
+     * Every file of the stage has been discovered.
+     */
+    public void expectNoMore() {
+        complete = true;
+    }
+
+    /**
+     * @param bytes size of the processed file, 0 if not known
+     */
+    public void done(long bytes) {
+        done.increment();
+        this.bytes.add(bytes);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public long getExpected() {
+        return expected.sum();
+    }
+
+    public long getDone() {
+        return done.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    boolean isStarted() {
+        return getExpected() > 0 || getDone() > 0;
+    }
+}
@@ -0,0 +1,105 @@
+package dev.abarmin.icloud.importer.metrics;
+
+import org.jline.terminal.Terminal;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status line redrawn in place twice a second, ex.
+ * {@code sorted 1200/5000 | uploaded 800/1200 | 35.1 files/s 12.3 MB/s | ETA 00:02:13}.
+ * Dumb terminals, ex. output redirected to a file, get no status line at all.
+ */
+public class ProgressBar implements AutoCloseable {
+
+    private static final long REFRESH_MILLIS = 500;
+
+    private final Terminal terminal;
+    private final ImportMetrics metrics;
+    private final ScheduledExecutorService renderer;
+    private int lastLength;
+
+    private ProgressBar(Terminal terminal, ImportMetrics metrics) {
+        this.terminal = terminal;
+        this.metrics = metrics;
+        this.renderer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "progress-bar");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static ProgressBar start(Terminal terminal, ImportMetrics metrics) {
+        final ProgressBar progressBar = new ProgressBar(terminal, metrics);
+        if (!isDumb(terminal)) {
+            progressBar.renderer.scheduleWithFixedDelay(progressBar::draw, REFRESH_MILLIS, REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return progressBar;
+    }
+
+    /**
+     * Stops refreshing and leaves the last state on its own line.
+     */
+    @Override
+    public void close() {
+        renderer.shutdownNow();
+        try {
+            renderer.awaitTermination(REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!isDumb(terminal)) {
+            draw();
+            terminal.writer().println();
+            terminal.writer().flush();
+        }
+    }
+
+    private synchronized void draw() {
+        final String line = render(metrics.getStages(), metrics.elapsedNanos());
+        if (line.isEmpty()) {
+            return;
+        }
+        final PrintWriter writer = terminal.writer();
+        // pads over the rest of a longer previous line
+        writer.print("\r" + line + " ".repeat(Math.max(lastLength - line.length(), 0)));
+        writer.flush();
+        lastLength = line.length();
+    }
+
+    /**
+     * Rates are those of the last stage which has started, the estimate is shown once all of
+     * its files are known.
+     */
+    static String render(List<Progress> stages, long elapsedNanos) {
+        final List<String> parts = new ArrayList<>();
+        Progress last = null;
+        for (Progress stage : stages) {
+            if (stage.isStarted()) {
+                parts.add(stage.getLabel() + " " + stage.getDone() + "/" + stage.getExpected()
+                        + (stage.isComplete() ? "" : "+"));
+                last = stage;
+            }
+        }
+        if (last == null) {
+            return "";
+        }
+        final double seconds = Math.max(elapsedNanos / 1e9, 0.001);
+        final double filesPerSecond = last.getDone() / seconds;
+        parts.add(String.format(Locale.ROOT, "%.1f files/s %.1f MB/s", filesPerSecond, last.getBytes() / 1e6 / seconds));
+        if (last.isComplete() && filesPerSecond > 0) {
+            final long remaining = (long) Math.ceil(Math.max(last.getExpected() - last.getDone(), 0) / filesPerSecond);
+            parts.add(String.format(Locale.ROOT, "ETA %02d:%02d:%02d", remaining / 3600, remaining / 60 % 60, remaining % 60));
+        }
+        return String.join(" | ", parts);
+    }
+
+    private static boolean isDumb(Terminal terminal) {
+        return Terminal.TYPE_DUMB.equals(terminal.getType()) || Terminal.TYPE_DUMB_COLOR.equals(terminal.getType());
+    }
+}
@@ -0,0 +1,39 @@
+package dev.abarmin.icloud.importer.sort;
+
+import dev.abarmin.icloud.importer.metadata.IsoBmffDateReader;
+import dev.abarmin.icloud.importer.metadata.UnsupportedFormatException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Optional;
+
+/**
+ * Creation time of videos from the {@code mvhd} box of MP4 and QuickTime containers.
+ */
+@Slf4j
+class ContainerDateResolver implements DateResolver {
+
+    private final IsoBmffDateReader isoBmffDateReader = new IsoBmffDateReader();
+
+    @Override
+    public boolean supports(SourceScanner.Kind kind) {
+        return kind == SourceScanner.Kind.VIDEO;
+    }
+
+    @Override
+    public Optional<LocalDate> resolve(SourceScanner.Entry entry) {
+        final Optional<Instant> creationTime;
+        try {
+            creationTime = isoBmffDateReader.readMovieCreationTime(entry.getPath());
+        } catch (UnsupportedFormatException e) {
+            log.debug("Can't read creation time from video {}: {}", entry.getPath(), e.getMessage());
+            return Optional.empty();
+        } catch (Exception e) {
+            log.error("Error while parsing video metadata for file {}", entry.getPath());
+            return Optional.empty();
+        }
+        return creationTime.map(time -> LocalDate.ofInstant(time, ZoneId.systemDefault()));
+    }
+}
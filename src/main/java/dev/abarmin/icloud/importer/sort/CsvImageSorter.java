@@ -1,54 +1,61 @@
 package dev.abarmin.icloud.importer.sort;
 
 import com.google.common.annotations.VisibleForTesting;
-import lombok.Data;
+import dev.abarmin.icloud.importer.CommandStatus;
+import dev.abarmin.icloud.importer.MetadataDirectory;
+import dev.abarmin.icloud.importer.dedup.ContentIndex;
+import dev.abarmin.icloud.importer.metrics.ImportMetrics;
+import dev.abarmin.icloud.importer.metrics.ProgressBar;
 import lombok.SneakyThrows;
-import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.imaging.Imaging;
-import org.apache.commons.imaging.common.ImageMetadata;
-import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
-import org.apache.commons.imaging.formats.tiff.TiffField;
-import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.Strings;
 import org.jline.terminal.Terminal;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.shell.standard.ShellComponent;
 import org.springframework.shell.standard.ShellMethod;
 import org.springframework.shell.standard.ShellOption;
 
+import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.time.LocalDate;
-import java.time.Month;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
 @Slf4j
 @ShellComponent
 public class CsvImageSorter {
 
-    private final List<String> imageExtensions = List.of("jpg", "heic", "gif", "png", "bmp", "jpeg", "dng", "webp", "avif", "tiff", "tif");
-    private final List<String> videoExtensions = List.of("mp4", "mov", "avi", "m4v", "mpg", "3gp");
-    private final String unknownDate = "0000:00:00";
-    private final DateTimeFormatter exifDateFormatter = DateTimeFormatter.ofPattern("yyyy:MM:dd");
-    private final DateTimeFormatter fromDetailsDateFormatter = DateTimeFormatter
-            .ofPattern("EEEE MMMM d,yyyy h:mm a z", Locale.ENGLISH);
+    public static final String DEFAULT_RESOLVERS = DateResolverChain.DEFAULT_ORDER;
 
     @Autowired
     private Terminal terminal;
 
+    @Autowired
+    private SourceScanner scanner;
+
+    @Autowired
+    private PhotoDetailsReader detailsReader;
+
+    @Autowired
+    private CommandStatus status;
+
     @ShellMethod(
             key = "image-sort",
             value = "Sort images exported from iCloud",
@@ -56,7 +63,14 @@ public class CsvImageSorter {
     )
     public void run(
             @ShellOption(value = "src", help = "Source directory, ex. /Users/test/photos") String sourceDirectoryString,
-            @ShellOption(value = "dest", help = "Destination directory, ex. /Users/test/photos_sorted") String destinationDirectoryString
+            @ShellOption(value = "dest", help = "Destination directory, ex. /Users/test/photos_sorted") String destinationDirectoryString,
+            @ShellOption(value = "threads", defaultValue = "0", help = "Number of sorting threads, 0 means one per CPU core") int threads,
+            @ShellOption(value = "resolvers", defaultValue = DEFAULT_RESOLVERS, help = "Sources of the dates in the order they are asked, out of csv, exif, container, filename and mtime") String resolverOrder,
+            @ShellOption(value = "resume", defaultValue = "false", help = "Continue the last interrupted run") boolean resume,
+            @ShellOption(value = "undo", defaultValue = "false", help = "Move files of the last run back to their sources") boolean undo,
+            @ShellOption(value = "dry-run", defaultValue = "false", help = "Write a plan of the moves without moving anything") boolean dryRun,
+            @ShellOption(value = "plan", defaultValue = ShellOption.NULL, help = "Make the moves of a plan written by --dry-run") String planFile,
+            @ShellOption(value = "summary-json", defaultValue = ShellOption.NULL, help = "File to write timings and counts of the run to") String summaryJson
     ) throws Exception {
         final Path targetDirectory = Path.of(destinationDirectoryString);
         final List<Path> sources = List.of(Path.of(sourceDirectoryString));
@@ -66,6 +80,7 @@ public class CsvImageSorter {
             if (!Files.exists(source)) {
                 terminal.writer().println("Directory %s doesn't exist".formatted(source));
                 terminal.writer().flush();
+                status.invalidArguments();
                 return;
             }
         }
@@ -73,244 +88,625 @@ public class CsvImageSorter {
         if (!Files.exists(targetDirectory)) {
             Files.createDirectories(targetDirectory);
         }
-        // get details about file locations and so on
-        final Map<String, PhotoDetails> photoDetails = getPhotoDetails(sources);
-        // get all images from the Photos folder
-        final Map<String, Path> allPhotos = getPhotos(sources);
-        // sorting files and so on
-        sortImages(photoDetails, allPhotos, targetDirectory);
+        if (Stream.of(resume, undo, dryRun, planFile != null).filter(Boolean::booleanValue).count() > 1) {
+            terminal.writer().println("Options --resume, --undo, --dry-run and --plan can't be used together");
+            terminal.writer().flush();
+            status.invalidArguments();
+            return;
+        }
+        final List<String> resolvers;
+        try {
+            resolvers = parseResolvers(resolverOrder);
+        } catch (IllegalArgumentException e) {
+            terminal.writer().println(e.getMessage());
+            terminal.writer().flush();
+            status.invalidArguments();
+            return;
+        }
+        final Path metadataDirectory = MetadataDirectory.resolve(targetDirectory);
+        final Optional<Path> lastJournal = MoveJournal.latest(metadataDirectory);
+        if ((resume || undo) && lastJournal.isEmpty()) {
+            terminal.writer().println("No journal found in %s".formatted(metadataDirectory));
+            terminal.writer().flush();
+            status.invalidArguments();
+            return;
+        }
+        if (undo) {
+            final int restored = undo(lastJournal.get(), targetDirectory);
+            terminal.writer().println("Moved %d files back to their sources".formatted(restored));
+            terminal.writer().flush();
+            return;
+        }
+        final ImportMetrics metrics = new ImportMetrics();
+        try (ProgressBar ignored = ProgressBar.start(terminal, metrics)) {
+            if (dryRun) {
+                final SortPlan plan = dryRun(sources, targetDirectory, threads, resolvers, metrics);
+                report(plan, plan.write(metadataDirectory));
+            } else if (planFile != null) {
+                final int moved = execute(Path.of(planFile), targetDirectory, metrics);
+                terminal.writer().println("Moved %d files of the plan".formatted(moved));
+                terminal.writer().flush();
+            } else {
+                sort(sources, targetDirectory, threads, resolvers, resume ? lastJournal : Optional.empty(), PlacementListener.NONE, metrics, null);
+            }
+        } finally {
+            if (summaryJson != null) {
+                metrics.writeSummary(Path.of(summaryJson), "image-sort");
+            }
+        }
     }
 
-    private void sortImages(Map<String, PhotoDetails> metadata,
-                            Map<String, Path> files,
-                            Path targetDirectory) {
+    /**
+     * Sorts the sources into the target directory like {@code image-sort} does and reports every
+     * file as soon as it has been moved.
+     *
+     * @param threads   number of sorting threads, 0 means one per CPU core
+     * @param resolvers sources of the dates in the order they are asked, see {@link #parseResolvers(String)}
+     * @param metrics   metrics of the run the sorting is part of
+     */
+    public void sort(List<Path> sources, Path targetDirectory, int threads, List<String> resolvers, PlacementListener listener, ImportMetrics metrics) throws Exception {
+        Files.createDirectories(targetDirectory);
+        sort(sources, targetDirectory, threads, resolvers, Optional.empty(), listener, metrics, null);
+    }
 
-        for (Map.Entry<String, Path> fileEntry : files.entrySet()) {
-            if (metadata.containsKey(fileEntry.getKey())) {
-                sortImage(fileEntry.getValue(), metadata.get(fileEntry.getKey()), targetDirectory);
-            } else if (isVideo(fileEntry.getValue())) {
-                toUnsortedVideos(fileEntry.getValue(), targetDirectory);
-            } else {
-                getDetailsFromExif(fileEntry.getValue())
-                        .ifPresentOrElse(details -> {
-                            sortImage(fileEntry.getValue(), details, targetDirectory);
-                        }, () -> {
-                            toUnsorted(fileEntry.getValue(), targetDirectory);
-                        });
+    /**
+     * @param order comma separated sources of the dates, ex. {@code csv,exif,container,filename,mtime}
+     * @throws IllegalArgumentException if a source is unknown or repeated
+     */
+    public static List<String> parseResolvers(String order) {
+        return DateResolverChain.parseOrder(order);
+    }
+
+    /**
+     * Sorts the sources like {@code image-sort} does, but only plans the moves. Nothing in the
+     * sources or the target tree is changed, the content index is used through a copy.
+     */
+    @VisibleForTesting
+    SortPlan dryRun(List<Path> sources, Path targetDirectory, int threads, List<String> resolvers, ImportMetrics metrics) throws Exception {
+        final SortPlan plan = new SortPlan();
+        sort(sources, targetDirectory, threads, resolvers, Optional.empty(), PlacementListener.NONE, metrics, plan);
+        return plan;
+    }
+
+    /**
+     * Makes the moves of a plan without reading any metadata. Files which are gone since the
+     * plan was made are skipped, targets which are taken since then get a numeric suffix.
+     * Files planned as sorted or unsorted still go through the content index, so a copy which
+     * arrived meanwhile ends up in duplicates.
+     *
+     * @return number of moved files
+     */
+    @VisibleForTesting
+    int execute(Path planFile, Path targetDirectory, ImportMetrics metrics) throws IOException {
+        final List<SortPlan.Move> moves = SortPlan.read(planFile);
+        metrics.getSorting().expect(moves.size());
+        metrics.getSorting().expectNoMore();
+        final Path metadataDirectory = MetadataDirectory.resolve(targetDirectory);
+        final NameRegistry names = new NameRegistry();
+        int moved = 0;
+        try (ContentIndex contentIndex = ContentIndex.open(targetDirectory, metadataDirectory.resolve(ContentIndex.FILE_NAME));
+             MoveJournal journal = MoveJournal.create(metadataDirectory)) {
+            for (SortPlan.Move move : moves) {
+                final Path source = move.getSource();
+                if (!Files.exists(source)) {
+                    log.warn("{} doesn't exist anymore, skipping", source);
+                    metrics.getSorting().done(0);
+                    continue;
+                }
+                final long started = System.nanoTime();
+                Files.createDirectories(move.getTarget().getParent());
+                final Path placed;
+                String outcome = move.getOutcome();
+                if ("duplicate".equals(outcome)) {
+                    placed = moveTo(source, move.getTarget(), names, journal);
+                } else {
+                    final AtomicReference<Path> moveTarget = new AtomicReference<>();
+                    final Optional<Path> existing = contentIndex.placeIfUnique(source, () -> {
+                        moveTarget.set(moveTo(source, move.getTarget(), names, journal));
+                        return moveTarget.get();
+                    });
+                    if (existing.isPresent()) {
+                        log.warn("File {} has the same content as {} since the plan was made", source, existing.get());
+                        outcome = "duplicate";
+                        final Path duplicates = Files.createDirectories(targetDirectory.resolve("duplicates"));
+                        moveTarget.set(moveAvoidingDuplicates(source, duplicates, names, journal));
+                    }
+                    placed = moveTarget.get();
+                }
+                metrics.record(ImportMetrics.MOVE, started);
+                metrics.count(ImportMetrics.SORTED_FILES, outcome);
+                metrics.getSorting().done(Files.size(placed));
+                moved++;
             }
         }
+        return moved;
     }
 
-    @SneakyThrows
-    private void toUnsorted(Path filePath, Path targetDirectory) {
-        final Path finalDirectory = targetDirectory.resolve("unsorted");
-        if (!Files.exists(finalDirectory)) {
-            Files.createDirectories(finalDirectory);
+    private void report(SortPlan plan, Path planFile) {
+        for (Map.Entry<String, long[]> outcome : plan.summary().entrySet()) {
+            terminal.writer().println("%s: %d files, %d MB".formatted(
+                    outcome.getKey(), outcome.getValue()[0], outcome.getValue()[1] / (1024 * 1024)));
         }
-
-        moveAvoidingDuplicates(filePath, finalDirectory);
+        terminal.writer().println("%d files get a suffix to not overwrite another file".formatted(plan.renamed()));
+        terminal.writer().println("Plan written to %s, run with --plan %s to make the moves".formatted(planFile, planFile));
+        terminal.writer().flush();
     }
 
-    @SneakyThrows
-    private void toUnsortedVideos(Path filePath, Path targetDirectory) {
-        final Path finalDirectory = targetDirectory.resolve("unsorted_videos");
-        if (!Files.exists(finalDirectory)) {
-            Files.createDirectories(finalDirectory);
+    /**
+     * Sorts files as they appear in the source directory until the thread is interrupted.
+     * Photo details files are read before the media files which settled together with them,
+     * media files described by none of the details read so far fall back to their metadata.
+     *
+     * @param quietPeriod time without changes after which a file is considered complete
+     */
+    public void watch(Path source,
+                      Path targetDirectory,
+                      int threads,
+                      List<String> resolvers,
+                      Duration quietPeriod,
+                      PlacementListener listener,
+                      ImportMetrics metrics) throws Exception {
+        Files.createDirectories(targetDirectory);
+        final Path metadataDirectory = MetadataDirectory.resolve(targetDirectory);
+        final int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        // kept for the whole run, later batches may bring files described by earlier details
+        final PhotoDetailsIndex photoDetails = new PhotoDetailsIndex();
+        try (ContentIndex contentIndex = ContentIndex.open(targetDirectory, metadataDirectory.resolve(ContentIndex.FILE_NAME));
+             MoveJournal journal = MoveJournal.create(metadataDirectory);
+             SourceWatcher watcher = new SourceWatcher(source, quietPeriod)) {
+            // new files are resolved once, there is nothing to cache for a next run
+            final DateResolverChain chain = DateResolverChain.create(resolvers, photoDetails, null, metrics);
+            final SortContext context = new SortContext(List.of(source), targetDirectory, contentIndex, journal, listener, metrics, chain, null);
+            log.info("Watching {} for new files", source);
+            while (true) {
+                final List<Path> changed = watcher.next();
+                final BlockingQueue<SourceScanner.Entry> files = new LinkedBlockingQueue<>();
+                for (Path file : changed) {
+                    final SourceScanner.Kind kind = scanner.classify(file);
+                    if (kind == SourceScanner.Kind.DETAILS) {
+                        readPhotoDetailsSafely(file, photoDetails, metrics);
+                    } else if (kind != null) {
+                        metrics.getSorting().expect(1);
+                        files.add(new SourceScanner.Entry(kind, file));
+                    }
+                }
+                if (files.isEmpty()) {
+                    continue;
+                }
+                log.info("Sorting {} new files", files.size());
+                try {
+                    sortImages(files, CompletableFuture.completedFuture(null), context, parallelism);
+                } catch (RuntimeException e) {
+                    // already logged per file, the watch goes on
+                    log.error("Some of the new files were not sorted, they stay in {}", source);
+                    status.partial();
+                }
+            }
         }
+    }
 
-        moveAvoidingDuplicates(filePath, finalDirectory);
+    /**
+     * @param resumedJournal journal of the interrupted run to continue, or empty to start a new one
+     */
+    private void sort(List<Path> sources,
+                      Path targetDirectory,
+                      int threads,
+                      List<String> resolvers,
+                      Optional<Path> resumedJournal,
+                      PlacementListener listener,
+                      ImportMetrics metrics,
+                      SortPlan plan) throws Exception {
+        final Path metadataDirectory = MetadataDirectory.resolve(targetDirectory);
+        final Path indexFile = plan == null
+                ? metadataDirectory.resolve(ContentIndex.FILE_NAME)
+                : copyForDryRun(metadataDirectory.resolve(ContentIndex.FILE_NAME));
+        try (ContentIndex contentIndex = ContentIndex.open(targetDirectory, indexFile);
+             MoveJournal journal = plan != null ? null
+                     : resumedJournal.isPresent() ? MoveJournal.open(resumedJournal.get()) : MoveJournal.create(metadataDirectory);
+             // a dry run fills it too, so the run making the moves doesn't parse the files again
+             DateCache dateCache = DateCache.open(metadataDirectory)) {
+            if (resumedJournal.isPresent()) {
+                // finished before scanning, files which are already sorted are not in the
+                // sources anymore, so the scan only brings the rest
+                log.info("Completed {} interrupted moves from {}", completePending(journal), journal.getFile());
+            }
+            final int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+            // details are read in parallel while the scan is running, media files are streamed to sorting
+            final PhotoDetailsIndex photoDetails = new PhotoDetailsIndex();
+            final BlockingQueue<SourceScanner.Entry> files = new LinkedBlockingQueue<>();
+            final List<CompletableFuture<Void>> detailsReads = Collections.synchronizedList(new ArrayList<>());
+            final AtomicInteger skippedRows = new AtomicInteger();
+            final ExecutorService detailsExecutor = Executors.newFixedThreadPool(parallelism);
+            try {
+                final long scanStarted = System.nanoTime();
+                final CompletableFuture<Void> scan = scanner.scan(sources, entry -> {
+                    if (entry.getKind() == SourceScanner.Kind.DETAILS) {
+                        detailsReads.add(CompletableFuture.runAsync(
+                                () -> skippedRows.addAndGet(readPhotoDetailsFile(entry.getPath(), photoDetails, metrics)),
+                                detailsExecutor));
+                    } else {
+                        metrics.getSorting().expect(1);
+                        files.add(entry);
+                    }
+                });
+                scan.thenRun(() -> {
+                    metrics.record(ImportMetrics.SCAN, scanStarted);
+                    metrics.getSorting().expectNoMore();
+                });
+                // every details file is found before the scan completes
+                final CompletableFuture<Void> details = scan.thenCompose(ignored -> CompletableFuture.allOf(
+                        detailsReads.toArray(CompletableFuture[]::new)));
+                // sorting files and so on
+                final DateResolverChain chain = DateResolverChain.create(resolvers, photoDetails, dateCache, metrics);
+                final SortContext context = new SortContext(sources, targetDirectory, contentIndex, journal, listener, metrics, chain, plan);
+                sortImages(files, details, context, parallelism);
+            } finally {
+                detailsExecutor.shutdown();
+            }
+            if (skippedRows.get() > 0) {
+                terminal.writer().println("Skipped %d rows without a readable date in photo details files".formatted(skippedRows.get()));
+                terminal.writer().flush();
+            }
+        } finally {
+            if (plan != null) {
+                Files.deleteIfExists(indexFile);
+            }
+        }
     }
 
-    @SneakyThrows
-    private void toDuplicates(Path filePath, Path targetDirectory) {
-        final Path finalDirectory = targetDirectory.resolve("duplicates");
-        if (!Files.exists(finalDirectory)) {
-            Files.createDirectories(finalDirectory);
+    /**
+     * @return temporary copy of the content index, files planned by a dry run are indexed
+     * there at their current location
+     */
+    private Path copyForDryRun(Path indexFile) throws IOException {
+        final Path copy = Files.createTempFile("content-index", ".bin");
+        if (Files.exists(indexFile)) {
+            Files.copy(indexFile, copy, StandardCopyOption.REPLACE_EXISTING);
         }
-        moveAvoidingDuplicates(filePath, finalDirectory);
+        return copy;
     }
 
-    @SneakyThrows
-    @VisibleForTesting
-    Path moveAvoidingDuplicates(Path filePath, Path targetDirectory) {
-        if (!Files.exists(targetDirectory)) {
-            throw new RuntimeException("Target directory " + targetDirectory + " must exist");
+    private void sortImages(BlockingQueue<SourceScanner.Entry> files,
+                            CompletableFuture<Void> scan,
+                            SortContext context,
+                            int parallelism) throws InterruptedException {
+
+        // bounded queue, so the dispatching thread sorts files itself when workers are busy
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                parallelism,
+                parallelism,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(parallelism * 64),
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        try {
+            // files without details can't be resolved until all details files are read
+            final EntryList deferred = new EntryList(context.getSources());
+            while (!(scan.isDone() && files.isEmpty())) {
+                final SourceScanner.Entry entry = files.poll(100, TimeUnit.MILLISECONDS);
+                if (entry == null) {
+                    continue;
+                }
+                final Optional<LocalDate> date = context.getResolvers().resolveFromDetails(entry);
+                if (date.isPresent()) {
+                    executor.execute(() -> sortSafely(entry, failure, context,
+                            () -> sortImage(entry.getPath(), date.get(), context)));
+                } else {
+                    deferred.add(entry);
+                }
+            }
+            scan.join();
+
+            for (int i = 0; i < deferred.size(); i++) {
+                final SourceScanner.Entry entry = deferred.get(i);
+                executor.execute(() -> sortSafely(entry, failure, context,
+                        () -> sortImage(entry, context)));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
         }
-        final String originalFilename = filePath.getFileName().toString();
-        int counter = 1;
-        String targetFilename = originalFilename;
-        Path targetFile = targetDirectory.resolve(targetFilename);
-        while (Files.exists(targetFile)) {
-            targetFilename = FilenameUtils.getBaseName(originalFilename) + "_" + counter + "." + FilenameUtils.getExtension(originalFilename);
-            counter++;
-            targetFile = targetDirectory.resolve(targetFilename);
+        if (failure.get() != null) {
+            throw new RuntimeException("Sorting failed", failure.get());
         }
-
-        return Files.move(filePath, targetFile);
     }
 
-    @SneakyThrows
-    private Optional<PhotoDetails> getDetailsFromExif(Path imageFile) {
-        final ImageMetadata metadata;
+    private void sortSafely(SourceScanner.Entry entry,
+                            AtomicReference<Throwable> failure,
+                            SortContext context,
+                            Runnable action) {
         try {
-            metadata = Imaging.getMetadata(imageFile.toFile());
+            action.run();
         } catch (Exception e) {
-            log.error("Error while parsing image metadata for file {}", imageFile);
-            return Optional.empty();
+            log.error("Failed to sort file {}", entry.getPath(), e);
+            context.getMetrics().count(ImportMetrics.SORTED_FILES, "failed");
+            context.getMetrics().getSorting().done(0);
+            failure.compareAndSet(null, e);
         }
-        return getCreationDate(metadata).map(creationDate -> new PhotoDetails()
-                .setFilename(imageFile.getFileName().toString())
-                .setCreationDate(creationDate));
+    }
+
+    private void sortImage(SourceScanner.Entry entry, SortContext context) {
+        final Path file = entry.getPath();
+        context.getResolvers().resolve(entry)
+                .ifPresentOrElse(date -> {
+                    sortImage(file, date, context);
+                }, () -> {
+                    if (entry.getKind() == SourceScanner.Kind.VIDEO) {
+                        toUnsortedVideos(file, context);
+                    } else {
+                        toUnsorted(file, context);
+                    }
+                });
     }
 
     @SneakyThrows
-    private Optional<LocalDate> getCreationDate(ImageMetadata metadata) {
-        if (metadata instanceof JpegImageMetadata jpegMetadata) {
-            if (jpegMetadata.getExif() == null) {
-                return Optional.empty();
-            }
-            final TiffField field = jpegMetadata.getExif().findField(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL);
-            if (field != null) {
-                final String dateTimeAsString = field.getStringValue();
-                final String dateAsString = StringUtils.substringBefore(dateTimeAsString, " ");
-                if (unknownDate.equals(dateAsString)) {
-                    return Optional.of(LocalDate.of(1970, Month.JANUARY, 1));
-                }
-                final LocalDate localDate = LocalDate.parse(dateAsString, exifDateFormatter);
-                return Optional.of(localDate);
-            }
+    private void toUnsorted(Path filePath, SortContext context) {
+        final Path finalDirectory = context.getTargetDirectory().resolve("unsorted");
+        // a dry run leaves the target tree as it is
+        if (context.getPlan() == null && !Files.exists(finalDirectory)) {
+            Files.createDirectories(finalDirectory);
         }
-        return Optional.empty();
+
+        placeUnlessDuplicate(filePath, finalDirectory, "unsorted", context);
     }
 
     @SneakyThrows
-    private void sortImage(Path image, PhotoDetails details, Path targetDirectory) {
-        final LocalDate creationDate = details.getCreationDate();
-        final Path finalDirectory = targetDirectory
-                .resolve(String.valueOf(creationDate.getYear()))
-                .resolve(String.format("%02d", creationDate.getMonth().getValue()));
-        if (!Files.exists(finalDirectory)) {
+    private void toUnsortedVideos(Path filePath, SortContext context) {
+        final Path finalDirectory = context.getTargetDirectory().resolve("unsorted_videos");
+        // a dry run leaves the target tree as it is
+        if (context.getPlan() == null && !Files.exists(finalDirectory)) {
             Files.createDirectories(finalDirectory);
         }
 
-        // move the file there
-        final Path targetFile = finalDirectory.resolve(image.getFileName());
-        try {
-            Files.move(image, targetFile);
-        } catch (FileAlreadyExistsException e) {
-            toDuplicates(image, targetDirectory);
+        placeUnlessDuplicate(filePath, finalDirectory, "unsorted", context);
+    }
+
+    @SneakyThrows
+    private void toDuplicates(Path filePath, SortContext context) {
+        final Path finalDirectory = context.getTargetDirectory().resolve("duplicates");
+        // a dry run leaves the target tree as it is
+        if (context.getPlan() == null && !Files.exists(finalDirectory)) {
+            Files.createDirectories(finalDirectory);
         }
+        placed(filePath, move(filePath, finalDirectory, "duplicate", context), "duplicate", context);
     }
 
-    private Map<String, PhotoDetails> getPhotoDetails(List<Path> sources) {
-        final Map<String, PhotoDetails> result = new HashMap<>();
-        for (Path source : sources) {
-            result.putAll(getPhotoDetails(source));
+    /**
+     * Moves the file into the directory, or to duplicates if a file with the same content has
+     * already been sorted. Same-named files with different content get a numeric suffix.
+     */
+    private void placeUnlessDuplicate(Path filePath,
+                                      Path finalDirectory,
+                                      String outcome,
+                                      SortContext context) throws IOException, InterruptedException {
+        final AtomicReference<Path> placed = new AtomicReference<>();
+        final Optional<Path> existing = context.getContentIndex().placeIfUnique(filePath, () -> {
+            placed.set(move(filePath, finalDirectory, outcome, context));
+            return placed.get();
+        });
+        if (existing.isPresent()) {
+            log.debug("File {} has the same content as {}", filePath, existing.get());
+            toDuplicates(filePath, context);
+        } else {
+            // outside of the index lock, the listener may block
+            placed(filePath, placed.get(), outcome, context);
         }
-        return result;
     }
 
-    private Map<String, Path> getPhotos(List<Path> sources) {
-        final Map<String, Path> result = new HashMap<>();
-        for (Path source : sources) {
-            result.putAll(getPhotos(source));
+    private void placed(Path source, Path file, String outcome, SortContext context) throws IOException, InterruptedException {
+        if (!file.equals(source)) {
+            context.getResolvers().moved(source, file);
         }
-        return result;
+        context.getMetrics().count(ImportMetrics.SORTED_FILES, outcome);
+        context.getMetrics().getSorting().done(Files.size(file));
+        context.getListener().placed(file);
     }
 
+    /**
+     * @return where the file is now, in a dry run it stays in place
+     */
     @SneakyThrows
-    private Map<String, Path> getPhotos(Path source) {
-        final List<Path> files = Files.list(source).toList();
-        final Map<String, Path> result = new HashMap<>();
-        for (Path file : files) {
-            if (Files.isRegularFile(file) && (isImage(file) || isVideo(file)) && !isHidden(file)) {
-                final String filename = file.getFileName().toString();
-                result.put(filename, file);
-            } else if (Files.isDirectory(file)) {
-                result.putAll(getPhotos(file));
+    private Path move(Path filePath, Path targetDirectory, String outcome, SortContext context) {
+        final long started = System.nanoTime();
+        try {
+            if (context.getPlan() != null) {
+                context.getPlan().add(outcome, filePath,
+                        context.getNames().reserve(targetDirectory, filePath.getFileName().toString()));
+                return filePath;
             }
+            return moveAvoidingDuplicates(filePath, targetDirectory, context.getNames(), context.getJournal());
+        } finally {
+            context.getMetrics().record(ImportMetrics.MOVE, started);
         }
-        return result;
     }
 
+    /**
+     * Moves the file to the planned target, or next to it with a suffix if the target is taken.
+     */
     @SneakyThrows
-    private boolean isHidden(Path file) {
-        return Files.isHidden(file);
-    }
-
-    private boolean isImage(Path file) {
-        final String filename = file.getFileName().toString();
-        final String extension = StringUtils.substringAfterLast(filename, ".").toLowerCase(Locale.ROOT);
-        return imageExtensions.contains(extension);
+    private Path moveTo(Path filePath, Path target, NameRegistry names, MoveJournal journal) {
+        if (names.claim(target)) {
+            final long moveId = plan(journal, filePath, target);
+            if (createPlaceholder(target)) {
+                return moveOnto(filePath, target, journal, moveId);
+            }
+            cancel(journal, moveId);
+        }
+        return moveAvoidingDuplicates(filePath, target.getParent(), names, journal);
     }
 
-    private boolean isVideo(Path file) {
-        final String filename = file.getFileName().toString();
-        final String extension = StringUtils.substringAfterLast(filename, ".").toLowerCase(Locale.ROOT);
-        return videoExtensions.contains(extension);
+    @VisibleForTesting
+    Path moveAvoidingDuplicates(Path filePath, Path targetDirectory) {
+        return moveAvoidingDuplicates(filePath, targetDirectory, new NameRegistry(), null);
     }
 
+    /**
+     * Moves the file to the first free name the registry has for it. The name is created
+     * before the move, so workers moving in parallel and files the registry doesn't know about
+     * are never overwritten, the next name is reserved instead. The move is journaled before
+     * the name is created, a crash never leaves a placeholder the journal doesn't know.
+     *
+     * @param journal journal to record the move in, may be null
+     */
+    @VisibleForTesting
     @SneakyThrows
-    private Map<String, PhotoDetails> getPhotoDetails(Path source) {
-        final Map<String, PhotoDetails> result = new HashMap<>();
-        final List<Path> children = Files.list(source).toList();
-        for (Path child : children) {
-            if (Files.isDirectory(child)) {
-                // going deeper
-                result.putAll(getPhotoDetails(child));
-            } else if (Files.isRegularFile(child) && isDetailsFile(child)) {
-                // it's details file
-                result.putAll(readPhotoDetailsFile(child));
+    Path moveAvoidingDuplicates(Path filePath, Path targetDirectory, NameRegistry names, MoveJournal journal) {
+        if (!Files.exists(targetDirectory)) {
+            throw new RuntimeException("Target directory " + targetDirectory + " must exist");
+        }
+        final String filename = filePath.getFileName().toString();
+        while (true) {
+            final Path targetFile = names.reserve(targetDirectory, filename);
+            final long moveId = plan(journal, filePath, targetFile);
+            if (createPlaceholder(targetFile)) {
+                return moveOnto(filePath, targetFile, journal, moveId);
             }
+            // a file the registry didn't know about
+            cancel(journal, moveId);
         }
-        return result;
     }
 
-    @SneakyThrows
-    private Map<String, PhotoDetails> readPhotoDetailsFile(Path file) {
-        final Map<String, PhotoDetails> result = new HashMap<>();
+    /**
+     * @return whether the name was free, an empty file holds it now
+     */
+    private static boolean createPlaceholder(Path target) throws IOException {
+        try {
+            Files.createFile(target);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
 
-        final CSVParser parser = CSVParser.builder()
-                .setPath(file)
-                .setFormat(CSVFormat.DEFAULT.withFirstRecordAsHeader())
-                .get();
+    private static Path moveOnto(Path filePath, Path placeholder, MoveJournal journal, long moveId) throws IOException {
+        try {
+            Files.move(filePath, placeholder, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // nothing has been moved, the name is free again
+            Files.deleteIfExists(placeholder);
+            cancel(journal, moveId);
+            throw e;
+        }
+        if (journal != null) {
+            journal.done(moveId);
+        }
+        return placeholder;
+    }
 
-        try (parser) {
-            for (CSVRecord record : parser) {
-                final PhotoDetails details = new PhotoDetails()
-                        .setFilename(record.get(0))
-                        .setCreationDate(parseDate(record.get(5), record.get(7)));
+    /**
+     * @param journal journal to record the move in, may be null
+     * @return id to confirm or cancel the move with
+     */
+    private static long plan(MoveJournal journal, Path source, Path target) throws IOException {
+        return journal == null ? 0 : journal.plan(source, target);
+    }
 
-                result.put(details.getFilename(), details);
+    private static void cancel(MoveJournal journal, long moveId) throws IOException {
+        if (journal != null) {
+            journal.cancel(moveId);
+        }
+    }
+
+    /**
+     * Finishes moves which were planned but not confirmed when the run was interrupted. The
+     * target name was already reserved by the interrupted run, so no metadata is read again.
+     *
+     * @return number of completed moves
+     */
+    @VisibleForTesting
+    int completePending(MoveJournal journal) throws IOException {
+        int completed = 0;
+        for (MoveJournal.Move move : journal.pending()) {
+            final boolean sourceExists = Files.exists(move.getSource());
+            final boolean targetExists = Files.exists(move.getTarget());
+            if (sourceExists && !targetExists) {
+                Files.createDirectories(move.getTarget().getParent());
+                Files.move(move.getSource(), move.getTarget());
+            } else if (sourceExists && isPlaceholder(move.getTarget())) {
+                // the name was taken, the move itself didn't happen
+                Files.move(move.getSource(), move.getTarget(), StandardCopyOption.REPLACE_EXISTING);
+            } else if (sourceExists || !targetExists) {
+                log.warn("Can't complete move of {} to {}", move.getSource(), move.getTarget());
+                continue;
             }
+            journal.done(move.getId());
+            completed++;
         }
+        return completed;
+    }
 
-        return result;
+    private static boolean isPlaceholder(Path file) throws IOException {
+        return Files.isRegularFile(file) && Files.size(file) == 0;
     }
 
-    private LocalDate parseDate(String creationDate, String importDate) {
-        if (StringUtils.isNoneEmpty(creationDate)) {
-            final ZonedDateTime parsed = ZonedDateTime.parse(creationDate, fromDetailsDateFormatter);
-            return parsed.toLocalDate();
+    /**
+     * Moves files back to where the journal says they came from, newest first. Moves which
+     * were interrupted are reverted too if the file has reached its target. Restored files
+     * are removed from the content index, so sorting them again doesn't see them as
+     * duplicates of their former targets, and take their cached dates back along.
+     *
+     * @return number of files moved back
+     */
+    @VisibleForTesting
+    int undo(Path journalFile, Path targetDirectory) throws IOException {
+        final List<MoveJournal.Move> moves = MoveJournal.read(journalFile);
+        final Path metadataDirectory = MetadataDirectory.resolve(targetDirectory);
+        int restored = 0;
+        try (ContentIndex contentIndex = ContentIndex.open(targetDirectory, metadataDirectory.resolve(ContentIndex.FILE_NAME));
+             DateCache dateCache = DateCache.open(metadataDirectory)) {
+            for (int i = moves.size() - 1; i >= 0; i--) {
+                final MoveJournal.Move move = moves.get(i);
+                if (Files.exists(move.getTarget()) && !Files.exists(move.getSource())) {
+                    Files.createDirectories(move.getSource().getParent());
+                    Files.move(move.getTarget(), move.getSource());
+                    contentIndex.remove(move.getTarget(), Files.size(move.getSource()));
+                    dateCache.moved(move.getTarget(), move.getSource());
+                    restored++;
+                } else if (move.isDone()) {
+                    log.warn("Can't move {} back to {}", move.getTarget(), move.getSource());
+                } else if (Files.exists(move.getSource()) && isPlaceholder(move.getTarget())) {
+                    Files.delete(move.getTarget());
+                }
+            }
         }
-        if (StringUtils.isNoneEmpty(importDate)) {
-            final ZonedDateTime parsed = ZonedDateTime.parse(importDate, fromDetailsDateFormatter);
-            return parsed.toLocalDate();
+        Files.move(journalFile, journalFile.resolveSibling(journalFile.getFileName() + MoveJournal.UNDONE_SUFFIX));
+        return restored;
+    }
+
+    @SneakyThrows
+    private void sortImage(Path image, LocalDate creationDate, SortContext context) {
+        final Path finalDirectory = context.getTargetDirectory()
+                .resolve(String.valueOf(creationDate.getYear()))
+                .resolve(String.format("%02d", creationDate.getMonth().getValue()));
+        // a dry run leaves the target tree as it is
+        if (context.getPlan() == null && !Files.exists(finalDirectory)) {
+            Files.createDirectories(finalDirectory);
         }
 
-        throw new RuntimeException("Can't get creation date");
+        // move the file there
+        placeUnlessDuplicate(image, finalDirectory, "sorted", context);
     }
 
-    private boolean isDetailsFile(Path path) {
-        final String filename = path.getFileName().toString();
-        return Strings.CI.startsWith(filename, "Photo Details") &&
-                Strings.CI.endsWith(filename, ".csv");
+    private void readPhotoDetailsSafely(Path file, PhotoDetailsIndex index, ImportMetrics metrics) {
+        try {
+            final int skippedRows = readPhotoDetailsFile(file, index, metrics);
+            if (skippedRows > 0) {
+                log.warn("Skipped {} rows without a readable date in {}", skippedRows, file);
+            }
+        } catch (Exception e) {
+            log.error("Failed to read photo details file {}", file, e);
+        }
     }
 
-    @Data
-    @Accessors(chain = true)
-    class PhotoDetails {
-        private String filename;
-        private LocalDate creationDate;
+    @SneakyThrows
+    private int readPhotoDetailsFile(Path file, PhotoDetailsIndex index, ImportMetrics metrics) {
+        final long started = System.nanoTime();
+        try {
+            return detailsReader.read(file, index);
+        } finally {
+            metrics.record(ImportMetrics.CSV_PARSE, started);
+        }
     }
 }
@@ -0,0 +1,170 @@
+package dev.abarmin.icloud.importer.sort;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dates found by resolvers which read the files, so a file sorted again, ex. after a dry
+ * run or an interrupted run, isn't parsed again. Results are keyed by the resolver and the
+ * absolute path of the file and are valid while its size and modification time don't
+ * change. Files the resolver found no date in are remembered as well.
+ * <p>
+ * Results follow the files the sorter moves into the target and back on an undo, so a file
+ * sorted again is found under its current path.
+ * <p>
+ * The cache is a text file in the metadata directory of the target. Records are appended as
+ * dates are resolved and files are moved, on close the file is rewritten without the files
+ * which don't exist anymore.
+ */
+@Slf4j
+class DateCache implements Closeable {
+
+    static final String FILE_NAME = "date-cache.tsv";
+
+    private static final String NONE = "-";
+
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // names of the resolvers with results, to find every result of a file
+    private final Set<String> resolvers = ConcurrentHashMap.newKeySet();
+    private final BufferedWriter writer;
+
+    private DateCache(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            load();
+        }
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    static DateCache open(Path metadataDirectory) throws IOException {
+        return new DateCache(metadataDirectory.resolve(FILE_NAME));
+    }
+
+    /**
+     * @return result of the resolver for the file, null if it wasn't resolved before or has
+     * changed since
+     */
+    Entry get(String resolver, Path file, long size, long modified) {
+        final Entry entry = entries.get(key(resolver, file.toAbsolutePath()));
+        if (entry == null || entry.getSize() != size || entry.getModified() != modified) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @param date null if the resolver found no date
+     */
+    void put(String resolver, Path file, long size, long modified, LocalDate date) {
+        final Entry entry = new Entry(resolver, file.toAbsolutePath(), size, modified, date);
+        resolvers.add(resolver);
+        entries.put(key(resolver, entry.getFile()), entry);
+        append(record(entry));
+    }
+
+    /**
+     * Keeps the results of a file which has been moved, a move keeps its size and modification
+     * time.
+     */
+    void moved(Path source, Path target) {
+        final Path from = source.toAbsolutePath();
+        final Path to = target.toAbsolutePath();
+        for (String resolver : resolvers) {
+            final Entry entry = entries.remove(key(resolver, from));
+            if (entry != null) {
+                final Entry moved = new Entry(resolver, to, entry.getSize(), entry.getModified(), entry.getDate());
+                entries.put(key(resolver, to), moved);
+                append(record(moved));
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+        compact();
+    }
+
+    private synchronized void append(String record) {
+        try {
+            writer.write(record);
+            writer.newLine();
+        } catch (IOException e) {
+            // only a cache, the date is resolved again next time
+            log.warn("Failed to write date cache {}", file, e);
+        }
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", -1);
+                if (fields.length != 5) {
+                    log.warn("Skipping malformed line in date cache {}: {}", file, line);
+                    continue;
+                }
+                final Entry entry = new Entry(fields[0], Path.of(MoveJournal.unescape(fields[4])),
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        NONE.equals(fields[3]) ? null : LocalDate.ofEpochDay(Long.parseLong(fields[3])));
+                // later records of a file replace earlier ones
+                resolvers.add(entry.getResolver());
+                entries.put(key(entry.getResolver(), entry.getFile()), entry);
+            }
+        }
+    }
+
+    private void compact() throws IOException {
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter compacted = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Entry entry : entries.values()) {
+                if (Files.exists(entry.getFile())) {
+                    compacted.write(record(entry));
+                    compacted.newLine();
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String record(Entry entry) {
+        return entry.getResolver() + "\t" + entry.getSize() + "\t" + entry.getModified()
+                + "\t" + (entry.getDate() == null ? NONE : String.valueOf(entry.getDate().toEpochDay()))
+                + "\t" + MoveJournal.escape(entry.getFile().toString());
+    }
+
+    private static String key(String resolver, Path file) {
+        return resolver + "\t" + file;
+    }
+
+    @Data
+    static class Entry {
+        private final String resolver;
+        private final Path file;
+        private final long size;
+        private final long modified;
+        // null if the resolver found no date
+        private final LocalDate date;
+    }
+}
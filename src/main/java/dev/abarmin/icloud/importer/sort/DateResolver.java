@@ -0,0 +1,25 @@
+package dev.abarmin.icloud.importer.sort;
+
+import java.time.LocalDate;
+import java.util.Optional;
+
+/**
+ * One source of the date a media file was taken, ex. the photo details files or the EXIF
+ * of the file itself. Resolvers are asked in the order of {@code --resolvers} until one
+ * knows the date.
+ */
+@FunctionalInterface
+interface DateResolver {
+
+    /**
+     * @return creation date, empty if this resolver can't tell it for the file
+     */
+    Optional<LocalDate> resolve(SourceScanner.Entry entry);
+
+    /**
+     * @return whether files of the kind are worth asking, ex. videos have no EXIF
+     */
+    default boolean supports(SourceScanner.Kind kind) {
+        return true;
+    }
+}
@@ -0,0 +1,180 @@
+package dev.abarmin.icloud.importer.sort;
+
+import dev.abarmin.icloud.importer.metrics.ImportMetrics;
+import lombok.Data;
+import lombok.SneakyThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Date resolvers of a sorting run in the order of {@code --resolvers}, the first date found
+ * wins. Results of resolvers which read the file are kept in the {@link DateCache}, an
+ * unchanged file is only stat-ed on the next run.
+ * <p>
+ * The default order is the one the sorter always had: photo details files, then EXIF of
+ * photos and the container of videos. Filename and modification time are opt-in, they find
+ * a date for almost every file and would leave nothing in {@code unsorted}.
+ */
+class DateResolverChain {
+
+    static final String CSV = "csv";
+    static final String EXIF = "exif";
+    static final String CONTAINER = "container";
+    static final String FILENAME = "filename";
+    static final String MTIME = "mtime";
+    static final String DEFAULT_ORDER = CSV + "," + EXIF + "," + CONTAINER;
+
+    private static final List<String> NAMES = List.of(CSV, EXIF, CONTAINER, FILENAME, MTIME);
+
+    private final List<Step> steps;
+    // null when results are not kept, ex. while watching new files
+    private final DateCache cache;
+    private final ImportMetrics metrics;
+
+    DateResolverChain(List<Step> steps, DateCache cache, ImportMetrics metrics) {
+        this.steps = steps;
+        this.cache = cache;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param order comma separated resolver names, ex. {@code csv,exif,container,filename}
+     * @throws IllegalArgumentException if a name is unknown or repeated
+     */
+    static List<String> parseOrder(String order) {
+        final List<String> names = Arrays.stream(order.split(","))
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .toList();
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("At least one date resolver is needed, known are " + String.join(", ", NAMES));
+        }
+        final Set<String> seen = new HashSet<>();
+        for (String name : names) {
+            if (!NAMES.contains(name)) {
+                throw new IllegalArgumentException("Unknown date resolver %s, known are %s".formatted(name, String.join(", ", NAMES)));
+            }
+            if (!seen.add(name)) {
+                throw new IllegalArgumentException("Date resolver %s is listed twice".formatted(name));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param details dates from the photo details files of the run
+     * @param cache   cache of the target directory, null to not keep results
+     */
+    static DateResolverChain create(List<String> order, PhotoDetailsIndex details, DateCache cache, ImportMetrics metrics) {
+        final List<Step> steps = new ArrayList<>();
+        for (String name : order) {
+            steps.add(switch (name) {
+                case CSV -> new Step(name, entry -> Optional.ofNullable(
+                        details.getCreationDate(entry.getPath().getFileName().toString())), null);
+                case EXIF -> new Step(name, new ExifDateResolver(), ImportMetrics.EXIF_PARSE);
+                case CONTAINER -> new Step(name, new ContainerDateResolver(), ImportMetrics.CONTAINER_PARSE);
+                case FILENAME -> new Step(name, new FilenameDateResolver(), null);
+                case MTIME -> new Step(name, DateResolverChain::modifiedDate, null);
+                default -> throw new IllegalArgumentException("Unknown date resolver " + name);
+            });
+        }
+        return new DateResolverChain(steps, cache, metrics);
+    }
+
+    /**
+     * Date from the photo details read so far, if they come first. Files without one wait
+     * until all details files are read, a later file may still describe them.
+     */
+    Optional<LocalDate> resolveFromDetails(SourceScanner.Entry entry) {
+        final Step first = steps.get(0);
+        if (!CSV.equals(first.getName())) {
+            return Optional.empty();
+        }
+        final Optional<LocalDate> date = first.getResolver().resolve(entry);
+        date.ifPresent(ignored -> metrics.count(ImportMetrics.RESOLVED_DATES, CSV));
+        return date;
+    }
+
+    /**
+     * @return date of the first resolver which knows it, empty if none does
+     */
+    @SneakyThrows
+    Optional<LocalDate> resolve(SourceScanner.Entry entry) {
+        BasicFileAttributes attributes = null;
+        for (Step step : steps) {
+            if (!step.getResolver().supports(entry.getKind())) {
+                continue;
+            }
+            final Optional<LocalDate> date;
+            if (step.getTimer() == null) {
+                date = step.getResolver().resolve(entry);
+            } else {
+                if (attributes == null && cache != null) {
+                    attributes = Files.readAttributes(entry.getPath(), BasicFileAttributes.class);
+                }
+                date = resolveReadingFile(step, entry, attributes);
+            }
+            if (date.isPresent()) {
+                metrics.count(ImportMetrics.RESOLVED_DATES, step.getName());
+                return date;
+            }
+        }
+        metrics.count(ImportMetrics.RESOLVED_DATES, "none");
+        return Optional.empty();
+    }
+
+    /**
+     * Moves cached results of the file along with it.
+     */
+    void moved(Path source, Path target) {
+        if (cache != null) {
+            cache.moved(source, target);
+        }
+    }
+
+    private Optional<LocalDate> resolveReadingFile(Step step, SourceScanner.Entry entry, BasicFileAttributes attributes) {
+        final Path file = entry.getPath();
+        if (cache != null) {
+            final DateCache.Entry cached = cache.get(step.getName(), file, attributes.size(), attributes.lastModifiedTime().toMillis());
+            if (cached != null) {
+                metrics.count(ImportMetrics.DATE_CACHE, "hit");
+                return Optional.ofNullable(cached.getDate());
+            }
+            metrics.count(ImportMetrics.DATE_CACHE, "miss");
+        }
+        final long started = System.nanoTime();
+        final Optional<LocalDate> date;
+        try {
+            date = step.getResolver().resolve(entry);
+        } finally {
+            metrics.record(step.getTimer(), started);
+        }
+        if (cache != null) {
+            cache.put(step.getName(), file, attributes.size(), attributes.lastModifiedTime().toMillis(), date.orElse(null));
+        }
+        return date;
+    }
+
+    @SneakyThrows
+    private static Optional<LocalDate> modifiedDate(SourceScanner.Entry entry) {
+        return Optional.of(LocalDate.ofInstant(Files.getLastModifiedTime(entry.getPath()).toInstant(), ZoneId.systemDefault()));
+    }
+
+    @Data
+    static class Step {
+        private final String name;
+        private final DateResolver resolver;
+        // timer of the metadata parsing, null for resolvers which don't read the file
+        private final String timer;
+    }
+}
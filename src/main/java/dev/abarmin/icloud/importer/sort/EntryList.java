@@ -0,0 +1,90 @@
+package dev.abarmin.icloud.importer.sort;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only list of scanned entries which keeps paths relative to their source directory as
+ * UTF-8 bytes. Paths are resolved again only when an entry is read, so holding every file of
+ * a large export costs a few dozen bytes per file instead of a Path object graph.
+ */
+class EntryList {
+
+    private static final SourceScanner.Kind[] KINDS = SourceScanner.Kind.values();
+    // entry is stored with its absolute path
+    private static final byte NO_ROOT = -1;
+
+    private final List<Path> roots;
+
+    private byte[] paths = new byte[16 * 1024];
+    private int pathsLength;
+
+    private int count;
+    // path of the entry i spans from pathOffsets[i] to pathOffsets[i + 1]
+    private int[] pathOffsets = new int[1025];
+    private byte[] entryRoots = new byte[1024];
+    private byte[] kinds = new byte[1024];
+
+    EntryList(List<Path> roots) {
+        if (roots.size() > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many source directories: " + roots.size());
+        }
+        this.roots = roots;
+    }
+
+    void add(SourceScanner.Entry entry) {
+        final Path path = entry.getPath();
+        byte root = NO_ROOT;
+        for (int i = 0; i < roots.size(); i++) {
+            if (path.startsWith(roots.get(i))) {
+                root = (byte) i;
+                break;
+            }
+        }
+        final String stored = root == NO_ROOT
+                ? path.toAbsolutePath().toString()
+                : roots.get(root).relativize(path).toString();
+        final byte[] bytes = stored.getBytes(StandardCharsets.UTF_8);
+
+        if (pathsLength + bytes.length > paths.length) {
+            paths = Arrays.copyOf(paths, Math.max(paths.length * 2, pathsLength + bytes.length));
+        }
+        if (count == kinds.length) {
+            pathOffsets = Arrays.copyOf(pathOffsets, count * 2 + 1);
+            entryRoots = Arrays.copyOf(entryRoots, count * 2);
+            kinds = Arrays.copyOf(kinds, count * 2);
+        }
+        System.arraycopy(bytes, 0, paths, pathsLength, bytes.length);
+        pathsLength += bytes.length;
+
+        final int id = count++;
+        pathOffsets[id + 1] = pathsLength;
+        entryRoots[id] = root;
+        kinds[id] = (byte) entry.getKind().ordinal();
+    }
+
+    SourceScanner.Entry get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        final String stored = new String(paths, pathOffsets[index],
+                pathOffsets[index + 1] - pathOffsets[index], StandardCharsets.UTF_8);
+        final Path path = entryRoots[index] == NO_ROOT
+                ? Path.of(stored)
+                : roots.get(entryRoots[index]).resolve(stored);
+        return new SourceScanner.Entry(KINDS[kinds[index]], path);
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return approximate heap used by the list in bytes
+     */
+    long footprint() {
+        return paths.length + 4L * pathOffsets.length + entryRoots.length + kinds.length;
+    }
+}
@@ -0,0 +1,100 @@
+package dev.abarmin.icloud.importer.sort;
+
+import dev.abarmin.icloud.importer.metadata.ExifDateReader;
+import dev.abarmin.icloud.importer.metadata.IsoBmffDateReader;
+import dev.abarmin.icloud.importer.metadata.UnsupportedFormatException;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.imaging.Imaging;
+import org.apache.commons.imaging.common.ImageMetadata;
+import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
+import org.apache.commons.imaging.formats.tiff.TiffField;
+import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * {@code DateTimeOriginal} of photos. JPEG and HEIF are read by the readers of this project,
+ * which only touch the bytes they need, other formats go through commons-imaging.
+ */
+@Slf4j
+class ExifDateResolver implements DateResolver {
+
+    private final String unknownDate = "0000:00:00";
+    private final ExifDateReader exifDateReader = new ExifDateReader();
+    private final IsoBmffDateReader isoBmffDateReader = new IsoBmffDateReader();
+    private final DateTimeFormatter exifDateFormatter = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    @Override
+    public boolean supports(SourceScanner.Kind kind) {
+        return kind == SourceScanner.Kind.IMAGE;
+    }
+
+    @Override
+    public Optional<LocalDate> resolve(SourceScanner.Entry entry) {
+        return getDateFromExif(entry.getPath());
+    }
+
+    @SneakyThrows
+    private Optional<LocalDate> getDateFromExif(Path imageFile) {
+        final Optional<String> dateTime;
+        try {
+            dateTime = isHeif(imageFile)
+                    ? isoBmffDateReader.readHeifDateTimeOriginal(imageFile)
+                    : exifDateReader.readDateTimeOriginal(imageFile);
+        } catch (UnsupportedFormatException e) {
+            // not a plain JPEG, the full parser knows more formats
+            return getDateFromImageMetadata(imageFile);
+        } catch (Exception e) {
+            log.error("Error while parsing image metadata for file {}", imageFile);
+            return Optional.empty();
+        }
+        return dateTime.map(this::parseExifDate);
+    }
+
+    private boolean isHeif(Path file) {
+        final String extension = FilenameUtils.getExtension(file.getFileName().toString()).toLowerCase(Locale.ROOT);
+        return "heic".equals(extension) || "heif".equals(extension);
+    }
+
+    @SneakyThrows
+    private Optional<LocalDate> getDateFromImageMetadata(Path imageFile) {
+        final ImageMetadata metadata;
+        try {
+            metadata = Imaging.getMetadata(imageFile.toFile());
+        } catch (Exception e) {
+            log.error("Error while parsing image metadata for file {}", imageFile);
+            return Optional.empty();
+        }
+        return getCreationDate(metadata);
+    }
+
+    @SneakyThrows
+    private Optional<LocalDate> getCreationDate(ImageMetadata metadata) {
+        if (metadata instanceof JpegImageMetadata jpegMetadata) {
+            if (jpegMetadata.getExif() == null) {
+                return Optional.empty();
+            }
+            final TiffField field = jpegMetadata.getExif().findField(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL);
+            if (field != null) {
+                return Optional.of(parseExifDate(field.getStringValue()));
+            }
+        }
+        return Optional.empty();
+    }
+
+    private LocalDate parseExifDate(String dateTimeAsString) {
+        final String dateAsString = StringUtils.substringBefore(dateTimeAsString, " ");
+        if (unknownDate.equals(dateAsString)) {
+            return LocalDate.of(1970, Month.JANUARY, 1);
+        }
+        return LocalDate.parse(dateAsString, exifDateFormatter);
+    }
+}
@@ -0,0 +1,34 @@
+package dev.abarmin.icloud.importer.sort;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Date in the name of the file as cameras and messengers write it, ex.
+ * {@code IMG_20230105_102030.jpg}, {@code PXL_20230105_102030123.jpg},
+ * {@code IMG-20230105-WA0001.jpg} or {@code Screenshot 2023-01-05 at 10.20.30.png}.
+ * Needs no I/O, the file isn't opened.
+ */
+class FilenameDateResolver implements DateResolver {
+
+    // year, month and day with the same separator or none, not a part of a longer number
+    private static final Pattern DATE = Pattern.compile(
+            "(?<!\\d)((?:19|20)\\d{2})([-_.]?)(0[1-9]|1[0-2])\\2(0[1-9]|[12]\\d|3[01])(?!\\d)");
+
+    @Override
+    public Optional<LocalDate> resolve(SourceScanner.Entry entry) {
+        final Matcher matcher = DATE.matcher(entry.getPath().getFileName().toString());
+        while (matcher.find()) {
+            try {
+                return Optional.of(LocalDate.of(Integer.parseInt(matcher.group(1)),
+                        Integer.parseInt(matcher.group(3)), Integer.parseInt(matcher.group(4))));
+            } catch (DateTimeException e) {
+                // ex. 20230231, maybe a later match is a date
+            }
+        }
+        return Optional.empty();
+    }
+}
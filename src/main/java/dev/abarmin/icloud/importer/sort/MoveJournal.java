@@ -0,0 +1,189 @@
+package dev.abarmin.icloud.importer.sort;
+
+import lombok.Data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of file moves made by a sorting run. Every move is written as {@code PLAN}
+ * before the file or its target name is touched and as {@code DONE} afterwards, or as
+ * {@code CANCEL} if the target name turned out to be taken.
+ * <p>
+ * Records are written to the file straight away, so they survive the process being killed.
+ * They are forced to the disk in batches, a power loss may drop the last batch.
+ */
+class MoveJournal implements Closeable {
+
+    static final String PREFIX = "journal-";
+    static final String SUFFIX = ".log";
+    static final String UNDONE_SUFFIX = ".undone";
+
+    private static final int SYNC_BATCH = 256;
+    private static final long SYNC_INTERVAL_NANOS = 1_000_000_000L;
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private final Path file;
+    private final FileChannel channel;
+    private final List<Move> moves;
+
+    private long nextId;
+    private int unsynced;
+    private long lastSync = System.nanoTime();
+
+    private MoveJournal(Path file, List<Move> moves) throws IOException {
+        this.file = file;
+        this.moves = moves;
+        this.nextId = moves.stream().mapToLong(Move::getId).max().orElse(0) + 1;
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Starts a new journal in the metadata directory.
+     */
+    static MoveJournal create(Path metadataDirectory) throws IOException {
+        final Path file = metadataDirectory.resolve(PREFIX + LocalDateTime.now().format(TIMESTAMP) + SUFFIX);
+        return new MoveJournal(Files.createFile(file), new ArrayList<>());
+    }
+
+    /**
+     * Opens an existing journal to continue the run it describes.
+     */
+    static MoveJournal open(Path file) throws IOException {
+        return new MoveJournal(file, read(file));
+    }
+
+    /**
+     * @return the most recent journal which hasn't been undone
+     */
+    static Optional<Path> latest(Path metadataDirectory) throws IOException {
+        try (Stream<Path> files = Files.list(metadataDirectory)) {
+            return files
+                    .filter(file -> {
+                        final String name = file.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                    })
+                    .max(Comparator.comparing(file -> file.getFileName().toString()));
+        }
+    }
+
+    /**
+     * Reads all moves in the order they were planned. A record torn by a crash is ignored.
+     */
+    static List<Move> read(Path file) throws IOException {
+        final String content = Files.readString(file, StandardCharsets.UTF_8);
+        final Map<Long, Move> moves = new LinkedHashMap<>();
+        int start = 0;
+        int end;
+        while ((end = content.indexOf('\n', start)) >= 0) {
+            final String[] fields = content.substring(start, end).split("\t", -1);
+            start = end + 1;
+            final long id = Long.parseLong(fields[1]);
+            switch (fields[0]) {
+                case "PLAN" -> moves.put(id, new Move(id, Path.of(unescape(fields[2])), Path.of(unescape(fields[3]))));
+                case "DONE" -> {
+                    final Move move = moves.get(id);
+                    if (move != null) {
+                        move.setDone(true);
+                    }
+                }
+                // the target name turned out to be taken, nothing was moved
+                case "CANCEL" -> moves.remove(id);
+                default -> throw new IOException("Unknown journal record " + fields[0] + " in " + file);
+            }
+        }
+        return new ArrayList<>(moves.values());
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return moves which were planned but not confirmed when the journal was opened
+     */
+    List<Move> pending() {
+        return moves.stream().filter(move -> !move.isDone()).toList();
+    }
+
+    /**
+     * @return id to confirm the move with
+     */
+    synchronized long plan(Path source, Path target) throws IOException {
+        final long id = nextId++;
+        write("PLAN\t" + id + "\t" + escape(source.toAbsolutePath().toString()) + "\t" + escape(target.toAbsolutePath().toString()));
+        return id;
+    }
+
+    synchronized void done(long id) throws IOException {
+        write("DONE\t" + id);
+    }
+
+    synchronized void cancel(long id) throws IOException {
+        write("CANCEL\t" + id);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    private void write(String record) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        unsynced++;
+        final long now = System.nanoTime();
+        if (unsynced >= SYNC_BATCH || now - lastSync >= SYNC_INTERVAL_NANOS) {
+            channel.force(false);
+            unsynced = 0;
+            lastSync = now;
+        }
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    static String unescape(String value) {
+        final StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                final char next = value.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    @Data
+    static class Move {
+        private final long id;
+        private final Path source;
+        private final Path target;
+        private boolean done;
+    }
+}
@@ -0,0 +1,96 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Names taken in the target directories of a sorting run. A directory is listed once, when a
+ * file is first placed into it, afterwards free names are found in memory. The next suffix of
+ * every name is remembered, so the ten thousandth {@code IMG_0001.JPG} in {@code duplicates}
+ * doesn't probe the nine thousand nine hundred ninety nine names before it.
+ * <p>
+ * The registry only knows the files listed and the names reserved by this run. Callers which
+ * move files create the reserved name with {@code CREATE_NEW} and reserve another one if it
+ * exists after all, ex. created by another process or differing only in case.
+ */
+class NameRegistry {
+
+    private final Map<Path, Directory> directories = new ConcurrentHashMap<>();
+
+    /**
+     * @return free name for the file in the directory, reserved until the end of the run
+     */
+    Path reserve(Path directory, String filename) {
+        return directory(directory).reserve(filename);
+    }
+
+    /**
+     * Reserves exactly this name.
+     *
+     * @return whether the name was free
+     */
+    boolean claim(Path target) {
+        return directory(target.getParent()).claim(target.getFileName().toString());
+    }
+
+    private Directory directory(Path directory) {
+        return directories.computeIfAbsent(directory, Directory::new);
+    }
+
+    private static class Directory {
+        private final Path path;
+        private Set<String> taken;
+        // name to the suffix to try next
+        private final Map<String, Integer> nextSuffix = new HashMap<>();
+
+        Directory(Path path) {
+            this.path = path;
+        }
+
+        synchronized Path reserve(String filename) {
+            load();
+            String candidate = filename;
+            if (taken.contains(candidate)) {
+                int suffix = nextSuffix.getOrDefault(filename, 1);
+                do {
+                    candidate = FilenameUtils.getBaseName(filename) + "_" + suffix + "." + FilenameUtils.getExtension(filename);
+                    suffix++;
+                } while (taken.contains(candidate));
+                nextSuffix.put(filename, suffix);
+            }
+            taken.add(candidate);
+            return path.resolve(candidate);
+        }
+
+        synchronized boolean claim(String filename) {
+            load();
+            return taken.add(filename);
+        }
+
+        private void load() {
+            if (taken != null) {
+                return;
+            }
+            final Set<String> listed = new HashSet<>();
+            try (Stream<Path> files = Files.list(path)) {
+                files.forEach(file -> listed.add(file.getFileName().toString()));
+            } catch (NoSuchFileException e) {
+                // created later, ex. planned by a dry run
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            taken = listed;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package dev.abarmin.icloud.importer.sort;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Creation dates from photo details files, keyed by filename.
+ * <p>
+ * Filenames are stored back to back as UTF-8 in a single byte array and dates as epoch days,
+ * so an entry costs a few dozen bytes instead of a map node with a String, a LocalDate and a
+ * details object. Lookups go through an open-addressing table of entry ids.
+ */
+class PhotoDetailsIndex {
+
+    private byte[] names = new byte[16 * 1024];
+    private int namesLength;
+
+    private int count;
+    // name of the entry i spans from nameOffsets[i] to nameOffsets[i + 1]
+    private int[] nameOffsets = new int[1025];
+    private int[] epochDays = new int[1024];
+    private int[] hashes = new int[1024];
+
+    // entry id + 1, zero marks a free slot
+    private int[] table = new int[2048];
+
+    /**
+     * Adds the date or replaces it if the filename is already known.
+     */
+    synchronized void put(String filename, LocalDate creationDate) {
+        final byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        final int hash = hash(name);
+        final int slot = findSlot(name, hash);
+        if (table[slot] != 0) {
+            epochDays[table[slot] - 1] = (int) creationDate.toEpochDay();
+            return;
+        }
+        final int id = append(name, hash, (int) creationDate.toEpochDay());
+        table[slot] = id + 1;
+        if (count * 2 > table.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * @return creation date or null if the filename is unknown
+     */
+    synchronized LocalDate getCreationDate(String filename) {
+        final byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        final int slot = findSlot(name, hash(name));
+        if (table[slot] == 0) {
+            return null;
+        }
+        return LocalDate.ofEpochDay(epochDays[table[slot] - 1]);
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return approximate heap used by the index in bytes
+     */
+    synchronized long footprint() {
+        return names.length
+                + 4L * (nameOffsets.length + epochDays.length + hashes.length + table.length);
+    }
+
+    private int append(byte[] name, int hash, int epochDay) {
+        if (namesLength + name.length > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + name.length));
+        }
+        if (count == epochDays.length) {
+            nameOffsets = Arrays.copyOf(nameOffsets, count * 2 + 1);
+            epochDays = Arrays.copyOf(epochDays, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+        }
+        System.arraycopy(name, 0, names, namesLength, name.length);
+        namesLength += name.length;
+
+        final int id = count++;
+        nameOffsets[id + 1] = namesLength;
+        epochDays[id] = epochDay;
+        hashes[id] = hash;
+        return id;
+    }
+
+    private int findSlot(byte[] name, int hash) {
+        final int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0 && !matches(table[slot] - 1, name, hash)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean matches(int id, byte[] name, int hash) {
+        return hashes[id] == hash && Arrays.equals(
+                names, nameOffsets[id], nameOffsets[id + 1],
+                name, 0, name.length);
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        final int mask = table.length - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    private static int hash(byte[] name) {
+        final int hash = Arrays.hashCode(name) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
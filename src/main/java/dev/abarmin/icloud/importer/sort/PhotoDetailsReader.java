@@ -0,0 +1,154 @@
+package dev.abarmin.icloud.importer.sort;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Reads "Photo Details" CSV files from an iCloud export into a {@link PhotoDetailsIndex}.
+ */
+@Slf4j
+@Component
+class PhotoDetailsReader {
+
+    private static final String[] MONTHS = {
+            "January", "February", "March", "April", "May", "June",
+            "July", "August", "September", "October", "November", "December"
+    };
+
+    private static final int FILENAME_COLUMN = 0;
+    private static final int CREATION_DATE_COLUMN = 5;
+    private static final int IMPORT_DATE_COLUMN = 7;
+
+    private final DateTimeFormatter fromDetailsDateFormatter = DateTimeFormatter
+            .ofPattern("EEEE MMMM d,yyyy h:mm a z", Locale.ENGLISH);
+
+    /**
+     * Adds every row of the file to the index. Rows without a readable date are logged and
+     * skipped, they don't stop the import.
+     *
+     * @return number of skipped rows
+     */
+    int read(Path file, PhotoDetailsIndex index) throws IOException {
+        final CSVParser parser = CSVParser.builder()
+                .setPath(file)
+                .setFormat(CSVFormat.DEFAULT.withFirstRecordAsHeader())
+                .get();
+
+        int skipped = 0;
+        try (parser) {
+            for (CSVRecord record : parser) {
+                final LocalDate creationDate = record.size() > IMPORT_DATE_COLUMN
+                        ? parseDate(record.get(CREATION_DATE_COLUMN), record.get(IMPORT_DATE_COLUMN))
+                        : null;
+                if (creationDate == null) {
+                    log.warn("Can't get creation date from line {} of {}", record.getRecordNumber() + 1, file);
+                    skipped++;
+                    continue;
+                }
+                index.put(record.get(FILENAME_COLUMN), creationDate);
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * @return creation date, import date if the creation date is not set, or null if neither
+     * can be parsed
+     */
+    LocalDate parseDate(String creationDate, String importDate) {
+        if (StringUtils.isNoneEmpty(creationDate)) {
+            return parseDetailsDate(creationDate);
+        }
+        if (StringUtils.isNoneEmpty(importDate)) {
+            return parseDetailsDate(importDate);
+        }
+        return null;
+    }
+
+    /**
+     * Parses dates like {@code Thursday January 5,2023 10:20 AM GMT}. Only the date matters
+     * and it is already local to the zone in the string, so the time and the zone are not
+     * resolved at all. Anything unexpected goes through the full formatter.
+     */
+    private LocalDate parseDetailsDate(String date) {
+        final LocalDate fast = parseDateFast(date);
+        if (fast != null) {
+            return fast;
+        }
+        try {
+            return ZonedDateTime.parse(date, fromDetailsDateFormatter).toLocalDate();
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    static LocalDate parseDateFast(String date) {
+        // skip the day of week
+        int position = date.indexOf(' ') + 1;
+        if (position == 0) {
+            return null;
+        }
+        final int monthEnd = date.indexOf(' ', position);
+        if (monthEnd < 0) {
+            return null;
+        }
+        int month = 0;
+        for (int i = 0; i < MONTHS.length; i++) {
+            if (monthEnd - position == MONTHS[i].length() && date.regionMatches(true, position, MONTHS[i], 0, MONTHS[i].length())) {
+                month = i + 1;
+                break;
+            }
+        }
+        if (month == 0) {
+            return null;
+        }
+        position = monthEnd + 1;
+
+        int day = 0;
+        final int dayStart = position;
+        while (position < date.length() && isDigit(date.charAt(position)) && position - dayStart < 2) {
+            day = day * 10 + date.charAt(position++) - '0';
+        }
+        if (position == dayStart || position >= date.length() || date.charAt(position) != ',') {
+            return null;
+        }
+        position++;
+
+        if (position + 4 > date.length()) {
+            return null;
+        }
+        int year = 0;
+        for (int i = 0; i < 4; i++) {
+            final char c = date.charAt(position + i);
+            if (!isDigit(c)) {
+                return null;
+            }
+            year = year * 10 + c - '0';
+        }
+        if (position + 4 < date.length() && date.charAt(position + 4) != ' ') {
+            return null;
+        }
+
+        try {
+            return LocalDate.of(year, month, day);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,22 @@
+package dev.abarmin.icloud.importer.sort;
+
+import java.nio.file.Path;
+
+/**
+ * Notified about every file moved into the destination tree while sorting is still running,
+ * ex. to upload it without scanning the tree again afterwards.
+ */
+@FunctionalInterface
+public interface PlacementListener {
+
+    PlacementListener NONE = file -> {
+    };
+
+    /**
+     * Called from the sorting threads, so it must be thread-safe. Sorting waits while it
+     * blocks, which keeps a slow consumer from falling behind indefinitely.
+     *
+     * @param file final location of the file in the destination tree
+     */
+    void placed(Path file) throws InterruptedException;
+}
@@ -0,0 +1,26 @@
+package dev.abarmin.icloud.importer.sort;
+
+import dev.abarmin.icloud.importer.dedup.ContentIndex;
+import dev.abarmin.icloud.importer.metrics.ImportMetrics;
+import lombok.Data;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * State of a single sorting run shared by all workers.
+ */
+@Data
+class SortContext {
+    private final List<Path> sources;
+    private final Path targetDirectory;
+    private final ContentIndex contentIndex;
+    private final MoveJournal journal;
+    private final PlacementListener listener;
+    private final ImportMetrics metrics;
+    private final DateResolverChain resolvers;
+    // null unless it's a dry run, moves are only planned then
+    private final SortPlan plan;
+    // names taken in the target directories, shared by all workers
+    private final NameRegistry names = new NameRegistry();
+}
@@ -0,0 +1,104 @@
+package dev.abarmin.icloud.importer.sort;
+
+import lombok.Data;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Moves a sorting run would make, collected by {@code image-sort --dry-run} instead of moving
+ * anything. Target names are reserved in the {@link NameRegistry} of the run without creating
+ * them, so collisions between files of the run get the same suffixes they would get for real.
+ * <p>
+ * The plan is written as {@code outcome, size, source, target} lines, {@code image-sort --plan}
+ * makes the moves without reading any metadata again.
+ */
+class SortPlan {
+
+    static final String PREFIX = "sort-plan-";
+    static final String SUFFIX = ".tsv";
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private final ConcurrentLinkedQueue<Move> moves = new ConcurrentLinkedQueue<>();
+
+    void add(String outcome, Path source, Path target) throws IOException {
+        moves.add(new Move(outcome, Files.size(source), source, target));
+    }
+
+    List<Move> getMoves() {
+        return new ArrayList<>(moves);
+    }
+
+    /**
+     * @return number of planned files and their total size per outcome
+     */
+    Map<String, long[]> summary() {
+        final Map<String, long[]> summary = new TreeMap<>();
+        for (Move move : moves) {
+            final long[] totals = summary.computeIfAbsent(move.getOutcome(), ignored -> new long[2]);
+            totals[0]++;
+            totals[1] += move.getSize();
+        }
+        return summary;
+    }
+
+    /**
+     * @return number of files which get a different name to not overwrite another one
+     */
+    long renamed() {
+        return moves.stream()
+                .filter(move -> !move.getSource().getFileName().equals(move.getTarget().getFileName()))
+                .count();
+    }
+
+    /**
+     * Writes the plan into the metadata directory.
+     *
+     * @return the written file
+     */
+    Path write(Path metadataDirectory) throws IOException {
+        final Path file = metadataDirectory.resolve(PREFIX + LocalDateTime.now().format(TIMESTAMP) + SUFFIX);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (Move move : moves) {
+                writer.write(move.getOutcome() + "\t" + move.getSize()
+                        + "\t" + MoveJournal.escape(move.getSource().toAbsolutePath().toString())
+                        + "\t" + MoveJournal.escape(move.getTarget().toAbsolutePath().toString()));
+                writer.newLine();
+            }
+        }
+        return file;
+    }
+
+    static List<Move> read(Path file) throws IOException {
+        final List<Move> moves = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            final String[] fields = line.split("\t", -1);
+            if (fields.length != 4) {
+                throw new IOException("Malformed line in sort plan " + file + ": " + line);
+            }
+            moves.add(new Move(fields[0], Long.parseLong(fields[1]),
+                    Path.of(MoveJournal.unescape(fields[2])), Path.of(MoveJournal.unescape(fields[3]))));
+        }
+        return moves;
+    }
+
+    @Data
+    static class Move {
+        // sorted, unsorted or duplicate
+        private final String outcome;
+        private final long size;
+        private final Path source;
+        private final Path target;
+    }
+}
@@ -0,0 +1,144 @@
+package dev.abarmin.icloud.importer.sort;
+
+import lombok.Data;
+import lombok.SneakyThrows;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Strings;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Walks source directories and classifies every file in a single pass. Each directory is
+ * listed by its own fork-join task, so wide export trees are scanned on all cores and
+ * entries reach the consumer while the walk is still running.
+ */
+@Component
+public class SourceScanner {
+
+    private final List<String> imageExtensions = List.of("jpg", "heic", "heif", "gif", "png", "bmp", "jpeg", "dng", "webp", "avif", "tiff", "tif");
+    private final List<String> videoExtensions = List.of("mp4", "mov", "avi", "m4v", "mpg", "3gp");
+
+    /**
+     * Starts scanning in the background. The consumer is called concurrently from the scanning
+     * threads, so it must be thread-safe.
+     *
+     * @return future which completes once every directory has been listed
+     */
+    public CompletableFuture<Void> scan(List<Path> sources, Consumer<Entry> consumer) {
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        final RecursiveAction root = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(sources.stream()
+                        .map(source -> new DirectoryTask(source, consumer))
+                        .toList());
+            }
+        };
+        return CompletableFuture.runAsync(() -> pool.invoke(root), pool)
+                .whenComplete((ignored, error) -> pool.shutdown());
+    }
+
+    boolean isImage(Path file) {
+        return imageExtensions.contains(getExtension(file));
+    }
+
+    boolean isVideo(Path file) {
+        return videoExtensions.contains(getExtension(file));
+    }
+
+    private String getExtension(Path file) {
+        final String filename = file.getFileName().toString();
+        return StringUtils.substringAfterLast(filename, ".").toLowerCase(Locale.ROOT);
+    }
+
+    private boolean isDetailsFile(Path path) {
+        final String filename = path.getFileName().toString();
+        return Strings.CI.startsWith(filename, "Photo Details") &&
+                Strings.CI.endsWith(filename, ".csv");
+    }
+
+    @SneakyThrows
+    private boolean isHidden(Path file) {
+        return Files.isHidden(file);
+    }
+
+    /**
+     * @return kind of the file or null if it is not imported
+     */
+    Kind classify(Path file) {
+        if (isDetailsFile(file)) {
+            return Kind.DETAILS;
+        }
+        if (isHidden(file)) {
+            return null;
+        }
+        if (isImage(file)) {
+            return Kind.IMAGE;
+        }
+        if (isVideo(file)) {
+            return Kind.VIDEO;
+        }
+        return null;
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private final Path directory;
+        private final Consumer<Entry> consumer;
+
+        DirectoryTask(Path directory, Consumer<Entry> consumer) {
+            this.directory = directory;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            final List<DirectoryTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    // one stat per entry instead of separate isDirectory / isRegularFile calls
+                    final BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
+                    if (attributes.isDirectory()) {
+                        final DirectoryTask task = new DirectoryTask(child, consumer);
+                        task.fork();
+                        subdirectories.add(task);
+                    } else if (attributes.isRegularFile()) {
+                        final Kind kind = classify(child);
+                        if (kind != null) {
+                            consumer.accept(new Entry(kind, child));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't list directory " + directory, e);
+            }
+            for (DirectoryTask subdirectory : subdirectories) {
+                subdirectory.join();
+            }
+        }
+    }
+
+    public enum Kind {
+        DETAILS,
+        IMAGE,
+        VIDEO
+    }
+
+    @Data
+    public static class Entry {
+        private final Kind kind;
+        private final Path path;
+    }
+}
@@ -0,0 +1,143 @@
+package dev.abarmin.icloud.importer.sort;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Reports files which appear in a directory tree once they have settled, i.e. nothing has
+ * happened to them for the quiet period. Unzipping a batch touches a file many times, it is
+ * reported once when the extraction is over.
+ * <p>
+ * The tree is walked only when the watcher starts and when the file system drops events,
+ * otherwise the watcher blocks on the {@link WatchService} and costs nothing while idle.
+ */
+@Slf4j
+class SourceWatcher implements Closeable {
+
+    private final Path root;
+    private final long quietNanos;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    // file to the time it settles, unless another event comes first
+    private final Map<Path, Long> pending = new HashMap<>();
+
+    /**
+     * Files already in the tree are reported by the first call of {@link #next()}.
+     */
+    SourceWatcher(Path root, Duration quietPeriod) throws IOException {
+        this.root = root;
+        this.quietNanos = quietPeriod.toNanos();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        register(root);
+    }
+
+    /**
+     * Waits until some files have settled.
+     *
+     * @return settled files which still exist, at least one
+     */
+    List<Path> next() throws InterruptedException, IOException {
+        while (true) {
+            final List<Path> settled = settled();
+            if (!settled.isEmpty()) {
+                return settled;
+            }
+            final WatchKey key;
+            if (pending.isEmpty()) {
+                key = watchService.take();
+            } else {
+                final long wait = pending.values().stream().mapToLong(Long::longValue).min().getAsLong() - System.nanoTime();
+                key = watchService.poll(Math.max(wait, 0), TimeUnit.NANOSECONDS);
+            }
+            if (key != null) {
+                handle(key);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void handle(WatchKey key) throws IOException {
+        final Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                log.warn("Missed changes in {}, looking through it again", root);
+                register(root);
+                continue;
+            }
+            final Path path = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                pending.remove(path);
+            } else if (Files.isDirectory(path)) {
+                // files created before the directory is registered would be missed otherwise
+                register(path);
+            } else {
+                pending.put(path, System.nanoTime() + quietNanos);
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    /**
+     * Watches the directory and its subdirectories, the files in them start waiting to settle.
+     */
+    private void register(Path directory) throws IOException {
+        final long settles = System.nanoTime() + quietNanos;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (Files.isDirectory(path)) {
+                    directories.put(path.register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE), path);
+                } else {
+                    pending.putIfAbsent(path, settles);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            // ex. a directory removed meanwhile, the registered ones still report their changes
+            log.warn("{} changed while looking through it: {}", directory, e.getMessage());
+        } catch (ClosedWatchServiceException e) {
+            throw new IOException("Watcher of %s is closed".formatted(root), e);
+        }
+    }
+
+    private List<Path> settled() {
+        final long now = System.nanoTime();
+        final List<Path> settled = new ArrayList<>();
+        for (Iterator<Map.Entry<Path, Long>> entries = pending.entrySet().iterator(); entries.hasNext(); ) {
+            final Map.Entry<Path, Long> entry = entries.next();
+            if (entry.getValue() - now <= 0) {
+                entries.remove();
+                if (Files.isRegularFile(entry.getKey())) {
+                    settled.add(entry.getKey());
+                }
+            }
+        }
+        return settled;
+    }
+}
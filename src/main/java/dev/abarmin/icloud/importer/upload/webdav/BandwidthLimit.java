@@ -0,0 +1,60 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Token bucket shared by every upload, so all of them together stay under the configured
+ * number of bytes per second.
+ */
+class BandwidthLimit {
+
+    static final BandwidthLimit UNLIMITED = new BandwidthLimit(null);
+
+    private static final Pattern VALUE = Pattern.compile("(\\d+(?:\\.\\d+)?)\\s*([kmg]?)b?(?:/s)?");
+
+    // null when unlimited
+    private final RateLimiter limiter;
+
+    private BandwidthLimit(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    static BandwidthLimit of(long bytesPerSecond) {
+        return bytesPerSecond <= 0 ? UNLIMITED : new BandwidthLimit(RateLimiter.create(bytesPerSecond));
+    }
+
+    /**
+     * Parses values like {@code 40MB/s}, {@code 500k} or {@code 1.5GB}, units are decimal.
+     * Zero means no limit.
+     */
+    static BandwidthLimit parse(String value) {
+        final Matcher matcher = VALUE.matcher(value.trim().toLowerCase(Locale.ROOT));
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Can't parse bandwidth %s, expected something like 40MB/s".formatted(value));
+        }
+        final double multiplier = switch (matcher.group(2)) {
+            case "k" -> 1e3;
+            case "m" -> 1e6;
+            case "g" -> 1e9;
+            default -> 1;
+        };
+        return of((long) (Double.parseDouble(matcher.group(1)) * multiplier));
+    }
+
+    /**
+     * Waits until the bytes may be sent.
+     */
+    void acquire(int bytes) {
+        if (limiter != null && bytes > 0) {
+            limiter.acquire(bytes);
+        }
+    }
+
+    boolean isUnlimited() {
+        return limiter == null;
+    }
+}
@@ -0,0 +1,73 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+
+/**
+ * Checksums in the format Nextcloud uses for the {@code OC-Checksum} header and the
+ * {@code oc:checksums} property, ex. {@code SHA1:0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33}.
+ */
+final class Checksums {
+
+    private static final String ALGORITHM = "SHA1";
+
+    private Checksums() {
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Completes the digest, it can't be updated afterwards.
+     */
+    static String format(MessageDigest digest) {
+        return ALGORITHM + ":" + HexFormat.of().formatHex(digest.digest());
+    }
+
+    static String of(Path file) throws IOException {
+        final MessageDigest digest = newDigest();
+        update(digest, file, 0, Files.size(file));
+        return format(digest);
+    }
+
+    /**
+     * Adds a region of the file to the digest.
+     */
+    static void update(MessageDigest digest, Path file, long offset, long length) throws IOException {
+        try (InputStream content = new FileRegionEntity(file, offset, length, BandwidthLimit.UNLIMITED, null).getContent()) {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = content.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * @param checksums value of {@code oc:checksums}, ex. {@code SHA1:abc MD5:def ADLER32:123}
+     * @return checksum of the algorithm used here, or null if the server has none
+     */
+    static String find(String checksums) {
+        if (checksums == null) {
+            return null;
+        }
+        for (String checksum : checksums.trim().split("\\s+")) {
+            if (checksum.toUpperCase(Locale.ROOT).startsWith(ALGORITHM + ":")) {
+                return ALGORITHM + ":" + checksum.substring(ALGORITHM.length() + 1).toLowerCase(Locale.ROOT);
+            }
+        }
+        return null;
+    }
+}
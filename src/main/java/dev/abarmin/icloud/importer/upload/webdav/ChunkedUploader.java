@@ -0,0 +1,192 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.github.sardine.Sardine;
+import com.google.common.hash.Hashing;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads big files in chunks using the Nextcloud chunked upload protocol: chunks are put into
+ * a temporary upload folder and assembled by moving its {@code .file} to the destination.
+ * <p>
+ * Every uploaded chunk is recorded in a state file, so a transfer which was interrupted resumes
+ * from the first missing chunk on the next run as long as the file hasn't changed.
+ * <p>
+ * The checksum of the file is computed while the chunks are sent and passed to the server with
+ * the final move, chunks uploaded by an earlier run are hashed locally.
+ */
+@Slf4j
+class ChunkedUploader {
+
+    private static final Pattern FILES_URL = Pattern.compile("^(.*/remote\\.php/dav/)files/([^/]+)/");
+    private static final String TRANSFER = "T";
+    private static final String CHUNK = "C";
+
+    private final Sardine sardine;
+    private final String uploadsUrl;
+    private final Path stateDirectory;
+    private final long chunkSize;
+    private final long threshold;
+    private final BandwidthLimit bandwidth;
+
+    ChunkedUploader(Sardine sardine, String uploadsUrl, Path stateDirectory, long chunkSize, long threshold,
+                    BandwidthLimit bandwidth) {
+        this.sardine = sardine;
+        this.bandwidth = bandwidth;
+        this.uploadsUrl = uploadsUrl;
+        this.stateDirectory = stateDirectory;
+        this.chunkSize = chunkSize;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return folder for temporary uploads of the user the destination belongs to, if the
+     * destination is a Nextcloud files URL
+     */
+    static Optional<String> uploadsUrl(String destinationUrl) {
+        final Matcher matcher = FILES_URL.matcher(destinationUrl);
+        if (!matcher.find()) {
+            return Optional.empty();
+        }
+        return Optional.of(matcher.group(1) + "uploads/" + matcher.group(2) + "/");
+    }
+
+    /**
+     * @return whether the file is big enough to be uploaded in chunks
+     */
+    boolean accepts(long size) {
+        return size >= threshold;
+    }
+
+    /**
+     * @return checksum of the uploaded content
+     */
+    String upload(Path file, String url, long size, long modified) throws IOException {
+        Files.createDirectories(stateDirectory);
+        final Path stateFile = stateDirectory.resolve(Hashing.sha256()
+                .hashString(url, StandardCharsets.UTF_8)
+                .toString()
+                .substring(0, 16) + ".chunks");
+        final int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+        final Optional<Transfer> resumed = resume(stateFile, size, modified);
+        final Transfer transfer;
+        if (resumed.isPresent()) {
+            transfer = resumed.get();
+            log.info("Resume upload of {}, {} of {} chunks already uploaded", file, transfer.getCompleted().cardinality(), chunks);
+        } else {
+            transfer = new Transfer(uploadsUrl + "icloud-importer-" + UUID.randomUUID() + "/");
+            log.debug("Start chunked upload of {} to {}", file, transfer.getUrl());
+            createDirectory(transfer.getUrl(), url);
+            writeState(stateFile, List.of(TRANSFER + "\t" + transfer.getUrl() + "\t" + size + "\t" + modified + "\t" + chunkSize),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        final Map<String, String> headers = Map.of("Destination", url);
+        MessageDigest digest = Checksums.newDigest();
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            final long offset = chunk * chunkSize;
+            final long length = Math.min(chunkSize, size - offset);
+            if (transfer.getCompleted().get(chunk)) {
+                Checksums.update(digest, file, offset, length);
+                continue;
+            }
+            final FileRegionEntity entity = new FileRegionEntity(file, offset, length, bandwidth, digest);
+            entity.put(sardine, transfer.getUrl() + chunkName(chunk), headers);
+            digest = entity.getDigest();
+            if (digest == null) {
+                throw new IOException("Chunk %s of %s was not sent completely".formatted(chunk + 1, file));
+            }
+            writeState(stateFile, List.of(CHUNK + "\t" + chunk), StandardOpenOption.APPEND);
+        }
+
+        final String checksum = Checksums.format(digest);
+        sardine.move(transfer.getUrl() + ".file", url, true, Map.of(
+                "Destination", url,
+                "OC-Total-Length", Long.toString(size),
+                "OC-Checksum", checksum
+        ));
+        Files.deleteIfExists(stateFile);
+        return checksum;
+    }
+
+    /**
+     * Creates the upload folder, telling the server where the file goes. Without the
+     * {@code Destination} Nextcloud treats the folder as a legacy upload, other clients than
+     * {@link WebDavClient} can't send it.
+     */
+    private void createDirectory(String uploadUrl, String destination) throws IOException {
+        if (sardine instanceof WebDavClient client) {
+            client.createDirectory(uploadUrl, Map.of("Destination", destination));
+        } else {
+            sardine.createDirectory(uploadUrl);
+        }
+    }
+
+    private Optional<Transfer> resume(Path stateFile, long size, long modified) throws IOException {
+        if (!Files.exists(stateFile)) {
+            return Optional.empty();
+        }
+        final String content = Files.readString(stateFile, StandardCharsets.UTF_8);
+        final List<String> lines = new ArrayList<>(content.lines().toList());
+        if (!content.endsWith("\n") && !lines.isEmpty()) {
+            // torn by a crash, the chunk is uploaded again
+            lines.remove(lines.size() - 1);
+        }
+        final String expected = "\t" + size + "\t" + modified + "\t" + chunkSize;
+        if (lines.isEmpty() || !lines.get(0).startsWith(TRANSFER + "\t") || !lines.get(0).endsWith(expected)) {
+            log.info("File changed since the interrupted upload, starting over");
+            return Optional.empty();
+        }
+        final Transfer transfer = new Transfer(lines.get(0).substring(2, lines.get(0).length() - expected.length()));
+        if (!sardine.exists(transfer.getUrl())) {
+            // the server cleans up abandoned uploads after a while
+            log.info("Upload folder {} has expired, starting over", transfer.getUrl());
+            return Optional.empty();
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            final String[] fields = line.split("\t");
+            if (fields.length == 2 && CHUNK.equals(fields[0])) {
+                transfer.getCompleted().set(Integer.parseInt(fields[1]));
+            }
+        }
+        return Optional.of(transfer);
+    }
+
+    private void writeState(Path stateFile, List<String> lines, StandardOpenOption... options) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(stateFile, StandardCharsets.UTF_8, options)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Chunks are assembled in the order of their names, so the names are padded.
+     */
+    private static String chunkName(int chunk) {
+        return "%05d".formatted(chunk + 1);
+    }
+
+    @Data
+    static class Transfer {
+        private final String url;
+        private final BitSet completed = new BitSet();
+    }
+}
@@ -0,0 +1,89 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops uploads for a while after too many failures in a row, so a server which is down is not
+ * hammered by every worker. Once the pause is over a single upload probes the server, the rest
+ * wait until it succeeds. A probe which fails for reasons unrelated to the server, ex. a missing
+ * file, lets the next upload probe instead.
+ */
+@Slf4j
+class CircuitBreaker {
+
+    static final CircuitBreaker DISABLED = new CircuitBreaker(Integer.MAX_VALUE, Duration.ZERO);
+
+    private final int threshold;
+    private final long openNanos;
+    private final LongSupplier nanoTime;
+
+    private int consecutiveFailures;
+    private long openUntil;
+    private boolean probing;
+
+    CircuitBreaker(int threshold, Duration openFor) {
+        this(threshold, openFor, System::nanoTime);
+    }
+
+    CircuitBreaker(int threshold, Duration openFor, LongSupplier nanoTime) {
+        this.threshold = threshold;
+        this.openNanos = openFor.toNanos();
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Waits until requests are allowed again.
+     */
+    synchronized void awaitClosed() throws InterruptedException {
+        while (isOpen()) {
+            final long now = nanoTime.getAsLong();
+            if (now - openUntil < 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, openUntil - now);
+            } else if (!probing) {
+                probing = true;
+                return;
+            } else {
+                // the probe reports back through succeeded(), failed() or ignored()
+                wait();
+            }
+        }
+    }
+
+    synchronized void succeeded() {
+        if (isOpen()) {
+            log.info("Server is responding again");
+        }
+        consecutiveFailures = 0;
+        probing = false;
+        notifyAll();
+    }
+
+    synchronized void failed() {
+        consecutiveFailures++;
+        if (consecutiveFailures == threshold || probing) {
+            log.warn("{} requests failed in a row, pausing uploads for {} s", consecutiveFailures, TimeUnit.NANOSECONDS.toSeconds(openNanos));
+            openUntil = nanoTime.getAsLong() + openNanos;
+            probing = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Records a request which failed without telling anything about the server, ex. a missing
+     * file or a permanent error. A probe is over, another request may probe.
+     */
+    synchronized void ignored() {
+        if (probing) {
+            probing = false;
+            notifyAll();
+        }
+    }
+
+    synchronized boolean isOpen() {
+        return consecutiveFailures >= threshold;
+    }
+}
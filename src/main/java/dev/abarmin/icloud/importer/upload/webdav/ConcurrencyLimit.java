@@ -0,0 +1,138 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Number of uploads allowed to run at once, adjusted to what the server and the network keep
+ * up with. The limit is reviewed after every window of {@code limit} completed uploads: it
+ * grows by one while that doesn't make uploads slower without making the whole run faster,
+ * shrinks by one when it does, and is halved on server errors and timeouts.
+ */
+@Slf4j
+class ConcurrencyLimit {
+
+    // changes smaller than this are noise
+    private static final double TOLERANCE = 0.1;
+    // small files are dominated by the request itself, not by their size
+    private static final long MIN_BYTES = 64 * 1024;
+
+    private final int min;
+    private final int max;
+    private final LongSupplier nanoTime;
+
+    private int limit;
+    private int inFlight;
+
+    private long windowStart;
+    private int windowCompleted;
+    private long windowBytes;
+    private double windowNanosPerByte;
+    private boolean windowFailed;
+
+    private double previousThroughput;
+    private double previousNanosPerByte;
+
+    ConcurrencyLimit(int min, int initial, int max) {
+        this(min, initial, max, System::nanoTime);
+    }
+
+    ConcurrencyLimit(int min, int initial, int max, LongSupplier nanoTime) {
+        if (min < 1 || min > initial || initial > max) {
+            throw new IllegalArgumentException("Expected 1 <= min <= initial <= max, got %d, %d, %d".formatted(min, initial, max));
+        }
+        this.min = min;
+        this.max = max;
+        this.limit = initial;
+        this.nanoTime = nanoTime;
+        this.windowStart = nanoTime.getAsLong();
+    }
+
+    /**
+     * Waits until one more upload is allowed to start.
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Records an upload which finished successfully.
+     */
+    synchronized void succeeded(long bytes, long nanos) {
+        release();
+        windowCompleted++;
+        windowBytes += bytes;
+        windowNanosPerByte += (double) nanos / Math.max(bytes, MIN_BYTES);
+        if (windowCompleted >= limit) {
+            review();
+        }
+    }
+
+    /**
+     * Records an upload which failed because the server or the network is overloaded, the
+     * limit is halved once per window no matter how many uploads fail at the same time.
+     */
+    synchronized void overloaded() {
+        release();
+        if (!windowFailed) {
+            windowFailed = true;
+            setLimit(Math.max(min, limit / 2));
+        }
+    }
+
+    /**
+     * Records an upload which failed for reasons unrelated to the load, e.g. a missing file.
+     */
+    synchronized void ignored() {
+        release();
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    int getMax() {
+        return max;
+    }
+
+    private void review() {
+        final long now = nanoTime.getAsLong();
+        final double throughput = (double) windowBytes / Math.max(now - windowStart, 1);
+        final double nanosPerByte = windowNanosPerByte / windowCompleted;
+        if (!windowFailed) {
+            final boolean faster = throughput > previousThroughput * (1 + TOLERANCE);
+            final boolean slower = nanosPerByte > previousNanosPerByte * (1 + TOLERANCE);
+            if (previousThroughput > 0 && slower && !faster) {
+                // more parallel uploads only queue up somewhere
+                setLimit(Math.max(min, limit - 1));
+            } else {
+                setLimit(Math.min(max, limit + 1));
+            }
+        }
+        previousThroughput = throughput;
+        previousNanosPerByte = nanosPerByte;
+
+        windowStart = now;
+        windowCompleted = 0;
+        windowBytes = 0;
+        windowNanosPerByte = 0;
+        windowFailed = false;
+    }
+
+    private void setLimit(int limit) {
+        if (limit != this.limit) {
+            log.debug("Upload concurrency changed from {} to {}", this.limit, limit);
+            this.limit = limit;
+            notifyAll();
+        }
+    }
+
+    private void release() {
+        inFlight--;
+        notifyAll();
+    }
+}
@@ -0,0 +1,112 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import dev.abarmin.icloud.importer.MetadataDirectory;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Files and folders which still failed after every retry. They are written next to the upload
+ * manifest at the end of a run, so {@code --retry-failed} can upload them again without walking
+ * the whole tree.
+ */
+@Slf4j
+class DeadLetters {
+
+    private final Path file;
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+
+    private DeadLetters(Path file) {
+        this.file = file;
+    }
+
+    static DeadLetters open(Path source, String destinationUrl) throws IOException {
+        return new DeadLetters(MetadataDirectory.resolve(source)
+                .resolve("upload-failed-" + UploadManifest.destinationKey(destinationUrl) + ".tsv"));
+    }
+
+    void file(Path file, String url, Exception error) {
+        add(new Entry(Kind.FILE, file, url, String.valueOf(error.getMessage())));
+    }
+
+    void folder(Path folder, String url, Exception error) {
+        add(new Entry(Kind.FOLDER, folder, url, String.valueOf(error.getMessage())));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return entries written by the previous run
+     */
+    List<Entry> read() throws IOException {
+        final List<Entry> previous = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return previous;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            final String[] fields = line.split("\t", 4);
+            if (fields.length == 4) {
+                previous.add(new Entry(Kind.valueOf(fields[0]), Path.of(fields[3]), fields[1], fields[2]));
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * Replaces the previous entries with the ones of this run, the file is removed if nothing
+     * failed.
+     */
+    void write() throws IOException {
+        if (entries.isEmpty()) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Entry entry : entries) {
+                writer.write(entry.getKind() + "\t" + entry.getUrl() + "\t" + entry.getError() + "\t" + entry.getPath());
+                writer.newLine();
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void add(Entry entry) {
+        if (entry.getPath().toString().indexOf('\n') >= 0) {
+            log.warn("Can't record failed upload of {}", entry.getPath());
+            return;
+        }
+        // the error is informational, it must not break the line
+        entries.add(new Entry(entry.getKind(), entry.getPath(), entry.getUrl(),
+                entry.getError().replaceAll("[\\t\\r\\n]+", " ")));
+    }
+
+    enum Kind {
+        FILE,
+        FOLDER
+    }
+
+    @Data
+    static class Entry {
+        private final Kind kind;
+        private final Path path;
+        private final String url;
+        private final String error;
+    }
+}
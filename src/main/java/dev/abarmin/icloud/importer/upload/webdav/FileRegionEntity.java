@@ -0,0 +1,172 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.github.sardine.Sardine;
+import com.github.sardine.impl.SardineImpl;
+import com.google.common.io.ByteStreams;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+
+/**
+ * Request body with a region of a file, read straight from a {@link FileChannel} into a large
+ * per-thread buffer and throttled by the {@link BandwidthLimit}.
+ * <p>
+ * Unlike a stream entity its length is known, so no chunked transfer encoding is needed, and it
+ * is repeatable, so the client can send it again after an authentication challenge.
+ * <p>
+ * Given a digest the entity also hashes the bytes on their way to the server, so checksums don't
+ * need another pass over the file.
+ */
+class FileRegionEntity extends AbstractHttpEntity {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // reused by every upload on the worker thread instead of a buffer per request
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+
+    private final Path file;
+    private final long offset;
+    private final long length;
+    private final BandwidthLimit bandwidth;
+    private final MessageDigest before;
+
+    private volatile MessageDigest after;
+
+    FileRegionEntity(Path file, long offset, long length, BandwidthLimit bandwidth) {
+        this(file, offset, length, bandwidth, null);
+    }
+
+    /**
+     * @param before digest of the data preceding the region, or null if nothing is hashed. It
+     *               is not modified, so the entity can be sent again.
+     */
+    FileRegionEntity(Path file, long offset, long length, BandwidthLimit bandwidth, MessageDigest before) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.bandwidth = bandwidth;
+        this.before = before;
+        setContentType("application/octet-stream");
+    }
+
+    /**
+     * @return digest of the data up to the end of the region, or null if the region hasn't been
+     * read completely
+     */
+    MessageDigest getDigest() {
+        return after;
+    }
+
+    /**
+     * Puts the region to the URL. Entity bodies are not part of the {@link Sardine} interface,
+     * other implementations get a stream of the region.
+     */
+    void put(Sardine sardine, String url, Map<String, String> headers) throws IOException {
+        if (sardine instanceof SardineImpl client) {
+            client.put(url, this, headers);
+            return;
+        }
+        try (InputStream content = getContent()) {
+            if (headers.isEmpty()) {
+                sardine.put(url, content);
+            } else {
+                sardine.put(url, content, headers);
+            }
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        channel.position(offset);
+        final InputStream content = ByteStreams.limit(Channels.newInputStream(channel), length);
+        if (before == null) {
+            return content;
+        }
+        final MessageDigest digest = copy(before);
+        return new DigestInputStream(content, digest) {
+            private long digested;
+
+            @Override
+            public int read() throws IOException {
+                final int value = super.read();
+                if (value >= 0) {
+                    completed(++digested);
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int read = super.read(b, off, len);
+                if (read > 0) {
+                    completed(digested += read);
+                }
+                return read;
+            }
+
+            private void completed(long digested) {
+                if (digested == length) {
+                    after = digest;
+                }
+            }
+        };
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final ByteBuffer buffer = BUFFERS.get();
+        final MessageDigest digest = before == null ? null : copy(before);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                final int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File %s is shorter than expected".formatted(file));
+                }
+                bandwidth.acquire(read);
+                out.write(buffer.array(), 0, read);
+                if (digest != null) {
+                    digest.update(buffer.array(), 0, read);
+                }
+                position += read;
+                remaining -= read;
+            }
+        }
+        after = digest;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    private static MessageDigest copy(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("Digest %s can't be copied".formatted(digest.getAlgorithm()), e);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.github.sardine.impl.SardineException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed request is worth repeating and when. Delays grow exponentially
+ * with full jitter, so requests which failed together don't come back together.
+ */
+@Slf4j
+class RetryPolicy {
+
+    static final RetryPolicy NONE = new RetryPolicy(0, 0, Duration.ZERO, Duration.ZERO);
+
+    private final int transientAttempts;
+    private final int throttledAttempts;
+    private final Duration baseDelay;
+    private final Duration maxDelay;
+
+    RetryPolicy(int transientAttempts, int throttledAttempts, Duration baseDelay, Duration maxDelay) {
+        this.transientAttempts = transientAttempts;
+        this.throttledAttempts = throttledAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    enum Failure {
+        /**
+         * Repeating won't help, ex. access denied or the local file is gone.
+         */
+        PERMANENT,
+        /**
+         * Network errors, locked resources and server errors.
+         */
+        TRANSIENT,
+        /**
+         * The server asked to slow down, waits start from a longer delay.
+         */
+        THROTTLED
+    }
+
+    static Failure classify(Exception e) {
+        if (e instanceof SardineException sardineException) {
+            return switch (sardineException.getStatusCode()) {
+                case 429, 503 -> Failure.THROTTLED;
+                case 408, 423, 500, 502, 504 -> Failure.TRANSIENT;
+                default -> Failure.PERMANENT;
+            };
+        }
+        if (e instanceof NoSuchFileException || e instanceof FileNotFoundException) {
+            return Failure.PERMANENT;
+        }
+        // connection resets, timeouts and other transport errors
+        return e instanceof IOException ? Failure.TRANSIENT : Failure.PERMANENT;
+    }
+
+    /**
+     * @param attempt number of attempts made so far, starting with 1
+     * @return delay before the next attempt or empty if the request should not be repeated
+     */
+    Optional<Duration> nextDelay(Exception e, int attempt) {
+        return nextDelay(e, attempt, ThreadLocalRandom.current());
+    }
+
+    Optional<Duration> nextDelay(Exception e, int attempt, Random random) {
+        final Failure failure = classify(e);
+        final int attempts = switch (failure) {
+            case PERMANENT -> 0;
+            case TRANSIENT -> transientAttempts;
+            case THROTTLED -> throttledAttempts;
+        };
+        if (attempt >= attempts) {
+            return Optional.empty();
+        }
+        // throttled requests start one step further, as if they had failed once more
+        final int exponent = Math.min(attempt - 1 + (failure == Failure.THROTTLED ? 1 : 0), 30);
+        final long cap = Math.min(maxDelay.toMillis(), baseDelay.toMillis() << exponent);
+        return Optional.of(Duration.ofMillis(random.nextLong(cap + 1)));
+    }
+
+    /**
+     * Runs the action on the calling thread until it succeeds or the policy gives up.
+     */
+    <T> T call(String description, Action<T> action) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return action.call();
+            } catch (IOException e) {
+                final Optional<Duration> delay = nextDelay(e, attempt);
+                if (delay.isEmpty()) {
+                    throw e;
+                }
+                log.warn("Failed to {}, attempt {}, retrying in {} ms: {}", description, attempt, delay.get().toMillis(), e.getMessage());
+                Thread.sleep(delay.get().toMillis());
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface Action<T> {
+        T call() throws IOException;
+    }
+}
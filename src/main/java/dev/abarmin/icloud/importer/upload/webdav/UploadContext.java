@@ -0,0 +1,38 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.github.sardine.Sardine;
+import dev.abarmin.icloud.importer.metrics.ImportMetrics;
+import lombok.Data;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of a single upload run shared by the listing threads, or by the sorting threads when
+ * files are uploaded as they are sorted.
+ */
+@Data
+class UploadContext {
+    private final Sardine sardine;
+    private final UploadStage uploads;
+    // null when files are uploaded as they are sorted, nothing is listed then
+    private final ExecutorService listingExecutor;
+    // one party per folder which is still being listed, plus the thread waiting for the run
+    private final Phaser folders;
+    private final UploadManifest manifest;
+    // list every remote folder instead of trusting the manifest
+    private final boolean verifyRemote;
+    private final RetryPolicy retryPolicy;
+    private final DeadLetters deadLetters;
+    private final ImportMetrics metrics;
+    // null unless it's a dry run, nothing is created or uploaded then
+    private final UploadPlan plan;
+    private final AtomicInteger failedFolders = new AtomicInteger();
+    // remote URLs of the folders created for sorted files so far, failed if MKCOL failed
+    private final Map<Path, CompletableFuture<String>> remoteFolders = new ConcurrentHashMap<>();
+}
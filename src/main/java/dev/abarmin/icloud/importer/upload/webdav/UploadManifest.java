@@ -0,0 +1,248 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.google.common.hash.Hashing;
+import dev.abarmin.icloud.importer.MetadataDirectory;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local record of what has been uploaded from a source directory to a WebDAV destination.
+ * Files are identified by their path relative to the source and considered uploaded while
+ * their size and modification time don't change, so unchanged folders need no PROPFIND.
+ * <p>
+ * The manifest is a text file in the metadata directory of the source, one per destination.
+ * Records are appended as uploads finish and the file is compacted when it is closed.
+ * <p>
+ * Files uploaded by this tool also keep the checksum of the content sent, so the copy on the
+ * server can be checked against it without downloading.
+ */
+@Slf4j
+class UploadManifest implements Closeable {
+
+    // written before checksums were recorded, still read
+    private static final String FILE = "F";
+    private static final String FILE_WITH_CHECKSUM = "S";
+    private static final String FOLDER = "D";
+    private static final String VERIFIED = "V";
+    private static final String NONE = "-";
+
+    private final Path root;
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final BufferedWriter writer;
+
+    private volatile Instant verifiedAt = Instant.EPOCH;
+    private int lines;
+
+    private UploadManifest(Path root, Path file) throws IOException {
+        this.root = root;
+        this.file = file;
+        if (Files.exists(file)) {
+            load();
+        }
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    static UploadManifest open(Path source, String destinationUrl) throws IOException {
+        return new UploadManifest(source, MetadataDirectory.resolve(source)
+                .resolve("upload-manifest-" + destinationKey(destinationUrl) + ".tsv"));
+    }
+
+    /**
+     * @return short name of the destination for state files which are kept per destination
+     */
+    static String destinationKey(String destinationUrl) {
+        return Hashing.sha256()
+                .hashString(destinationUrl, StandardCharsets.UTF_8)
+                .toString()
+                .substring(0, 16);
+    }
+
+    /**
+     * @return whether the file has been uploaded and hasn't changed since
+     */
+    boolean isUploaded(Path file, long size, long modified) {
+        final Entry entry = entries.get(key(file));
+        return entry != null && entry.getSize() == size && entry.getModified() == modified;
+    }
+
+    /**
+     * @return whether the folder is known to exist remotely
+     */
+    boolean hasFolder(Path folder) {
+        final Entry entry = entries.get(key(folder));
+        return entry != null && entry.isFolder();
+    }
+
+    /**
+     * @return checksum of the content uploaded, if it is known and the file hasn't changed since
+     */
+    String getChecksum(Path file, long size, long modified) {
+        final Entry entry = entries.get(key(file));
+        return isUploaded(file, size, modified) ? entry.getChecksum() : null;
+    }
+
+    /**
+     * @param checksum checksum of the content or null if not known, then a checksum recorded
+     *                 for the same content is kept
+     */
+    void uploaded(Path file, long size, long modified, String etag, String checksum) {
+        final String key = key(file);
+        final Entry previous = entries.get(key);
+        if (checksum == null && previous != null && previous.getSize() == size && previous.getModified() == modified) {
+            checksum = previous.getChecksum();
+        }
+        final Entry entry = new Entry(size, modified, etag, checksum);
+        if (!entry.equals(entries.put(key, entry))) {
+            append(fileRecord(key, entry));
+        }
+    }
+
+    void folderExists(Path folder) {
+        if (entries.put(key(folder), Entry.FOLDER_ENTRY) == null) {
+            append(FOLDER + "\t" + key(folder));
+        }
+    }
+
+    Instant getVerifiedAt() {
+        return verifiedAt;
+    }
+
+    void verified(Instant time) {
+        verifiedAt = time;
+        append(VERIFIED + "\t" + time.toEpochMilli());
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+        // every record is appended, so files uploaded many times leave stale lines behind
+        if (lines > 2 * entries.size() + 1024) {
+            compact();
+        }
+    }
+
+    private synchronized void append(String record) {
+        if (record.indexOf('\n') >= 0) {
+            log.debug("Not recording {} in the upload manifest", record);
+            return;
+        }
+        try {
+            writer.write(record);
+            writer.newLine();
+            // uploads are slow enough to afford a write per record, nothing is lost if killed
+            writer.flush();
+            lines++;
+        } catch (IOException e) {
+            // the manifest is a cache, losing a record only costs an extra check next time
+            log.warn("Can't write to upload manifest {}", file, e);
+        }
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                final String[] fields = line.split("\t", 5);
+                switch (fields[0]) {
+                    case FILE -> {
+                        if (fields.length == 5) {
+                            entries.put(fields[4], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                                    orNull(fields[3]), null));
+                        }
+                    }
+                    case FILE_WITH_CHECKSUM -> {
+                        final String[] checksumFields = line.split("\t", 6);
+                        if (checksumFields.length == 6) {
+                            entries.put(checksumFields[5], new Entry(Long.parseLong(checksumFields[1]),
+                                    Long.parseLong(checksumFields[2]), orNull(checksumFields[3]), orNull(checksumFields[4])));
+                        }
+                    }
+                    case FOLDER -> entries.put(fields[1], Entry.FOLDER_ENTRY);
+                    case VERIFIED -> verifiedAt = Instant.ofEpochMilli(Long.parseLong(fields[1]));
+                    default -> log.warn("Unknown upload manifest record {}", fields[0]);
+                }
+            }
+        } catch (RuntimeException e) {
+            // a line torn by a crash, everything before it is still valid
+            log.warn("Upload manifest {} is damaged, some files will be checked again", file, e);
+        }
+        log.debug("Loaded {} entries from upload manifest {}", entries.size(), file);
+    }
+
+    private void compact() throws IOException {
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter compacted = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            compacted.write(VERIFIED + "\t" + verifiedAt.toEpochMilli());
+            compacted.newLine();
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                final Entry value = entry.getValue();
+                if (value.isFolder()) {
+                    compacted.write(FOLDER + "\t" + entry.getKey());
+                } else {
+                    compacted.write(fileRecord(entry.getKey(), value));
+                }
+                compacted.newLine();
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String fileRecord(String key, Entry entry) {
+        return FILE_WITH_CHECKSUM + "\t" + entry.getSize() + "\t" + entry.getModified() + "\t"
+                + orNone(entry.getEtag()) + "\t" + orNone(entry.getChecksum()) + "\t" + key;
+    }
+
+    private static String orNone(String value) {
+        return value == null ? NONE : value;
+    }
+
+    private static String orNull(String field) {
+        return NONE.equals(field) ? null : field;
+    }
+
+    private String key(Path path) {
+        final StringBuilder key = new StringBuilder();
+        for (Path name : root.relativize(path)) {
+            if (!key.isEmpty()) {
+                key.append('/');
+            }
+            key.append(name);
+        }
+        return key.toString();
+    }
+
+    @Data
+    static class Entry {
+        static final Entry FOLDER_ENTRY = new Entry(-1, -1, null, null);
+
+        private final long size;
+        private final long modified;
+        private final String etag;
+        private final String checksum;
+
+        boolean isFolder() {
+            return size < 0;
+        }
+    }
+}
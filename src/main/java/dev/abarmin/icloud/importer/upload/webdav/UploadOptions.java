@@ -0,0 +1,22 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import dev.abarmin.icloud.importer.metrics.ImportMetrics;
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * How an {@link UploadStage} uploads files, everything but the limit has a default.
+ */
+@Data
+@Accessors(chain = true)
+class UploadOptions {
+    private ConcurrencyLimit limit;
+    private int capacity;
+    // null if the server doesn't support chunked uploads
+    private ChunkedUploader chunked;
+    private BandwidthLimit bandwidth = BandwidthLimit.UNLIMITED;
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private CircuitBreaker circuitBreaker = CircuitBreaker.DISABLED;
+    private UploadStage.Listener listener = (file, size, modified, checksum) -> { };
+    private ImportMetrics metrics = new ImportMetrics();
+}
@@ -0,0 +1,119 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import dev.abarmin.icloud.importer.MetadataDirectory;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Folders and files an upload run would create and upload, collected by
+ * {@code image-upload-webdav --dry-run} instead of changing anything on the server. Remote
+ * folders are still listed, so the plan only has what is missing there.
+ * <p>
+ * Folders are recorded before anything inside them, {@code --plan} creates them in the order
+ * of the file and uploads the files without listing anything.
+ */
+@Slf4j
+class UploadPlan {
+
+    private final Path file;
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    // folders the run would create, they are empty remotely and not listed
+    private final Set<String> newFolders = ConcurrentHashMap.newKeySet();
+
+    private UploadPlan(Path file) {
+        this.file = file;
+    }
+
+    static UploadPlan open(Path source, String destinationUrl) throws IOException {
+        return new UploadPlan(MetadataDirectory.resolve(source)
+                .resolve("upload-plan-" + UploadManifest.destinationKey(destinationUrl) + ".tsv"));
+    }
+
+    void folder(Path folder, String url) {
+        newFolders.add(url);
+        add(new Entry(DeadLetters.Kind.FOLDER, folder, url, 0));
+    }
+
+    void file(Path file, String url, long size) {
+        add(new Entry(DeadLetters.Kind.FILE, file, url, size));
+    }
+
+    boolean isNewFolder(String url) {
+        return newFolders.contains(url);
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * @return bytes to upload per local folder
+     */
+    Map<Path, Long> bytesPerFolder() {
+        final Map<Path, Long> bytes = new ConcurrentHashMap<>();
+        for (Entry entry : entries) {
+            if (entry.getKind() == DeadLetters.Kind.FILE) {
+                bytes.merge(entry.getPath().getParent(), entry.getSize(), Long::sum);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return entries of the plan written by a dry run
+     */
+    static List<Entry> read(Path file) throws IOException {
+        final List<Entry> planned = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            final String[] fields = line.split("\t", 4);
+            if (fields.length != 4) {
+                throw new IOException("Malformed line in upload plan " + file + ": " + line);
+            }
+            planned.add(new Entry(DeadLetters.Kind.valueOf(fields[0]), Path.of(fields[3]), fields[2], Long.parseLong(fields[1])));
+        }
+        return planned;
+    }
+
+    void write() throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (Entry entry : entries) {
+                writer.write(entry.getKind() + "\t" + entry.getSize() + "\t" + entry.getUrl() + "\t" + entry.getPath());
+                writer.newLine();
+            }
+        }
+    }
+
+    private void add(Entry entry) {
+        if (entry.getPath().toString().indexOf('\n') >= 0) {
+            log.warn("Can't plan upload of {}", entry.getPath());
+            return;
+        }
+        entries.add(entry);
+    }
+
+    @Data
+    static class Entry {
+        private final DeadLetters.Kind kind;
+        private final Path path;
+        private final String url;
+        // 0 for folders
+        private final long size;
+    }
+}
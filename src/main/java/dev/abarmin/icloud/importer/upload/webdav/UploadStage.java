@@ -0,0 +1,304 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.github.sardine.Sardine;
+import com.github.sardine.impl.SardineException;
+import dev.abarmin.icloud.importer.metrics.ImportMetrics;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads files from a bounded queue which the workers drain continuously. Producers block
+ * while the queue is full, so the number of pending uploads held in memory is capped no
+ * matter how fast the tree is listed.
+ * <p>
+ * There is a worker per allowed upload, but only as many of them upload at once as the
+ * {@link ConcurrencyLimit} currently permits. Failed uploads are queued again after the delay
+ * the {@link RetryPolicy} asks for, the workers are not kept waiting meanwhile.
+ */
+@Slf4j
+class UploadStage implements AutoCloseable {
+
+    // tells a worker to stop, one per worker
+    private static final Upload STOP = new Upload(null, null, 0);
+
+    private final Sardine sardine;
+    private final UploadOptions options;
+    private final ConcurrencyLimit limit;
+    private final int workers;
+    private final BlockingQueue<Upload> queue;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor();
+
+    private final AtomicInteger uploaded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger retried = new AtomicInteger();
+    // submitted files which are not uploaded or given up yet, including scheduled retries
+    private int unfinished;
+
+    UploadStage(Sardine sardine, int workers, int capacity) {
+        this(sardine, new UploadOptions()
+                .setLimit(new ConcurrencyLimit(workers, workers, workers))
+                .setCapacity(capacity));
+    }
+
+    UploadStage(Sardine sardine, UploadOptions options) {
+        this.sardine = sardine;
+        this.options = options;
+        this.limit = options.getLimit();
+        this.workers = limit.getMax();
+        this.queue = new ArrayBlockingQueue<>(options.getCapacity());
+        this.executor = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            executor.execute(this::work);
+        }
+    }
+
+    /**
+     * Queues the file for upload, waiting for a free slot if the queue is full.
+     */
+    void submit(Path file, String url) throws InterruptedException {
+        synchronized (this) {
+            unfinished++;
+        }
+        options.getMetrics().getUploading().expect(1);
+        queue.put(new Upload(file, url, 1));
+    }
+
+    int getUploaded() {
+        return uploaded.get();
+    }
+
+    int getFailed() {
+        return failed.get();
+    }
+
+    int getRetried() {
+        return retried.get();
+    }
+
+    /**
+     * Waits until every queued file is uploaded or given up, including retries, and stops the
+     * workers.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            while (unfinished > 0) {
+                wait();
+            }
+        }
+        retries.shutdown();
+        for (int i = 0; i < workers; i++) {
+            queue.put(STOP);
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                final Upload upload = queue.take();
+                if (upload == STOP) {
+                    return;
+                }
+                options.getCircuitBreaker().awaitClosed();
+                limit.acquire();
+                final Attempt attempt = attempt(upload);
+                try {
+                    settle(attempt);
+                    if (attempt.getFailure() == null) {
+                        uploaded(upload, attempt);
+                    } else {
+                        failed(upload, attempt.getFailure());
+                    }
+                } catch (RuntimeException e) {
+                    // a broken bookkeeping call must neither stop the worker nor keep close() waiting
+                    if (!attempt.isSettled()) {
+                        limit.ignored();
+                        options.getCircuitBreaker().ignored();
+                    }
+                    gaveUp(upload, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends the file, failures are returned instead of being thrown.
+     */
+    private Attempt attempt(Upload upload) {
+        log.debug("Upload file {}", upload.getUrl());
+        final Attempt attempt = new Attempt();
+        try {
+            // taken before reading, a file changed during the upload is uploaded again next time
+            attempt.setAttributes(Files.readAttributes(upload.getFile(), BasicFileAttributes.class));
+            attempt.setStarted(System.nanoTime());
+            attempt.setChecksum(transfer(upload, attempt.getAttributes()));
+            attempt.setElapsed(System.nanoTime() - attempt.getStarted());
+        } catch (Exception e) {
+            attempt.setFailure(e);
+        }
+        return attempt;
+    }
+
+    /**
+     * Gives the permit back and reports to the circuit breaker, exactly once per attempt and
+     * before anything else can fail.
+     */
+    private void settle(Attempt attempt) {
+        attempt.setSettled(true);
+        final Exception e = attempt.getFailure();
+        if (e == null) {
+            limit.succeeded(attempt.getAttributes().size(), attempt.getElapsed());
+            options.getCircuitBreaker().succeeded();
+            return;
+        }
+        if (isOverload(e)) {
+            limit.overloaded();
+        } else {
+            limit.ignored();
+        }
+        if (RetryPolicy.classify(e) == RetryPolicy.Failure.PERMANENT) {
+            // still ends a probe, the workers waiting for it would wait forever otherwise
+            options.getCircuitBreaker().ignored();
+        } else {
+            options.getCircuitBreaker().failed();
+        }
+    }
+
+    private void uploaded(Upload upload, Attempt attempt) {
+        final BasicFileAttributes attributes = attempt.getAttributes();
+        options.getMetrics().record(ImportMetrics.PUT, attempt.getStarted());
+        try {
+            options.getListener().uploaded(upload.getFile(), attributes.size(), attributes.lastModifiedTime().toMillis(), attempt.getChecksum());
+        } catch (Exception e) {
+            // the file is on the server, it is only compared with the remote side again next time
+            log.error("Failed to record the upload of file {}", upload.getFile(), e);
+        }
+        options.getMetrics().count(ImportMetrics.UPLOADED_FILES, "uploaded");
+        options.getMetrics().getUploading().done(attributes.size());
+        uploaded.incrementAndGet();
+        finished();
+    }
+
+    /**
+     * @return checksum of the content sent, null if the client didn't read it all
+     */
+    private String transfer(Upload upload, BasicFileAttributes attributes) throws Exception {
+        final ChunkedUploader chunked = options.getChunked();
+        if (chunked != null && chunked.accepts(attributes.size())) {
+            return chunked.upload(upload.getFile(), upload.getUrl(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+        final FileRegionEntity entity = new FileRegionEntity(upload.getFile(), 0, attributes.size(),
+                options.getBandwidth(), Checksums.newDigest());
+        entity.put(sardine, upload.getUrl(), Map.of());
+        return entity.getDigest() == null ? null : Checksums.format(entity.getDigest());
+    }
+
+    private void failed(Upload upload, Exception e) {
+        final Optional<Duration> delay = options.getRetryPolicy().nextDelay(e, upload.getAttempt());
+        if (delay.isEmpty()) {
+            gaveUp(upload, e);
+            return;
+        }
+        log.warn("Failed to upload file {}, attempt {}, retrying in {} ms: {}",
+                upload.getFile(), upload.getAttempt(), delay.get().toMillis(), e.getMessage());
+        final Upload retry = new Upload(upload.getFile(), upload.getUrl(), upload.getAttempt() + 1);
+        retries.schedule(() -> {
+            try {
+                queue.put(retry);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }, delay.get().toMillis(), TimeUnit.MILLISECONDS);
+        retried.incrementAndGet();
+    }
+
+    private void gaveUp(Upload upload, Exception e) {
+        log.error("Failed to upload file {}, will try next time", upload.getFile(), e);
+        failed.incrementAndGet();
+        try {
+            options.getMetrics().count(ImportMetrics.UPLOADED_FILES, "failed");
+            options.getMetrics().getUploading().done(0);
+            options.getListener().failed(upload.getFile(), upload.getUrl(), e);
+        } catch (Exception recordError) {
+            log.error("Failed to record the failed upload of file {}", upload.getFile(), recordError);
+        } finally {
+            finished();
+        }
+    }
+
+    private synchronized void finished() {
+        unfinished--;
+        if (unfinished == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return whether the failure means the server or the network can't take more uploads
+     */
+    static boolean isOverload(Exception e) {
+        if (e instanceof SardineException sardineException) {
+            final int status = sardineException.getStatusCode();
+            return status >= 500 || status == 429;
+        }
+        // socket and connection pool timeouts
+        return e instanceof InterruptedIOException;
+    }
+
+    @FunctionalInterface
+    interface Listener {
+        /**
+         * @param checksum checksum of the content sent, null if the client didn't read it all
+         */
+        void uploaded(Path file, long size, long modified, String checksum);
+
+        /**
+         * Called when the upload is given up after every retry.
+         */
+        default void failed(Path file, String url, Exception error) {
+        }
+    }
+
+    /**
+     * Outcome of a single upload attempt.
+     */
+    @Data
+    private static class Attempt {
+        private BasicFileAttributes attributes;
+        private long started;
+        private long elapsed;
+        // null if the client didn't read all of the content
+        private String checksum;
+        // null if the file was sent
+        private Exception failure;
+        // whether the permit and the circuit breaker have been told
+        private boolean settled;
+    }
+
+    @Data
+    static class Upload {
+        private final Path file;
+        private final String url;
+        private final int attempt;
+    }
+}
@@ -0,0 +1,30 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.github.sardine.impl.SardineImpl;
+import com.github.sardine.impl.handler.VoidResponseHandler;
+import com.github.sardine.impl.methods.HttpMkCol;
+import org.apache.http.impl.client.HttpClientBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Sardine client which can also send headers with {@code MKCOL}, Nextcloud needs the
+ * {@code Destination} of a chunked upload when its folder is created.
+ */
+class WebDavClient extends SardineImpl {
+
+    WebDavClient() {
+        super();
+    }
+
+    WebDavClient(HttpClientBuilder builder, String login, String password) {
+        super(builder, login, password);
+    }
+
+    void createDirectory(String url, Map<String, String> headers) throws IOException {
+        final HttpMkCol mkcol = new HttpMkCol(url);
+        headers.forEach(mkcol::addHeader);
+        execute(mkcol, new VoidResponseHandler());
+    }
+}
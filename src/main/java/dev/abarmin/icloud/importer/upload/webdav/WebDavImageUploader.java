@@ -1,30 +1,50 @@
 package dev.abarmin.icloud.importer.upload.webdav;
 
+import com.github.sardine.DavResource;
 import com.github.sardine.Sardine;
-import com.github.sardine.SardineFactory;
+import com.github.sardine.impl.SardineException;
+import com.google.common.annotations.VisibleForTesting;
+import dev.abarmin.icloud.importer.CommandStatus;
+import dev.abarmin.icloud.importer.MetadataDirectory;
+import dev.abarmin.icloud.importer.metrics.ImportMetrics;
+import dev.abarmin.icloud.importer.metrics.ProgressBar;
+import dev.abarmin.icloud.importer.sort.CsvImageSorter;
+import dev.abarmin.icloud.importer.sort.PlacementListener;
 import lombok.Data;
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.Strings;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.jline.terminal.Terminal;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.shell.standard.ShellComponent;
 import org.springframework.shell.standard.ShellMethod;
 import org.springframework.shell.standard.ShellOption;
 
-import java.io.InputStream;
+import javax.xml.namespace.QName;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.stream.Collectors;
+import java.util.concurrent.Phaser;
+import java.util.stream.Stream;
 
 @Slf4j
 @ShellComponent
@@ -33,8 +53,30 @@ public class WebDavImageUploader {
     @Autowired
     private Terminal terminal;
 
-    private final List<String> bannedNames = List.of(".DS_Store");
-    private final ExecutorService executor = Executors.newFixedThreadPool(5);
+    @Autowired
+    private CsvImageSorter sorter;
+
+    @Autowired
+    private CommandStatus status;
+
+    private static final int INITIAL_CONCURRENCY = 4;
+    private static final int LISTING_THREADS = 4;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    // time without a single byte moving, not the time of the whole upload
+    private static final int SOCKET_TIMEOUT_MILLIS = 60_000;
+    private static final int UPLOAD_QUEUE_SIZE = 256;
+    private static final long CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final long CHUNKED_UPLOAD_THRESHOLD = 4 * CHUNK_SIZE;
+    private static final RetryPolicy RETRY_POLICY = new RetryPolicy(5, 8, Duration.ofSeconds(1), Duration.ofMinutes(1));
+    private static final int CIRCUIT_BREAKER_THRESHOLD = 10;
+    private static final Duration CIRCUIT_BREAKER_PAUSE = Duration.ofSeconds(30);
+    // Nextcloud and ownCloud keep checksums of files uploaded with one, other servers ignore it
+    private static final Set<QName> LISTED_PROPERTIES = Set.of(new QName("http://owncloud.org/ns", "checksums", "oc"));
+    // files deleted remotely are noticed at least this often even without --verify-remote
+    private static final Duration VERIFY_INTERVAL = Duration.ofDays(30);
+    private static final int PLAN_REPORT_FOLDERS = 20;
+
+    private final List<String> bannedNames = List.of(".DS_Store", MetadataDirectory.NAME);
 
     @ShellMethod(
             key = "image-upload-webdav",
@@ -45,30 +87,500 @@ public class WebDavImageUploader {
             @ShellOption(value = "src", help = "Source directory, ex. /Users/test/photos_sorted") String sourceString,
             @ShellOption(value = "dest-url", help = "Destination WebDav URL, ex. http://hub.local/remote.php/dav/files/abc/dev") String destinationUrl,
             @ShellOption(value = "dest-login", help = "WebDav username, ex. admin") String destinationLogin,
-            @ShellOption(value = "dest-password", help = "WebDav password, ex. passw0rd") String destinationPassword
-    ) {
+            @ShellOption(value = "dest-password", help = "WebDav password, ex. passw0rd") String destinationPassword,
+            @ShellOption(value = "verify-remote", defaultValue = "false", help = "List every remote folder instead of trusting the upload manifest and checksum files the server has checksums of") boolean verifyRemote,
+            @ShellOption(value = "max-concurrency", defaultValue = "16", help = "Maximum number of parallel uploads, the actual number adapts to the server") int maxConcurrency,
+            @ShellOption(value = "max-bandwidth", defaultValue = "0", help = "Upload bandwidth shared by all uploads, ex. 40MB/s, 0 for no limit") String maxBandwidth,
+            @ShellOption(value = "retry-failed", defaultValue = "false", help = "Only upload files which failed in the previous run") boolean retryFailed,
+            @ShellOption(value = "dry-run", defaultValue = "false", help = "Write a plan of the folders and files to upload without changing anything remotely") boolean dryRun,
+            @ShellOption(value = "plan", defaultValue = ShellOption.NULL, help = "Upload what a plan written by --dry-run has") String planFile,
+            @ShellOption(value = "summary-json", defaultValue = ShellOption.NULL, help = "File to write timings and counts of the run to") String summaryJson
+    ) throws InterruptedException, IOException {
         final Path source = Path.of(sourceString);
         if (!Files.exists(source)) {
             terminal.writer().println("Source directory %s doesn't exist".formatted(source));
             terminal.writer().flush();
+            status.invalidArguments();
+            return;
+        }
+        if (maxConcurrency < 1) {
+            terminal.writer().println("Max concurrency should be positive, got %d".formatted(maxConcurrency));
+            terminal.writer().flush();
+            status.invalidArguments();
+            return;
+        }
+        final BandwidthLimit bandwidth;
+        try {
+            bandwidth = BandwidthLimit.parse(maxBandwidth);
+        } catch (IllegalArgumentException e) {
+            terminal.writer().println(e.getMessage());
+            terminal.writer().flush();
+            status.invalidArguments();
+            return;
+        }
+
+        if (Stream.of(retryFailed, dryRun, planFile != null).filter(Boolean::booleanValue).count() > 1) {
+            terminal.writer().println("Options --retry-failed, --dry-run and --plan can't be used together");
+            terminal.writer().flush();
+            status.invalidArguments();
+            return;
+        }
+
+        final Path metadataDirectory = MetadataDirectory.resolve(source);
+        final DeadLetters deadLetters = DeadLetters.open(source, destinationUrl);
+        final List<DeadLetters.Entry> previousFailures = retryFailed ? deadLetters.read() : List.of();
+        if (retryFailed && previousFailures.isEmpty()) {
+            terminal.writer().println("Nothing failed in the previous run");
+            terminal.writer().flush();
+            return;
+        }
+
+        try (UploadManifest manifest = UploadManifest.open(source, destinationUrl)) {
+            final Instant started = Instant.now();
+            final boolean verify = !retryFailed && planFile == null
+                    && (verifyRemote || manifest.getVerifiedAt().isBefore(started.minus(VERIFY_INTERVAL)));
+            if (verify) {
+                log.info("Listing every remote folder, last verified at {}", manifest.getVerifiedAt());
+            }
+
+            final Sardine sardine = createSardine(destinationLogin, destinationPassword, maxConcurrency + LISTING_THREADS);
+            final ConcurrencyLimit limit = new ConcurrencyLimit(1, Math.min(INITIAL_CONCURRENCY, maxConcurrency), maxConcurrency);
+            final ExecutorService listingExecutor = Executors.newFixedThreadPool(LISTING_THREADS);
+            final ImportMetrics metrics = new ImportMetrics();
+            final UploadStage uploads = createUploadStage(sardine, destinationUrl, metadataDirectory, limit, bandwidth, manifest, deadLetters, metrics);
+            final UploadPlan plan = dryRun ? UploadPlan.open(source, destinationUrl) : null;
+            final UploadContext context = new UploadContext(sardine, uploads, listingExecutor, new Phaser(1),
+                    manifest, verify, RETRY_POLICY, deadLetters, metrics, plan);
+            try (ProgressBar ignored = ProgressBar.start(terminal, metrics)) {
+                try {
+                    if (retryFailed) {
+                        retry(previousFailures, context);
+                    } else if (planFile != null) {
+                        execute(UploadPlan.read(Path.of(planFile)), context);
+                    } else {
+                        submitFolder(source, destinationUrl, context);
+                    }
+                    context.getFolders().arriveAndAwaitAdvance();
+                    metrics.getUploading().expectNoMore();
+                } finally {
+                    listingExecutor.shutdown();
+                    uploads.close();
+                    sardine.shutdown();
+                    // a dry run would drop the failures of the previous run
+                    if (plan == null) {
+                        deadLetters.write();
+                    }
+                }
+            } finally {
+                if (summaryJson != null) {
+                    metrics.writeSummary(Path.of(summaryJson), "image-upload-webdav");
+                }
+            }
+            if (plan != null) {
+                plan.write();
+                report(plan);
+                return;
+            }
+            log.info("Finished with {} parallel uploads", limit.getLimit());
+            if (verify && context.getFailedFolders().get() == 0) {
+                manifest.verified(started);
+            }
+            report(uploads, deadLetters);
+        }
+    }
+
+    @ShellMethod(
+            key = "image-sort-upload",
+            value = "Sort images exported from iCloud and upload them via WebDav as they are sorted",
+            group = "iCloud import"
+    )
+    public void sortAndUpload(
+            @ShellOption(value = "src", help = "Source directory, ex. /Users/test/photos") String sourceString,
+            @ShellOption(value = "dest", help = "Destination directory, ex. /Users/test/photos_sorted") String destinationString,
+            @ShellOption(value = "dest-url", help = "Destination WebDav URL, ex. http://hub.local/remote.php/dav/files/abc/dev") String destinationUrl,
+            @ShellOption(value = "dest-login", help = "WebDav username, ex. admin") String destinationLogin,
+            @ShellOption(value = "dest-password", help = "WebDav password, ex. passw0rd") String destinationPassword,
+            @ShellOption(value = "threads", defaultValue = "0", help = "Number of sorting threads, 0 means one per CPU core") int threads,
+            @ShellOption(value = "resolvers", defaultValue = CsvImageSorter.DEFAULT_RESOLVERS, help = "Sources of the dates in the order they are asked, out of csv, exif, container, filename and mtime") String resolverOrder,
+            @ShellOption(value = "max-concurrency", defaultValue = "16", help = "Maximum number of parallel uploads, the actual number adapts to the server") int maxConcurrency,
+            @ShellOption(value = "max-bandwidth", defaultValue = "0", help = "Upload bandwidth shared by all uploads, ex. 40MB/s, 0 for no limit") String maxBandwidth,
+            @ShellOption(value = "summary-json", defaultValue = ShellOption.NULL, help = "File to write timings and counts of the run to") String summaryJson
+    ) throws Exception {
+        sortAndUpload(sourceString, destinationString, destinationUrl, destinationLogin, destinationPassword,
+                resolverOrder, maxConcurrency, maxBandwidth, summaryJson, "image-sort-upload",
+                (source, target, resolvers, listener, metrics) -> sorter.sort(List.of(source), target, threads, resolvers, listener, metrics));
+    }
+
+    @ShellMethod(
+            key = "image-watch-upload",
+            value = "Watch a directory for images downloaded from iCloud, sort and upload them via WebDav as they arrive",
+            group = "iCloud import"
+    )
+    public void watchAndUpload(
+            @ShellOption(value = "src", help = "Directory iCloud exports are extracted to, ex. /Users/test/photos") String sourceString,
+            @ShellOption(value = "dest", help = "Destination directory, ex. /Users/test/photos_sorted") String destinationString,
+            @ShellOption(value = "dest-url", help = "Destination WebDav URL, ex. http://hub.local/remote.php/dav/files/abc/dev") String destinationUrl,
+            @ShellOption(value = "dest-login", help = "WebDav username, ex. admin") String destinationLogin,
+            @ShellOption(value = "dest-password", help = "WebDav password, ex. passw0rd") String destinationPassword,
+            @ShellOption(value = "threads", defaultValue = "0", help = "Number of sorting threads, 0 means one per CPU core") int threads,
+            @ShellOption(value = "resolvers", defaultValue = CsvImageSorter.DEFAULT_RESOLVERS, help = "Sources of the dates in the order they are asked, out of csv, exif, container, filename and mtime") String resolverOrder,
+            @ShellOption(value = "quiet-seconds", defaultValue = "5", help = "Seconds without changes after which a new file is considered complete") int quietSeconds,
+            @ShellOption(value = "max-concurrency", defaultValue = "16", help = "Maximum number of parallel uploads, the actual number adapts to the server") int maxConcurrency,
+            @ShellOption(value = "max-bandwidth", defaultValue = "0", help = "Upload bandwidth shared by all uploads, ex. 40MB/s, 0 for no limit") String maxBandwidth,
+            @ShellOption(value = "summary-json", defaultValue = ShellOption.NULL, help = "File to write timings and counts of the run to") String summaryJson
+    ) throws Exception {
+        if (quietSeconds < 0) {
+            terminal.writer().println("Quiet period can't be negative, got %d".formatted(quietSeconds));
+            terminal.writer().flush();
+            status.invalidArguments();
+            return;
+        }
+        sortAndUpload(sourceString, destinationString, destinationUrl, destinationLogin, destinationPassword,
+                resolverOrder, maxConcurrency, maxBandwidth, summaryJson, "image-watch-upload", (source, target, resolvers, listener, metrics) -> {
+                    try {
+                        sorter.watch(source, target, threads, resolvers, Duration.ofSeconds(quietSeconds), listener, metrics);
+                    } catch (InterruptedException e) {
+                        // the only way to stop watching, queued uploads are still finished
+                        log.info("Stopped watching {}", source);
+                    }
+                });
+    }
+
+    private void sortAndUpload(String sourceString,
+                               String destinationString,
+                               String destinationUrl,
+                               String destinationLogin,
+                               String destinationPassword,
+                               String resolverOrder,
+                               int maxConcurrency,
+                               String maxBandwidth,
+                               String summaryJson,
+                               String command,
+                               Sorting sorting) throws Exception {
+        final Path source = Path.of(sourceString);
+        if (!Files.exists(source)) {
+            terminal.writer().println("Directory %s doesn't exist".formatted(source));
+            terminal.writer().flush();
+            status.invalidArguments();
+            return;
+        }
+        if (maxConcurrency < 1) {
+            terminal.writer().println("Max concurrency should be positive, got %d".formatted(maxConcurrency));
+            terminal.writer().flush();
+            status.invalidArguments();
+            return;
+        }
+        final BandwidthLimit bandwidth;
+        try {
+            bandwidth = BandwidthLimit.parse(maxBandwidth);
+        } catch (IllegalArgumentException e) {
+            terminal.writer().println(e.getMessage());
+            terminal.writer().flush();
+            status.invalidArguments();
+            return;
+        }
+        final List<String> resolvers;
+        try {
+            resolvers = CsvImageSorter.parseResolvers(resolverOrder);
+        } catch (IllegalArgumentException e) {
+            terminal.writer().println(e.getMessage());
+            terminal.writer().flush();
+            status.invalidArguments();
+            return;
+        }
+
+        final Path target = Files.createDirectories(Path.of(destinationString));
+        final Path metadataDirectory = MetadataDirectory.resolve(target);
+        final DeadLetters deadLetters = DeadLetters.open(target, destinationUrl);
+        // the same manifest as image-upload-webdav of the sorted tree, so a later run skips these files
+        try (UploadManifest manifest = UploadManifest.open(target, destinationUrl)) {
+            final Sardine sardine = createSardine(destinationLogin, destinationPassword, maxConcurrency);
+            final ConcurrencyLimit limit = new ConcurrencyLimit(1, Math.min(INITIAL_CONCURRENCY, maxConcurrency), maxConcurrency);
+            final ImportMetrics metrics = new ImportMetrics();
+            final UploadStage uploads = createUploadStage(sardine, destinationUrl, metadataDirectory, limit, bandwidth, manifest, deadLetters, metrics);
+            final UploadContext context = new UploadContext(sardine, uploads, null, new Phaser(1),
+                    manifest, false, RETRY_POLICY, deadLetters, metrics, null);
+            context.getRemoteFolders().put(target, CompletableFuture.completedFuture(destinationUrl));
+            try (ProgressBar ignored = ProgressBar.start(terminal, metrics)) {
+                try {
+                    sorting.sort(source, target, resolvers, file -> uploadPlaced(file, context), metrics);
+                    // every sorted file has been queued
+                    metrics.getUploading().expectNoMore();
+                } finally {
+                    uploads.close();
+                    sardine.shutdown();
+                    deadLetters.write();
+                }
+            } finally {
+                if (summaryJson != null) {
+                    metrics.writeSummary(Path.of(summaryJson), command);
+                }
+            }
+            report(uploads, deadLetters);
+        }
+    }
+
+    private UploadStage createUploadStage(Sardine sardine,
+                                          String destinationUrl,
+                                          Path metadataDirectory,
+                                          ConcurrencyLimit limit,
+                                          BandwidthLimit bandwidth,
+                                          UploadManifest manifest,
+                                          DeadLetters deadLetters,
+                                          ImportMetrics metrics) {
+        final ChunkedUploader chunked = ChunkedUploader.uploadsUrl(destinationUrl)
+                .map(uploadsUrl -> new ChunkedUploader(sardine, uploadsUrl,
+                        metadataDirectory.resolve("chunked-uploads"), CHUNK_SIZE, CHUNKED_UPLOAD_THRESHOLD, bandwidth))
+                .orElse(null);
+        return new UploadStage(sardine, new UploadOptions()
+                .setLimit(limit)
+                .setCapacity(UPLOAD_QUEUE_SIZE)
+                .setChunked(chunked)
+                .setBandwidth(bandwidth)
+                .setRetryPolicy(RETRY_POLICY)
+                .setCircuitBreaker(new CircuitBreaker(CIRCUIT_BREAKER_THRESHOLD, CIRCUIT_BREAKER_PAUSE))
+                .setMetrics(metrics)
+                .setListener(new UploadStage.Listener() {
+                    @Override
+                    public void uploaded(Path file, long size, long modified, String checksum) {
+                        manifest.uploaded(file, size, modified, null, checksum);
+                    }
+
+                    @Override
+                    public void failed(Path file, String url, Exception error) {
+                        deadLetters.file(file, url, error);
+                    }
+                }));
+    }
+
+    private void report(UploadStage uploads, DeadLetters deadLetters) {
+        log.info("All files processed, {} uploaded, {} retried, {} failed",
+                uploads.getUploaded(), uploads.getRetried(), uploads.getFailed());
+        if (deadLetters.size() > 0) {
+            status.partial();
+            terminal.writer().println("%d files or folders failed, they are listed in %s, run with --retry-failed to upload them again"
+                    .formatted(deadLetters.size(), deadLetters.getFile()));
+            terminal.writer().flush();
+        }
+    }
+
+    private void report(UploadPlan plan) {
+        final List<UploadPlan.Entry> entries = plan.getEntries();
+        final long folders = entries.stream().filter(entry -> entry.getKind() == DeadLetters.Kind.FOLDER).count();
+        final long bytes = entries.stream().mapToLong(UploadPlan.Entry::getSize).sum();
+        terminal.writer().println("%d folders to create, %d files to upload, %d MB in total".formatted(
+                folders, entries.size() - folders, bytes / (1024 * 1024)));
+        final List<Map.Entry<Path, Long>> largest = plan.bytesPerFolder().entrySet().stream()
+                .sorted(Map.Entry.<Path, Long>comparingByValue().reversed())
+                .toList();
+        for (Map.Entry<Path, Long> folder : largest.subList(0, Math.min(largest.size(), PLAN_REPORT_FOLDERS))) {
+            terminal.writer().println("  %s: %d MB".formatted(folder.getKey(), folder.getValue() / (1024 * 1024)));
+        }
+        if (largest.size() > PLAN_REPORT_FOLDERS) {
+            terminal.writer().println("  and %d more folders".formatted(largest.size() - PLAN_REPORT_FOLDERS));
+        }
+        terminal.writer().println("Plan written to %s, run with --plan %s to upload it".formatted(plan.getFile(), plan.getFile()));
+        terminal.writer().flush();
+    }
+
+    /**
+     * Queues a file the sorter has just moved into the destination tree. Its remote folders
+     * are created first, once per run, so the sorted tree is never listed.
+     */
+    private void uploadPlaced(Path file, UploadContext context) throws InterruptedException {
+        if (isBannedFolder(file)) {
+            return;
+        }
+        final String folderUrl;
+        try {
+            folderUrl = remoteFolder(file.getParent(), context);
+        } catch (IOException e) {
+            // the folder is created again when the dead letters are retried, files included
+            log.debug("Skipping {}, its folder failed: {}", file, e.getMessage());
             return;
         }
+        context.getUploads().submit(file, folderUrl + URLEncoder.encode(file.getFileName().toString()));
+    }
+
+    /**
+     * @return URL of the folder, it is created unless it exists already. A folder which
+     * failed is not tried again in this run, it has a single dead letter for all its files.
+     */
+    private String remoteFolder(Path folder, UploadContext context) throws IOException, InterruptedException {
+        final CompletableFuture<String> known = context.getRemoteFolders().get(folder);
+        if (known != null) {
+            return awaitFolder(known);
+        }
+        final String url = remoteFolder(folder.getParent(), context) + folder.getFileName() + "/";
+        final CompletableFuture<String> created = new CompletableFuture<>();
+        final CompletableFuture<String> other = context.getRemoteFolders().putIfAbsent(folder, created);
+        if (other != null) {
+            // other threads placing files into the same folder wait until it is created
+            return awaitFolder(other);
+        }
+        try {
+            if (!context.getManifest().hasFolder(folder)) {
+                createFolder(url, context);
+            }
+            created.complete(url);
+            return url;
+        } catch (IOException e) {
+            log.error("Failed to create folder {}, will try next time", url, e);
+            context.getFailedFolders().incrementAndGet();
+            context.getDeadLetters().folder(folder, url, e);
+            created.completeExceptionally(e);
+            throw e;
+        } catch (InterruptedException e) {
+            // the run is stopping, nothing failed
+            context.getRemoteFolders().remove(folder, created);
+            created.completeExceptionally(new InterruptedIOException("Interrupted while creating " + url));
+            throw e;
+        } finally {
+            // waiting threads are never left hanging
+            created.completeExceptionally(new IOException("Failed to create " + url));
+        }
+    }
 
-        final Sardine sardine = SardineFactory.begin(destinationLogin, destinationPassword);
-        processFolder(source, destinationUrl, sardine);
-        log.info("All files processed");
+    private static String awaitFolder(CompletableFuture<String> folder) throws IOException, InterruptedException {
+        try {
+            return folder.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Folder failed earlier in this run", e.getCause());
+        }
     }
 
-    @SneakyThrows
-    private void processFolder(Path parent, String parentDestination, Sardine sardine) {
-        log.info("Processing folder {}", parentDestination);
-        final List<Path> children = Files.list(parent).toList();
-        final Set<RemoteResource> existing = sardine.list(parentDestination).stream()
-                .map(r -> new RemoteResource(
-                        r.getName(),
-                        r.getContentLength()
-                ))
-                .collect(Collectors.toSet());
+    /**
+     * Queues what failed in the previous run without walking the rest of the tree.
+     */
+    private void retry(List<DeadLetters.Entry> failures, UploadContext context) throws InterruptedException {
+        // a folder is listed once even if older runs recorded it for each of its files
+        final Set<String> retriedFolders = new HashSet<>();
+        for (DeadLetters.Entry failure : failures) {
+            if (!Files.exists(failure.getPath())) {
+                log.info("{} doesn't exist anymore, skipping", failure.getPath());
+            } else if (failure.getKind() == DeadLetters.Kind.FILE) {
+                context.getUploads().submit(failure.getPath(), failure.getUrl());
+            } else if (retriedFolders.add(failure.getUrl())) {
+                try {
+                    createFolder(failure.getUrl(), context);
+                    submitFolder(failure.getPath(), failure.getUrl(), context);
+                } catch (IOException e) {
+                    log.error("Failed to create folder {}, will try next time", failure.getUrl(), e);
+                    context.getFailedFolders().incrementAndGet();
+                    context.getDeadLetters().folder(failure.getPath(), failure.getUrl(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the folders and uploads the files of a plan without listing anything, files
+     * which are gone since the plan was made are skipped.
+     */
+    private void execute(List<UploadPlan.Entry> planned, UploadContext context) throws InterruptedException {
+        // a folder which failed fails its files too, they are not tried one by one
+        final Set<String> failedFolders = new HashSet<>();
+        for (UploadPlan.Entry entry : planned) {
+            if (failedFolders.stream().anyMatch(entry.getUrl()::startsWith)) {
+                continue;
+            }
+            if (entry.getKind() == DeadLetters.Kind.FOLDER) {
+                try {
+                    createFolder(entry.getUrl(), context);
+                } catch (IOException e) {
+                    log.error("Failed to create folder {}, will try next time", entry.getUrl(), e);
+                    failedFolders.add(entry.getUrl());
+                    context.getFailedFolders().incrementAndGet();
+                    context.getDeadLetters().folder(entry.getPath(), entry.getUrl(), e);
+                }
+            } else if (!Files.exists(entry.getPath())) {
+                log.info("{} doesn't exist anymore, skipping", entry.getPath());
+            } else {
+                context.getUploads().submit(entry.getPath(), entry.getUrl());
+            }
+        }
+    }
+
+    /**
+     * Creates a client with a keep-alive connection pool big enough for every upload and
+     * listing thread, so connections are reused instead of being opened for each request.
+     */
+    private Sardine createSardine(String login, String password, int connections) {
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(connections);
+        connectionManager.setDefaultMaxPerRoute(connections);
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoTimeout(SOCKET_TIMEOUT_MILLIS)
+                .setSoKeepAlive(true)
+                .setTcpNoDelay(true)
+                .build());
+        final HttpClientBuilder builder = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+                        .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+                        .build());
+        return new WebDavClient(builder, login, password);
+    }
+
+    private void submitFolder(Path folder, String destination, UploadContext context) {
+        context.getFolders().register();
+        context.getListingExecutor().execute(() -> {
+            try {
+                processFolder(folder, destination, context);
+            } catch (Exception e) {
+                log.error("Failed to process folder {}, will try next time", folder, e);
+                context.getFailedFolders().incrementAndGet();
+                context.getDeadLetters().folder(folder, destination, e);
+            } finally {
+                context.getFolders().arriveAndDeregister();
+            }
+        });
+    }
+
+    /**
+     * Lists the local and the remote folder, hands subfolders over to other listing threads
+     * and queues files which are missing remotely. Queueing blocks while the upload queue is
+     * full, which slows listing down to the upload speed.
+     * <p>
+     * Folders processed by a previous run are in the upload manifest and are not listed
+     * remotely unless the run verifies the remote side, their files unchanged since the
+     * upload are skipped straight away.
+     */
+    private void processFolder(Path parent, String parentDestination, UploadContext context) throws IOException, InterruptedException {
+        final Sardine sardine = context.getSardine();
+        final UploadManifest manifest = context.getManifest();
+        final RetryPolicy retryPolicy = context.getRetryPolicy();
+        log.debug("Processing folder {}", parentDestination);
+        final List<Path> children;
+        try (Stream<Path> files = Files.list(parent)) {
+            children = files.toList();
+        }
+        final UploadPlan plan = context.getPlan();
+        final boolean listRemote = context.isVerifyRemote() || !manifest.hasFolder(parent);
+        final Set<RemoteResource> existing = new HashSet<>();
+        final Map<String, String> etags = new HashMap<>();
+        final Map<String, String> remoteChecksums = new HashMap<>();
+        // a folder a dry run would create is known to be empty
+        if (listRemote && (plan == null || !plan.isNewFolder(parentDestination))) {
+            for (DavResource resource : retryPolicy.call("list " + parentDestination, () -> {
+                final long started = System.nanoTime();
+                try {
+                    return sardine.list(parentDestination, 1, LISTED_PROPERTIES);
+                } finally {
+                    context.getMetrics().record(ImportMetrics.PROPFIND, started);
+                }
+            })) {
+                existing.add(new RemoteResource(resource.getName(), resource.getContentLength()));
+                if (resource.getEtag() != null) {
+                    etags.put(resource.getName(), resource.getEtag());
+                }
+                final String checksum = Checksums.find(resource.getCustomProps().get("checksums"));
+                if (checksum != null) {
+                    remoteChecksums.put(resource.getName(), checksum);
+                }
+            }
+        }
 
         for (Path child : children) {
             if (isBannedFolder(child)) {
@@ -78,23 +590,38 @@ public class WebDavImageUploader {
                 final String directoryName = child.getFileName().toString();
                 final String nextDestination = parentDestination + directoryName + "/";
                 final RemoteResource directoryResource = new RemoteResource(directoryName, -1);
-                if (!existing.contains(directoryResource)) {
-                    // create a directory
-                    log.info("Create directory {}", nextDestination);
-                    sardine.createDirectory(nextDestination);
+                try {
+                    final boolean missing = listRemote
+                            ? !existing.contains(directoryResource)
+                            : !manifest.hasFolder(child) && !retryPolicy.call("check " + nextDestination, () -> sardine.exists(nextDestination));
+                    if (missing && plan != null) {
+                        plan.folder(child, nextDestination);
+                    } else if (missing) {
+                        createFolder(nextDestination, context);
+                    }
+                } catch (IOException e) {
+                    // the other folders can still be uploaded
+                    log.error("Failed to create folder {}, will try next time", nextDestination, e);
+                    context.getFailedFolders().incrementAndGet();
+                    context.getDeadLetters().folder(child, nextDestination, e);
+                    continue;
                 }
                 // process files inside
-                processFolder(child, nextDestination, sardine);
+                submitFolder(child, nextDestination, context);
             }
         }
 
-        // process files separately and concurrently
-        final List<Future<?>> futures = new ArrayList<>();
         for (Path child : children) {
             if (isBannedFolder(child)) {
                 // skip
             } else if (Files.isRegularFile(child)) {
-                final long fileSize = Files.size(child);
+                final BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
+                final long fileSize = attributes.size();
+                final long modified = attributes.lastModifiedTime().toMillis();
+                if (!listRemote && manifest.isUploaded(child, fileSize, modified)) {
+                    context.getMetrics().count(ImportMetrics.UPLOADED_FILES, "skipped");
+                    continue;
+                }
                 final String fileName = child.getFileName().toString();
                 final String nextFile = parentDestination + URLEncoder.encode(fileName);
                 final Optional<RemoteResource> byName = getByName(existing, fileName)
@@ -111,26 +638,66 @@ public class WebDavImageUploader {
                             return true;
                         });
                 if (byName.isEmpty()) {
-                    final Future<?> future = executor.submit(() -> {
-                        log.info("Upload file {}", nextFile);
-                        try (final InputStream inputStream = Files.newInputStream(child)) {
-                            sardine.put(nextFile, inputStream);
-                        } catch (Exception e) {
-                            log.error("Failed to upload file {}, will try next time", fileName, e);
-                        }
-                    });
-                    futures.add(future);
+                    submit(child, nextFile, fileSize, context);
+                    continue;
+                }
+                final String remoteChecksum = remoteChecksums.get(byName.get().getName());
+                final String localChecksum = localChecksum(child, fileSize, modified, remoteChecksum, context);
+                if (remoteChecksum != null && localChecksum != null && !remoteChecksum.equals(localChecksum)) {
+                    log.warn("Resource [{}] exists, but the checksum differs, existing [{}], expected [{}]",
+                            fileName, remoteChecksum, localChecksum);
+                    submit(child, nextFile, fileSize, context);
+                } else {
+                    context.getMetrics().count(ImportMetrics.UPLOADED_FILES, "skipped");
+                    if (plan == null) {
+                        manifest.uploaded(child, fileSize, modified, etags.get(byName.get().getName()), localChecksum);
+                    }
                 }
             }
         }
+        // only a fully processed folder is trusted next time
+        if (plan == null) {
+            manifest.folderExists(parent);
+        }
+    }
 
-        // waiting for all futures to complete
-        for (Future<?> future : futures) {
-            future.get();
+    private void submit(Path file, String url, long size, UploadContext context) throws InterruptedException {
+        if (context.getPlan() != null) {
+            context.getPlan().file(file, url, size);
+        } else {
+            context.getUploads().submit(file, url);
         }
     }
 
-    private Optional<RemoteResource> getByName(Collection<RemoteResource> existing, String fileName) {
+    /**
+     * @return checksum of the local file from the manifest, computed only when the run verifies
+     * the remote side and there is a remote checksum to compare it with
+     */
+    private String localChecksum(Path file, long size, long modified, String remoteChecksum, UploadContext context) throws IOException {
+        final String recorded = context.getManifest().getChecksum(file, size, modified);
+        if (recorded != null || remoteChecksum == null || !context.isVerifyRemote()) {
+            return recorded;
+        }
+        return Checksums.of(file);
+    }
+
+    private void createFolder(String url, UploadContext context) throws IOException, InterruptedException {
+        log.debug("Create directory {}", url);
+        try {
+            context.getRetryPolicy().call("create " + url, () -> {
+                context.getSardine().createDirectory(url);
+                return null;
+            });
+        } catch (SardineException e) {
+            // created meanwhile, ex. by an attempt which timed out after the server handled it
+            if (e.getStatusCode() != 405) {
+                throw e;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static Optional<RemoteResource> getByName(Collection<RemoteResource> existing, String fileName) {
         for (RemoteResource resource : existing) {
             if (Strings.CI.equals(resource.getName(), fileName)) {
                 return Optional.of(resource);
@@ -147,6 +714,11 @@ public class WebDavImageUploader {
         return bannedNames.contains(fileName);
     }
 
+    @FunctionalInterface
+    private interface Sorting {
+        void sort(Path source, Path target, List<String> resolvers, PlacementListener listener, ImportMetrics metrics) throws Exception;
+    }
+
     @Data
     static class RemoteResource {
         private final String name;
@@ -0,0 +1,33 @@
+package dev.abarmin.icloud.importer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CommandStatusTest {
+
+    @Test
+    void getExitCode_whenNothingReported_shouldBeOk() {
+        assertThat(new CommandStatus().getExitCode()).isEqualTo(CommandStatus.OK);
+    }
+
+    @Test
+    void resolve_whenCommandThrows_shouldFailAndLeaveHandlingToShell() {
+        final CommandStatus status = new CommandStatus();
+
+        assertThat(status.resolve(new IOException("disk is gone"))).isNull();
+        assertThat(status.getExitCode()).isEqualTo(CommandStatus.FAILED);
+    }
+
+    @Test
+    void getExitCode_whenSeveralProblemsReported_shouldKeepFirst() {
+        final CommandStatus status = new CommandStatus();
+        status.invalidArguments();
+        status.partial();
+        status.resolve(new IOException("disk is gone"));
+
+        assertThat(status.getExitCode()).isEqualTo(CommandStatus.INVALID_ARGUMENTS);
+    }
+}
@@ -0,0 +1,166 @@
+package dev.abarmin.icloud.importer.dedup;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ContentIndexTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void placeIfUnique_whenSameContentDifferentName_shouldReturnExistingCopy() throws Exception {
+        try (ContentIndex index = open(4096)) {
+            final Path first = file("IMG_0001.JPG", content(1_000, 1));
+            final Path second = file("IMG_0001 (1).JPG", content(1_000, 1));
+
+            assertThat(index.placeIfUnique(first, () -> first)).isEmpty();
+            assertThat(index.placeIfUnique(second, () -> second)).hasValue(first);
+        }
+    }
+
+    @Test
+    void placeIfUnique_whenSameSizeDifferentContent_shouldPlace() throws Exception {
+        try (ContentIndex index = open(4096)) {
+            final Path first = file("IMG_0001.JPG", content(1_000, 1));
+            final Path second = file("IMG_0002.JPG", content(1_000, 2));
+
+            assertThat(index.placeIfUnique(first, () -> first)).isEmpty();
+            assertThat(index.placeIfUnique(second, () -> second)).isEmpty();
+            assertThat(index.size()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    void placeIfUnique_whenDifferenceOutsidePartialHash_shouldCompareWholeFile() throws Exception {
+        final int size = 3 * ContentIndex.PARTIAL_CHUNK;
+        final byte[] changed = content(size, 1);
+        changed[size / 2]++;
+        try (ContentIndex index = open(4096)) {
+            final Path first = file("IMG_0001.MOV", content(size, 1));
+            final Path second = file("IMG_0002.MOV", changed);
+            final Path third = file("IMG_0003.MOV", content(size, 1));
+
+            assertThat(index.placeIfUnique(first, () -> first)).isEmpty();
+            assertThat(index.placeIfUnique(second, () -> second)).isEmpty();
+            assertThat(index.placeIfUnique(third, () -> third)).hasValue(first);
+        }
+    }
+
+    @Test
+    void placeIfUnique_whenIndexedFileIsGone_shouldPlace() throws Exception {
+        try (ContentIndex index = open(4096)) {
+            final Path first = file("IMG_0001.JPG", content(1_000, 1));
+            index.placeIfUnique(first, () -> first);
+            Files.delete(first);
+            final Path second = file("IMG_0002.JPG", content(1_000, 1));
+
+            assertThat(index.placeIfUnique(second, () -> second)).isEmpty();
+        }
+    }
+
+    @Test
+    void placeIfUnique_whenFileBehindCachedHashIsGone_shouldPlace() throws Exception {
+        try (ContentIndex index = open(4096)) {
+            final Path first = file("IMG_0001.JPG", content(1_000, 1));
+            index.placeIfUnique(first, () -> first);
+            // same size, hashes the first file and keeps its hash
+            final Path second = file("IMG_0002.JPG", content(1_000, 2));
+            index.placeIfUnique(second, () -> second);
+            Files.delete(first);
+            final Path third = file("IMG_0003.JPG", content(1_000, 1));
+
+            assertThat(index.placeIfUnique(third, () -> third)).isEmpty();
+        }
+    }
+
+    @Test
+    void placeIfUnique_whenIndexedFileIsEditedInPlace_shouldPlace() throws Exception {
+        try (ContentIndex index = open(4096)) {
+            final Path first = file("IMG_0001.JPG", content(1_000, 1));
+            index.placeIfUnique(first, () -> first);
+            // same size, hashes the first file and keeps its hash
+            final Path second = file("IMG_0002.JPG", content(1_000, 2));
+            index.placeIfUnique(second, () -> second);
+            Files.write(first, content(1_000, 3));
+            Files.setLastModifiedTime(first, FileTime.fromMillis(Files.getLastModifiedTime(first).toMillis() + 2_000));
+            final Path third = file("IMG_0003.JPG", content(1_000, 1));
+
+            assertThat(index.placeIfUnique(third, () -> third)).isEmpty();
+        }
+    }
+
+    @Test
+    void remove_whenFileIsForgotten_shouldPlaceSameContentAgain() throws Exception {
+        try (ContentIndex index = open(4096)) {
+            final Path first = file("IMG_0001.JPG", content(1_000, 1));
+            index.placeIfUnique(first, () -> first);
+            final Path second = file("IMG_0002.JPG", content(1_000, 1));
+
+            index.remove(first, 1_000);
+
+            assertThat(index.placeIfUnique(second, () -> second)).isEmpty();
+        }
+    }
+
+    @Test
+    void open_whenReopenedAcrossSegments_shouldKeepAllEntries() throws Exception {
+        final int files = 200;
+        try (ContentIndex index = open(1024)) {
+            for (int i = 0; i < files; i++) {
+                final Path file = file("IMG_" + i + ".JPG", content(100 + i % 10, i));
+                index.placeIfUnique(file, () -> file);
+            }
+        }
+
+        try (ContentIndex index = open(1024)) {
+            assertThat(index.size()).isEqualTo(files);
+            final Path copy = file("copy.JPG", content(100 + 123 % 10, 123));
+            final Optional<Path> existing = index.placeIfUnique(copy, () -> copy);
+            assertThat(existing).hasValue(root.resolve("IMG_123.JPG"));
+        }
+    }
+
+    @Test
+    void open_whenIndexHasVersion1_shouldKeepEntries() throws Exception {
+        final Path first = file("IMG_0001.JPG", content(1_000, 1));
+        final byte[] path = "IMG_0001.JPG".getBytes(StandardCharsets.UTF_8);
+        final int length = (36 + path.length + 7) & ~7;
+        final ByteBuffer legacy = ByteBuffer.allocate(16 + length);
+        legacy.putInt(0, 0x49434849).putInt(4, 1).putLong(8, 16 + length);
+        legacy.putLong(16, 1_000).putShort(16 + 34, (short) path.length).put(16 + 36, path);
+        Files.write(root.resolve(ContentIndex.FILE_NAME), legacy.array());
+
+        try (ContentIndex index = open(4096)) {
+            final Path copy = file("copy.JPG", content(1_000, 1));
+
+            assertThat(index.size()).isEqualTo(1);
+            assertThat(index.placeIfUnique(copy, () -> copy)).hasValue(first);
+        }
+    }
+
+    private ContentIndex open(int segmentSize) throws Exception {
+        return new ContentIndex(root, root.resolve(ContentIndex.FILE_NAME), segmentSize);
+    }
+
+    private byte[] content(int size, int seed) {
+        final byte[] content = new byte[size];
+        Arrays.fill(content, (byte) seed);
+        content[0] = (byte) (seed >> 8);
+        return content;
+    }
+
+    private Path file(String name, byte[] content) throws Exception {
+        return Files.write(root.resolve(name), content);
+    }
+}
@@ -0,0 +1,65 @@
+package dev.abarmin.icloud.importer.metadata;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ExifDateReaderTest {
+
+    ExifDateReader reader = new ExifDateReader();
+
+    @Test
+    void readDateTimeOriginal_whenBigEndianExif_shouldReturnDate() throws Exception {
+        final Path file = write(JpegFixtures.jpeg(64, 48, "2023:01:05 10:20:30", ByteOrder.BIG_ENDIAN, 0));
+
+        assertThat(reader.readDateTimeOriginal(file)).hasValue("2023:01:05 10:20:30");
+    }
+
+    @Test
+    void readDateTimeOriginal_whenLittleEndianExif_shouldReturnDate() throws Exception {
+        final Path file = write(JpegFixtures.jpeg(64, 48, "2019:12:31 23:59:59", ByteOrder.LITTLE_ENDIAN, 0));
+
+        assertThat(reader.readDateTimeOriginal(file)).hasValue("2019:12:31 23:59:59");
+    }
+
+    @Test
+    void readDateTimeOriginal_whenExifIsLargerThanInitialWindow_shouldReturnDate() throws Exception {
+        final Path file = write(JpegFixtures.jpeg(64, 48, "2020:06:01 08:00:00", ByteOrder.BIG_ENDIAN, 40_000));
+
+        assertThat(reader.readDateTimeOriginal(file)).hasValue("2020:06:01 08:00:00");
+    }
+
+    @Test
+    void readDateTimeOriginal_whenTagIsMissing_shouldReturnEmpty() throws Exception {
+        final Path file = write(JpegFixtures.jpeg(64, 48, null, ByteOrder.BIG_ENDIAN, 0));
+
+        assertThat(reader.readDateTimeOriginal(file)).isEmpty();
+    }
+
+    @Test
+    void readDateTimeOriginal_whenNoExifBlock_shouldReturnEmpty() throws Exception {
+        final Path file = write(JpegFixtures.plainJpeg(64, 48));
+
+        assertThat(reader.readDateTimeOriginal(file)).isEmpty();
+    }
+
+    @Test
+    void readDateTimeOriginal_whenNotJpeg_shouldThrowUnsupported() throws Exception {
+        final Path file = Files.createTempFile("image", ".png");
+        Files.write(file, new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+
+        assertThatThrownBy(() -> reader.readDateTimeOriginal(file))
+                .isInstanceOf(UnsupportedFormatException.class);
+    }
+
+    private Path write(byte[] content) throws Exception {
+        final Path file = Files.createTempFile("image", ".jpg");
+        Files.write(file, content);
+        return file;
+    }
+}
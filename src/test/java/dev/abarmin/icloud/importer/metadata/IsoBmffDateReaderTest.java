@@ -0,0 +1,159 @@
+package dev.abarmin.icloud.importer.metadata;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IsoBmffDateReaderTest {
+
+    // 2023-01-05T10:20:30Z in seconds since 1904-01-01
+    static final long CREATION_TIME = Instant.parse("2023-01-05T10:20:30Z").getEpochSecond() + 2_082_844_800L;
+
+    IsoBmffDateReader reader = new IsoBmffDateReader();
+
+    @Test
+    void readMovieCreationTime_whenMvhdVersion0_shouldReturnCreationTime() throws Exception {
+        final byte[] mvhd = fullBox("mvhd", 0, ByteBuffer.allocate(96).putInt((int) CREATION_TIME).array());
+        final Path file = write(
+                box("ftyp", "qt  ".getBytes(StandardCharsets.ISO_8859_1)),
+                box("mdat", new byte[10_000]),
+                box("moov", mvhd)
+        );
+
+        assertThat(reader.readMovieCreationTime(file)).hasValue(Instant.parse("2023-01-05T10:20:30Z"));
+    }
+
+    @Test
+    void readMovieCreationTime_whenMvhdVersion1AndLargeMdat_shouldReturnCreationTime() throws Exception {
+        final byte[] mvhd = fullBox("mvhd", 1, ByteBuffer.allocate(108).putLong(CREATION_TIME).array());
+        // mdat with a 64-bit size
+        final ByteBuffer mdat = ByteBuffer.allocate(16 + 1_000)
+                .putInt(1)
+                .put("mdat".getBytes(StandardCharsets.ISO_8859_1))
+                .putLong(16 + 1_000);
+        final Path file = write(
+                box("ftyp", "mp42".getBytes(StandardCharsets.ISO_8859_1)),
+                mdat.array(),
+                box("moov", mvhd)
+        );
+
+        assertThat(reader.readMovieCreationTime(file)).hasValue(Instant.parse("2023-01-05T10:20:30Z"));
+    }
+
+    @Test
+    void readMovieCreationTime_whenCreationTimeNotSet_shouldReturnEmpty() throws Exception {
+        final byte[] mvhd = fullBox("mvhd", 0, new byte[96]);
+        final Path file = write(box("ftyp", "mp42".getBytes(StandardCharsets.ISO_8859_1)), box("moov", mvhd));
+
+        assertThat(reader.readMovieCreationTime(file)).isEmpty();
+    }
+
+    @Test
+    void readMovieCreationTime_whenNotIsoBmff_shouldThrowUnsupported() throws Exception {
+        final Path file = write("RIFF....AVI LIST".getBytes(StandardCharsets.ISO_8859_1));
+
+        assertThatThrownBy(() -> reader.readMovieCreationTime(file))
+                .isInstanceOf(UnsupportedFormatException.class);
+    }
+
+    @Test
+    void readHeifDateTimeOriginal_whenExifItemInMdat_shouldReturnDate() throws Exception {
+        final byte[] tiff = JpegFixtures.tiff("2023:01:05 10:20:30", ByteOrder.BIG_ENDIAN, 0);
+        final byte[] exifItem = ByteBuffer.allocate(4 + 6 + tiff.length)
+                .putInt(6)
+                .put(new byte[]{'E', 'x', 'i', 'f', 0, 0})
+                .put(tiff)
+                .array();
+        final byte[] ftyp = box("ftyp", "heic".getBytes(StandardCharsets.ISO_8859_1));
+
+        // meta size doesn't depend on offsets, so build it once to learn where mdat starts
+        final int metaSize = heifMeta(0).length;
+        final int exifOffset = ftyp.length + metaSize + 8;
+        final Path file = write(ftyp, heifMeta(exifOffset), box("mdat", exifItem));
+
+        assertThat(reader.readHeifDateTimeOriginal(file)).hasValue("2023:01:05 10:20:30");
+    }
+
+    @Test
+    void readHeifDateTimeOriginal_whenNoExifItem_shouldReturnEmpty() throws Exception {
+        final byte[] iinf = fullBox("iinf", 0, concat(
+                ByteBuffer.allocate(2).putShort((short) 1).array(),
+                infe(1, "hvc1")
+        ));
+        final byte[] iloc = fullBox("iloc", 0, ByteBuffer.allocate(4).put((byte) 0x44).put((byte) 0).putShort((short) 0).array());
+        final Path file = write(
+                box("ftyp", "heic".getBytes(StandardCharsets.ISO_8859_1)),
+                fullBox("meta", 0, concat(iinf, iloc))
+        );
+
+        assertThat(reader.readHeifDateTimeOriginal(file)).isEmpty();
+    }
+
+    private byte[] heifMeta(int exifOffset) {
+        final byte[] hdlr = fullBox("hdlr", 0, "\0\0\0\0pict\0\0\0\0\0\0\0\0\0\0\0\0\0".getBytes(StandardCharsets.ISO_8859_1));
+        final byte[] iinf = fullBox("iinf", 0, concat(
+                ByteBuffer.allocate(2).putShort((short) 2).array(),
+                infe(1, "hvc1"),
+                infe(2, "Exif")
+        ));
+        // version 1: offset size 4, length size 4, base offset size 0, index size 0
+        final ByteBuffer locations = ByteBuffer.allocate(2 + 2 + 2 * 16)
+                .put((byte) 0x44)
+                .put((byte) 0x00)
+                .putShort((short) 2);
+        for (int item = 1; item <= 2; item++) {
+            locations.putShort((short) item)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) 1)
+                    .putInt(item == 2 ? exifOffset : 0)
+                    .putInt(item == 2 ? 100 : 0);
+        }
+        final byte[] iloc = fullBox("iloc", 1, locations.array());
+        return fullBox("meta", 0, concat(hdlr, iinf, iloc));
+    }
+
+    private byte[] infe(int itemId, String type) {
+        return fullBox("infe", 2, ByteBuffer.allocate(2 + 2 + 4 + 1)
+                .putShort((short) itemId)
+                .putShort((short) 0)
+                .put(type.getBytes(StandardCharsets.ISO_8859_1))
+                .put((byte) 0)
+                .array());
+    }
+
+    private byte[] fullBox(String type, int version, byte[] payload) {
+        return box(type, concat(new byte[]{(byte) version, 0, 0, 0}, payload));
+    }
+
+    private byte[] box(String type, byte[] payload) {
+        return ByteBuffer.allocate(8 + payload.length)
+                .putInt(8 + payload.length)
+                .put(type.getBytes(StandardCharsets.ISO_8859_1))
+                .put(payload)
+                .array();
+    }
+
+    private byte[] concat(byte[]... parts) {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            result.writeBytes(part);
+        }
+        return result.toByteArray();
+    }
+
+    private Path write(byte[]... parts) throws Exception {
+        final Path file = Files.createTempFile("media", ".bin");
+        Files.write(file, concat(parts));
+        return file;
+    }
+}
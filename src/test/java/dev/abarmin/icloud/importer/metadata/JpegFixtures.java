@@ -0,0 +1,93 @@
+package dev.abarmin.icloud.importer.metadata;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates JPEG files with an Exif block for tests and benchmarks.
+ */
+public class JpegFixtures {
+
+    /**
+     * @param dateTimeOriginal value of the DateTimeOriginal tag or null to skip the tag
+     * @param thumbnailSize    number of filler bytes after the IFDs, imitates an embedded thumbnail
+     */
+    public static byte[] jpeg(int width, int height, String dateTimeOriginal, ByteOrder order, int thumbnailSize) {
+        final byte[] image = plainJpeg(width, height);
+        final byte[] tiff = tiff(dateTimeOriginal, order, thumbnailSize);
+
+        final ByteBuffer app1 = ByteBuffer.allocate(4 + 6 + tiff.length).order(ByteOrder.BIG_ENDIAN);
+        app1.put((byte) 0xFF).put((byte) 0xE1);
+        app1.putShort((short) (2 + 6 + tiff.length));
+        app1.put(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+        app1.put(tiff);
+
+        // Exif block goes right after SOI
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(image.length + app1.capacity());
+        result.write(image, 0, 2);
+        result.write(app1.array(), 0, app1.capacity());
+        result.write(image, 2, image.length - 2);
+        return result.toByteArray();
+    }
+
+    public static byte[] jpeg(String dateTimeOriginal) {
+        return jpeg(64, 48, dateTimeOriginal, ByteOrder.BIG_ENDIAN, 0);
+    }
+
+    /**
+     * JPEG as written by ImageIO, it has JFIF header only and no Exif block.
+     */
+    public static byte[] plainJpeg(int width, int height) {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Random random = new Random(width * 31L + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt(0xFFFFFF));
+            }
+        }
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "jpg", outputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * TIFF structure with IFD0 pointing to an Exif IFD, which holds DateTimeOriginal.
+     */
+    public static byte[] tiff(String dateTimeOriginal, ByteOrder order, int thumbnailSize) {
+        final int ifd0 = 8;
+        final int exifIfd = ifd0 + 2 + 12 + 4;
+        final int exifEntries = dateTimeOriginal == null ? 0 : 1;
+        final int valueOffset = exifIfd + 2 + exifEntries * 12 + 4;
+        final byte[] value = dateTimeOriginal == null
+                ? new byte[0]
+                : (dateTimeOriginal + "\0").getBytes(StandardCharsets.US_ASCII);
+
+        final ByteBuffer tiff = ByteBuffer.allocate(valueOffset + value.length + thumbnailSize).order(order);
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? new byte[]{'M', 'M'} : new byte[]{'I', 'I'});
+        tiff.putShort((short) 42);
+        tiff.putInt(ifd0);
+        // IFD0 with Exif IFD pointer only
+        tiff.putShort((short) 1);
+        tiff.putShort((short) 0x8769).putShort((short) 4).putInt(1).putInt(exifIfd);
+        tiff.putInt(0);
+        // Exif IFD
+        tiff.putShort((short) exifEntries);
+        if (dateTimeOriginal != null) {
+            tiff.putShort((short) 0x9003).putShort((short) 2).putInt(value.length).putInt(valueOffset);
+        }
+        tiff.putInt(0);
+        tiff.put(value);
+        return tiff.array();
+    }
+}
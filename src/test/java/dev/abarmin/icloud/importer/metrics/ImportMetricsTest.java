@@ -0,0 +1,46 @@
+package dev.abarmin.icloud.importer.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ImportMetricsTest {
+
+    @Test
+    void writeSummary_whenFilesAreCounted_shouldGroupOutcomes() throws Exception {
+        final ImportMetrics metrics = new ImportMetrics();
+        metrics.count(ImportMetrics.SORTED_FILES, "sorted");
+        metrics.count(ImportMetrics.SORTED_FILES, "sorted");
+        metrics.count(ImportMetrics.SORTED_FILES, "duplicate");
+        metrics.count(ImportMetrics.UPLOADED_FILES, "skipped");
+        final Path summary = Files.createTempFile("summary", ".json");
+
+        metrics.writeSummary(summary, "image-sort");
+
+        final String json = Files.readString(summary);
+        assertThat(json).contains("\"command\": \"image-sort\"");
+        assertThat(json).contains("\"importer.files\": {\"duplicate\": 1, \"sorted\": 2}");
+        assertThat(json).contains("\"webdav.files\": {\"skipped\": 1}");
+    }
+
+    @Test
+    void writeSummary_whenPhasesAreTimed_shouldWriteTimers() throws Exception {
+        final ImportMetrics metrics = new ImportMetrics();
+        metrics.record(ImportMetrics.MOVE, System.nanoTime());
+        metrics.record(ImportMetrics.MOVE, System.nanoTime());
+        metrics.getSorting().expect(2);
+        metrics.getSorting().done(1024);
+        final Path summary = Files.createTempFile("summary", ".json");
+
+        metrics.writeSummary(summary, "image-sort");
+
+        final String json = Files.readString(summary);
+        assertThat(json).contains("\"importer.move\": {\"count\": 2");
+        assertThat(json).contains("\"sorted\": {\"files\": 1, \"bytes\": 1024");
+        // nothing was uploaded
+        assertThat(json).doesNotContain("\"uploaded\"");
+    }
+}
@@ -0,0 +1,48 @@
+package dev.abarmin.icloud.importer.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ProgressBarTest {
+
+    @Test
+    void render_whenNothingStarted_shouldBeEmpty() {
+        final String line = ProgressBar.render(List.of(new Progress("sorted")), TimeUnit.SECONDS.toNanos(1));
+
+        assertThat(line).isEmpty();
+    }
+
+    @Test
+    void render_whenFilesAreStillDiscovered_shouldOmitEstimate() {
+        final Progress sorted = new Progress("sorted");
+        sorted.expect(10);
+        sorted.done(1_000_000);
+
+        final String line = ProgressBar.render(List.of(sorted), TimeUnit.SECONDS.toNanos(1));
+
+        assertThat(line).isEqualTo("sorted 1/10+ | 1.0 files/s 1.0 MB/s");
+    }
+
+    @Test
+    void render_whenAllFilesAreKnown_shouldEstimateRemainingTime() {
+        final Progress sorted = new Progress("sorted");
+        sorted.expect(4);
+        sorted.expectNoMore();
+        for (int i = 0; i < 4; i++) {
+            sorted.done(0);
+        }
+        final Progress uploaded = new Progress("uploaded");
+        uploaded.expect(4);
+        uploaded.expectNoMore();
+        uploaded.done(2_000_000);
+        uploaded.done(2_000_000);
+
+        final String line = ProgressBar.render(List.of(sorted, uploaded), TimeUnit.SECONDS.toNanos(2));
+
+        assertThat(line).isEqualTo("sorted 4/4 | uploaded 2/4 | 1.0 files/s 2.0 MB/s | ETA 00:00:02");
+    }
+}
@@ -1,21 +1,127 @@
 package dev.abarmin.icloud.importer.sort;
 
+import dev.abarmin.icloud.importer.MetadataDirectory;
+import dev.abarmin.icloud.importer.metrics.ImportMetrics;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 @ExtendWith(MockitoExtension.class)
 class CsvImageSorterTest {
 
+    private static final List<String> DEFAULT_RESOLVERS = DateResolverChain.parseOrder(DateResolverChain.DEFAULT_ORDER);
+
+    @Spy
+    SourceScanner scanner = new SourceScanner();
+
+    @Spy
+    PhotoDetailsReader detailsReader = new PhotoDetailsReader();
+
     @InjectMocks
     CsvImageSorter sorter;
 
+    @Test
+    void sort_whenFilesArePlaced_shouldReportEveryFile() throws Exception {
+        final Path sourceDirectory = Files.createTempDirectory("source");
+        final Path targetDirectory = Files.createTempDirectory("target");
+        Files.writeString(sourceDirectory.resolve("Photo Details.csv"), PhotoDetailsReaderTest.HEADER
+                + "IMG_0001.JPG,abc,no,no,no,\"Thursday January 5,2023 10:20 AM GMT\",0,\n"
+                + "IMG_0002.JPG,abc,no,no,no,\"Monday February 6,2023 10:20 AM GMT\",0,\n"
+                + "IMG_0003.JPG,abc,no,no,no,\"Monday February 6,2023 10:20 AM GMT\",0,\n");
+        Files.writeString(sourceDirectory.resolve("IMG_0001.JPG"), "first");
+        Files.writeString(sourceDirectory.resolve("IMG_0002.JPG"), "second");
+        Files.writeString(sourceDirectory.resolve("IMG_0003.JPG"), "first");
+        final List<Path> placed = new CopyOnWriteArrayList<>();
+        final ImportMetrics metrics = new ImportMetrics();
+
+        sorter.sort(List.of(sourceDirectory), targetDirectory, 2, DEFAULT_RESOLVERS, placed::add, metrics);
+
+        assertThat(placed).hasSize(3);
+        assertThat(placed).contains(targetDirectory.resolve("2023").resolve("02").resolve("IMG_0002.JPG"));
+        // one of the same two files is a duplicate, depending on which one was sorted first
+        assertThat(placed.stream().map(Path::getParent)).contains(targetDirectory.resolve("duplicates"));
+        assertThat(placed.stream().allMatch(Files::exists)).isTrue();
+        assertThat(metrics.getSorting().getExpected()).isEqualTo(3);
+        assertThat(metrics.getSorting().getDone()).isEqualTo(3);
+        assertThat(metrics.getSorting().isComplete()).isTrue();
+    }
+
+    @Test
+    void dryRun_whenFilesCollide_shouldPlanWithoutMoving() throws Exception {
+        final Path sourceDirectory = sourceWithDetails();
+        final Path targetDirectory = Files.createTempDirectory("target");
+        final Path existing = Files.createDirectories(targetDirectory.resolve("2023").resolve("02")).resolve("IMG_0002.JPG");
+        Files.writeString(existing, "other");
+
+        final SortPlan plan = sorter.dryRun(List.of(sourceDirectory), targetDirectory, 2, DEFAULT_RESOLVERS, new ImportMetrics());
+
+        assertThat(plan.getMoves()).hasSize(3);
+        assertThat(plan.getMoves().stream().map(SortPlan.Move::getTarget))
+                .contains(targetDirectory.resolve("2023").resolve("02").resolve("IMG_0002_1.JPG"));
+        assertThat(plan.summary().get("sorted")[0]).isEqualTo(2);
+        assertThat(plan.summary().get("duplicate")[0]).isEqualTo(1);
+        assertThat(plan.renamed()).isEqualTo(1);
+        // nothing has been touched
+        assertThat(sourceDirectory.resolve("IMG_0001.JPG")).exists();
+        assertThat(sourceDirectory.resolve("IMG_0003.JPG")).exists();
+        assertThat(targetDirectory.resolve("2023").resolve("01")).doesNotExist();
+        assertThat(targetDirectory.resolve("duplicates")).doesNotExist();
+        assertThat(existing).hasContent("other");
+    }
+
+    @Test
+    void execute_whenPlanIsWritten_shouldMoveFilesToPlannedTargets() throws Exception {
+        final Path sourceDirectory = sourceWithDetails();
+        final Path targetDirectory = Files.createTempDirectory("target");
+        final SortPlan plan = sorter.dryRun(List.of(sourceDirectory), targetDirectory, 2, DEFAULT_RESOLVERS, new ImportMetrics());
+        final Path planFile = plan.write(Files.createTempDirectory("metadata"));
+
+        final int moved = sorter.execute(planFile, targetDirectory, new ImportMetrics());
+
+        assertThat(moved).isEqualTo(3);
+        for (SortPlan.Move move : plan.getMoves()) {
+            assertThat(move.getSource()).doesNotExist();
+            assertThat(move.getTarget()).exists();
+        }
+    }
+
+    @Test
+    void dryRun_whenMetadataHasNoDate_shouldFallBackAndCacheIt() throws Exception {
+        final Path sourceDirectory = Files.createTempDirectory("source");
+        final Path targetDirectory = Files.createTempDirectory("target");
+        final Path photo = Files.writeString(sourceDirectory.resolve("IMG_20230105_102030.JPG"), "not a jpeg");
+        final Path other = Files.writeString(sourceDirectory.resolve("IMG_0001.JPG"), "not a jpeg either");
+
+        final SortPlan plan = sorter.dryRun(List.of(sourceDirectory), targetDirectory, 2,
+                DateResolverChain.parseOrder("csv,exif,filename"), new ImportMetrics());
+
+        assertThat(plan.getMoves().stream().map(SortPlan.Move::getTarget)).containsExactlyInAnyOrder(
+                targetDirectory.resolve("2023").resolve("01").resolve("IMG_20230105_102030.JPG"),
+                targetDirectory.resolve("unsorted").resolve("IMG_0001.JPG"));
+        try (DateCache cache = DateCache.open(targetDirectory.resolve(MetadataDirectory.NAME))) {
+            for (Path file : List.of(photo, other)) {
+                final DateCache.Entry cached = cache.get(DateResolverChain.EXIF, file,
+                        Files.size(file), Files.getLastModifiedTime(file).toMillis());
+                assertThat(cached).isNotNull();
+                assertThat(cached.getDate()).isNull();
+            }
+        }
+    }
+
     @Test
     void moveAvoidingDuplicates_whenNoFileExists_shouldJustMove() throws Exception {
         final Path targetDirectory = Files.createTempDirectory("target");
@@ -41,4 +147,189 @@ class CsvImageSorterTest {
         assertThat(existingCopy).exists();
         assertThat(result).hasParent(targetDirectory);
     }
-}
\ No newline at end of file
+
+    @Test
+    void moveAvoidingDuplicates_whenMovedConcurrently_shouldPickDistinctNames() throws Exception {
+        final Path targetDirectory = Files.createTempDirectory("target");
+        final List<Path> sourceFiles = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            final Path sourceDirectory = Files.createTempDirectory("source");
+            sourceFiles.add(Files.writeString(sourceDirectory.resolve("IMG_0001.JPG"), "content " + i));
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Path>> futures = new ArrayList<>();
+            for (Path sourceFile : sourceFiles) {
+                futures.add(executor.submit(() -> sorter.moveAvoidingDuplicates(sourceFile, targetDirectory)));
+            }
+            for (Future<Path> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        final List<String> expectedNames = new ArrayList<>();
+        expectedNames.add("IMG_0001.JPG");
+        for (int i = 1; i < 50; i++) {
+            expectedNames.add("IMG_0001_" + i + ".JPG");
+        }
+        try (Stream<Path> files = Files.list(targetDirectory)) {
+            assertThat(files.map(file -> file.getFileName().toString()).toList())
+                    .containsExactlyInAnyOrderElementsOf(expectedNames);
+        }
+    }
+
+    @Test
+    void moveAvoidingDuplicates_whenFileAppearsAfterListing_shouldNotOverwriteIt() throws Exception {
+        final Path targetDirectory = Files.createTempDirectory("target");
+        final Path sourceDirectory = Files.createTempDirectory("source");
+        final NameRegistry names = new NameRegistry();
+        final Path first = sorter.moveAvoidingDuplicates(
+                Files.writeString(sourceDirectory.resolve("IMG_0002.JPG"), "first"), targetDirectory, names, null);
+        // created by someone else, the registry has listed the directory already
+        final Path other = Files.writeString(targetDirectory.resolve("IMG_0001.JPG"), "other");
+
+        final Path result = sorter.moveAvoidingDuplicates(
+                Files.writeString(sourceDirectory.resolve("IMG_0001.JPG"), "content"), targetDirectory, names, null);
+
+        assertThat(first).isEqualTo(targetDirectory.resolve("IMG_0002.JPG"));
+        assertThat(result).isEqualTo(targetDirectory.resolve("IMG_0001_1.JPG"));
+        assertThat(result).hasContent("content");
+        assertThat(other).hasContent("other");
+    }
+
+    @Test
+    void moveAvoidingDuplicates_whenNameIsTaken_shouldJournalOnlyTheMove() throws Exception {
+        final Path targetDirectory = Files.createTempDirectory("target");
+        final Path sourceDirectory = Files.createTempDirectory("source");
+        final NameRegistry names = new NameRegistry();
+        names.reserve(targetDirectory, "IMG_0000.JPG");
+        // created by someone else after the directory was listed
+        Files.writeString(targetDirectory.resolve("IMG_0001.JPG"), "other");
+        final Path sourceFile = Files.writeString(sourceDirectory.resolve("IMG_0001.JPG"), "content");
+
+        final Path journalFile;
+        final Path result;
+        try (MoveJournal journal = MoveJournal.create(Files.createTempDirectory("metadata"))) {
+            journalFile = journal.getFile();
+            result = sorter.moveAvoidingDuplicates(sourceFile, targetDirectory, names, journal);
+        }
+
+        final List<MoveJournal.Move> moves = MoveJournal.read(journalFile);
+        assertThat(moves).hasSize(1);
+        assertThat(moves.get(0).getTarget()).isEqualTo(result.toAbsolutePath());
+        assertThat(moves.get(0).isDone()).isTrue();
+    }
+
+    @Test
+    void completePending_whenOnlyNameWasTaken_shouldReplacePlaceholder() throws Exception {
+        final Path sourceDirectory = Files.createTempDirectory("source");
+        final Path targetDirectory = Files.createTempDirectory("target");
+        final Path source = Files.writeString(sourceDirectory.resolve("IMG_0001.JPG"), "content");
+        final Path placeholder = Files.createFile(targetDirectory.resolve("IMG_0001.JPG"));
+
+        final Path journalFile;
+        try (MoveJournal journal = MoveJournal.create(Files.createTempDirectory("metadata"))) {
+            journalFile = journal.getFile();
+            journal.plan(source, placeholder);
+        }
+
+        try (MoveJournal journal = MoveJournal.open(journalFile)) {
+            assertThat(sorter.completePending(journal)).isEqualTo(1);
+        }
+        assertThat(source).doesNotExist();
+        assertThat(placeholder).hasContent("content");
+    }
+
+    @Test
+    void completePending_whenMoveWasInterrupted_shouldFinishIt() throws Exception {
+        final Path sourceDirectory = Files.createTempDirectory("source");
+        final Path targetDirectory = Files.createTempDirectory("target");
+        final Path moved = Files.createFile(targetDirectory.resolve("IMG_0001.JPG"));
+        final Path notMoved = Files.createFile(sourceDirectory.resolve("IMG_0002.JPG"));
+        final Path notMovedTarget = targetDirectory.resolve("2023").resolve("01").resolve("IMG_0002.JPG");
+
+        final Path journalFile;
+        try (MoveJournal journal = MoveJournal.create(Files.createTempDirectory("metadata"))) {
+            journalFile = journal.getFile();
+            journal.plan(sourceDirectory.resolve("IMG_0001.JPG"), moved);
+            journal.plan(notMoved, notMovedTarget);
+        }
+
+        try (MoveJournal journal = MoveJournal.open(journalFile)) {
+            assertThat(sorter.completePending(journal)).isEqualTo(2);
+        }
+        assertThat(MoveJournal.read(journalFile).stream().allMatch(MoveJournal.Move::isDone)).isTrue();
+        assertThat(notMoved).doesNotExist();
+        assertThat(notMovedTarget).exists();
+    }
+
+    @Test
+    void undo_whenFilesWereMoved_shouldMoveThemBack() throws Exception {
+        final Path sourceDirectory = Files.createTempDirectory("source");
+        final Path targetDirectory = Files.createTempDirectory("target");
+        final Path sourceFile = Files.writeString(sourceDirectory.resolve("IMG_0001.JPG"), "content");
+
+        final Path journalFile;
+        try (MoveJournal journal = MoveJournal.create(Files.createTempDirectory("metadata"))) {
+            journalFile = journal.getFile();
+            final Path result = sorter.moveAvoidingDuplicates(sourceFile, targetDirectory);
+            journal.done(journal.plan(sourceFile, result));
+        }
+
+        assertThat(sorter.undo(journalFile, targetDirectory)).isEqualTo(1);
+        assertThat(sourceFile).hasContent("content");
+        assertThat(journalFile).doesNotExist();
+        assertThat(journalFile.resolveSibling(journalFile.getFileName() + ".undone")).exists();
+    }
+
+    @Test
+    void sort_whenRunIsUndone_shouldSortFilesAgain() throws Exception {
+        final Path sourceDirectory = sourceWithDetails();
+        final Path targetDirectory = Files.createTempDirectory("target");
+        sorter.sort(List.of(sourceDirectory), targetDirectory, 2, DEFAULT_RESOLVERS, PlacementListener.NONE, new ImportMetrics());
+        final Path journalFile = MoveJournal.latest(targetDirectory.resolve(MetadataDirectory.NAME)).orElseThrow();
+        assertThat(sorter.undo(journalFile, targetDirectory)).isEqualTo(3);
+
+        sorter.sort(List.of(sourceDirectory), targetDirectory, 2, DEFAULT_RESOLVERS, PlacementListener.NONE, new ImportMetrics());
+
+        assertThat(targetDirectory.resolve("2023").resolve("02").resolve("IMG_0002.JPG")).hasContent("second");
+        // as in the first run, one of the identical files is sorted and the other one is its duplicate
+        try (Stream<Path> sorted = Files.walk(targetDirectory.resolve("2023"));
+             Stream<Path> duplicates = Files.list(targetDirectory.resolve("duplicates"))) {
+            assertThat(sorted.filter(Files::isRegularFile).count()).isEqualTo(2);
+            assertThat(duplicates.count()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void undo_whenFilesWereParsed_shouldKeepTheirCachedDates() throws Exception {
+        final Path sourceDirectory = Files.createTempDirectory("source");
+        final Path photo = Files.writeString(sourceDirectory.resolve("IMG_0001.JPG"), "first");
+        final long modified = Files.getLastModifiedTime(photo).toMillis();
+        final Path targetDirectory = Files.createTempDirectory("target");
+        sorter.sort(List.of(sourceDirectory), targetDirectory, 2, DEFAULT_RESOLVERS, PlacementListener.NONE, new ImportMetrics());
+        final Path journalFile = MoveJournal.latest(targetDirectory.resolve(MetadataDirectory.NAME)).orElseThrow();
+
+        assertThat(sorter.undo(journalFile, targetDirectory)).isEqualTo(1);
+
+        try (DateCache cache = DateCache.open(targetDirectory.resolve(MetadataDirectory.NAME))) {
+            // no date in the file, which is remembered as well
+            assertThat(cache.get(DateResolverChain.EXIF, photo, 5, modified)).isNotNull();
+        }
+    }
+
+    private Path sourceWithDetails() throws Exception {
+        final Path sourceDirectory = Files.createTempDirectory("source");
+        Files.writeString(sourceDirectory.resolve("Photo Details.csv"), PhotoDetailsReaderTest.HEADER
+                + "IMG_0001.JPG,abc,no,no,no,\"Thursday January 5,2023 10:20 AM GMT\",0,\n"
+                + "IMG_0002.JPG,abc,no,no,no,\"Monday February 6,2023 10:20 AM GMT\",0,\n"
+                + "IMG_0003.JPG,abc,no,no,no,\"Monday February 6,2023 10:20 AM GMT\",0,\n");
+        Files.writeString(sourceDirectory.resolve("IMG_0001.JPG"), "first");
+        Files.writeString(sourceDirectory.resolve("IMG_0002.JPG"), "second");
+        Files.writeString(sourceDirectory.resolve("IMG_0003.JPG"), "first");
+        return sourceDirectory;
+    }
+}
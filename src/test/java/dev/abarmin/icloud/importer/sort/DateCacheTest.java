@@ -0,0 +1,71 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DateCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void get_whenReopened_shouldReturnDatesOfUnchangedFiles() throws Exception {
+        final Path photo = Files.writeString(directory.resolve("IMG\t0001.JPG"), "photo");
+        final Path video = Files.writeString(directory.resolve("IMG_0002.MOV"), "video");
+        try (DateCache cache = DateCache.open(directory)) {
+            cache.put("exif", photo, 5, 1000, LocalDate.of(2023, 1, 5));
+            cache.put("container", video, 5, 1000, null);
+        }
+
+        try (DateCache cache = DateCache.open(directory)) {
+            assertThat(cache.get("exif", photo, 5, 1000).getDate()).isEqualTo(LocalDate.of(2023, 1, 5));
+            assertThat(cache.get("container", video, 5, 1000).getDate()).isNull();
+            // changed since, or resolved by another resolver only
+            assertThat(cache.get("exif", photo, 6, 1000)).isNull();
+            assertThat(cache.get("exif", photo, 5, 2000)).isNull();
+            assertThat(cache.get("filename", photo, 5, 1000)).isNull();
+        }
+    }
+
+    @Test
+    void close_whenFileIsGone_shouldDropIt() throws Exception {
+        final Path photo = Files.writeString(directory.resolve("IMG_0001.JPG"), "photo");
+        final Path moved = Files.writeString(directory.resolve("IMG_0002.JPG"), "photo");
+        try (DateCache cache = DateCache.open(directory)) {
+            cache.put("exif", photo, 5, 1000, LocalDate.of(2023, 1, 5));
+            cache.put("exif", moved, 5, 1000, LocalDate.of(2023, 1, 5));
+        }
+        Files.delete(moved);
+
+        try (DateCache cache = DateCache.open(directory)) {
+            assertThat(cache.size()).isEqualTo(2);
+        }
+        try (DateCache cache = DateCache.open(directory)) {
+            assertThat(cache.size()).isEqualTo(1);
+            assertThat(cache.get("exif", photo, 5, 1000)).isNotNull();
+        }
+    }
+
+    @Test
+    void moved_whenFileIsMoved_shouldKeepItsResults() throws Exception {
+        final Path photo = Files.writeString(directory.resolve("IMG_0001.JPG"), "photo");
+        final Path target = Files.createDirectories(directory.resolve("2023")).resolve("IMG_0001.JPG");
+        try (DateCache cache = DateCache.open(directory)) {
+            cache.put("exif", photo, 5, 1000, LocalDate.of(2023, 1, 5));
+            Files.move(photo, target);
+            cache.moved(photo, target);
+        }
+
+        try (DateCache cache = DateCache.open(directory)) {
+            assertThat(cache.size()).isEqualTo(1);
+            assertThat(cache.get("exif", target, 5, 1000).getDate()).isEqualTo(LocalDate.of(2023, 1, 5));
+            assertThat(cache.get("exif", photo, 5, 1000)).isNull();
+        }
+    }
+}
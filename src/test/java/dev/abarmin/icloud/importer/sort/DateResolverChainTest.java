@@ -0,0 +1,78 @@
+package dev.abarmin.icloud.importer.sort;
+
+import dev.abarmin.icloud.importer.metrics.ImportMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DateResolverChainTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void parseOrder_whenNamesAreKnown_shouldKeepOrder() {
+        assertThat(DateResolverChain.parseOrder(" filename, csv ,mtime")).containsExactly("filename", "csv", "mtime");
+    }
+
+    @Test
+    void parseOrder_whenNameIsUnknownOrRepeated_shouldFail() {
+        assertThatThrownBy(() -> DateResolverChain.parseOrder("csv,xmp"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("xmp");
+        assertThatThrownBy(() -> DateResolverChain.parseOrder("csv,exif,csv"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> DateResolverChain.parseOrder(" , "))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void resolve_whenResolversAreOrdered_shouldReturnFirstDate() throws Exception {
+        final Path photo = Files.writeString(directory.resolve("IMG_20230105_102030.JPG"), "photo");
+        final PhotoDetailsIndex details = new PhotoDetailsIndex();
+        details.put("IMG_20230105_102030.JPG", LocalDate.of(2022, 12, 31));
+        final SourceScanner.Entry entry = new SourceScanner.Entry(SourceScanner.Kind.IMAGE, photo);
+
+        assertThat(DateResolverChain.create(List.of("csv", "filename"), details, null, new ImportMetrics()).resolve(entry))
+                .contains(LocalDate.of(2022, 12, 31));
+        assertThat(DateResolverChain.create(List.of("filename", "csv"), details, null, new ImportMetrics()).resolve(entry))
+                .contains(LocalDate.of(2023, 1, 5));
+        assertThat(DateResolverChain.create(List.of("filename", "csv"), details, null, new ImportMetrics()).resolveFromDetails(entry))
+                .isEmpty();
+    }
+
+    @Test
+    void resolve_whenFileIsUnchanged_shouldNotReadItAgain() throws Exception {
+        final Path photo = Files.writeString(directory.resolve("IMG_0001.JPG"), "photo");
+        final SourceScanner.Entry entry = new SourceScanner.Entry(SourceScanner.Kind.IMAGE, photo);
+        final AtomicInteger reads = new AtomicInteger();
+        final DateResolver exif = file -> {
+            reads.incrementAndGet();
+            return Optional.empty();
+        };
+        final List<DateResolverChain.Step> steps = List.of(new DateResolverChain.Step("exif", exif, ImportMetrics.EXIF_PARSE));
+
+        try (DateCache cache = DateCache.open(directory)) {
+            assertThat(new DateResolverChain(steps, cache, new ImportMetrics()).resolve(entry)).isEmpty();
+        }
+        try (DateCache cache = DateCache.open(directory)) {
+            assertThat(new DateResolverChain(steps, cache, new ImportMetrics()).resolve(entry)).isEmpty();
+        }
+        assertThat(reads).hasValue(1);
+
+        Files.writeString(photo, "edited photo");
+        try (DateCache cache = DateCache.open(directory)) {
+            new DateResolverChain(steps, cache, new ImportMetrics()).resolve(entry);
+        }
+        assertThat(reads).hasValue(2);
+    }
+}
@@ -0,0 +1,43 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EntryListTest {
+
+    @Test
+    void get_whenEntriesAdded_shouldReturnThemInOrder() {
+        final Path source = Path.of("/photos/export");
+        final EntryList list = new EntryList(List.of(source));
+        final SourceScanner.Entry image = new SourceScanner.Entry(SourceScanner.Kind.IMAGE, source.resolve("2023/IMG_0001.JPG"));
+        final SourceScanner.Entry video = new SourceScanner.Entry(SourceScanner.Kind.VIDEO, source.resolve("My Videos/IMG_0002.MOV"));
+        final SourceScanner.Entry outside = new SourceScanner.Entry(SourceScanner.Kind.IMAGE, Path.of("/other/IMG_0003.JPG"));
+
+        list.add(image);
+        list.add(video);
+        list.add(outside);
+
+        assertThat(list.size()).isEqualTo(3);
+        assertThat(list.get(0)).isEqualTo(image);
+        assertThat(list.get(1)).isEqualTo(video);
+        assertThat(list.get(2)).isEqualTo(outside);
+    }
+
+    @Test
+    void add_whenMillionEntries_shouldStayCompact() {
+        final int entries = 1_000_000;
+        final Path source = Path.of("/photos/export");
+        final EntryList list = new EntryList(List.of(source));
+        for (int i = 0; i < entries; i++) {
+            list.add(new SourceScanner.Entry(SourceScanner.Kind.IMAGE, source.resolve("Photos %03d/IMG_%07d.JPG".formatted(i / 10_000, i))));
+        }
+
+        assertThat(list.get(123_456).getPath()).isEqualTo(source.resolve("Photos 012/IMG_0123456.JPG"));
+        // relative path of 27 bytes, a Path object alone takes more than twice as much
+        assertThat(list.footprint()).isLessThan(64L * entries);
+    }
+}
@@ -0,0 +1,38 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FilenameDateResolverTest {
+
+    private final FilenameDateResolver resolver = new FilenameDateResolver();
+
+    @Test
+    void resolve_whenNameHasCameraDate_shouldReturnIt() {
+        assertThat(resolve("IMG_20230105_102030.jpg")).contains(LocalDate.of(2023, 1, 5));
+        assertThat(resolve("PXL_20230105_102030123.jpg")).contains(LocalDate.of(2023, 1, 5));
+        assertThat(resolve("IMG-20230105-WA0001.jpg")).contains(LocalDate.of(2023, 1, 5));
+        assertThat(resolve("Screenshot 2023-01-05 at 10.20.30.png")).contains(LocalDate.of(2023, 1, 5));
+    }
+
+    @Test
+    void resolve_whenNameHasNoDate_shouldReturnEmpty() {
+        assertThat(resolve("IMG_0001.JPG")).isEmpty();
+        assertThat(resolve("IMG_202301051.JPG")).isEmpty();
+        assertThat(resolve("2023-01_05.JPG")).isEmpty();
+    }
+
+    @Test
+    void resolve_whenFirstMatchIsNoDate_shouldTryNext() {
+        assertThat(resolve("20230231_20230105.jpg")).contains(LocalDate.of(2023, 1, 5));
+    }
+
+    private Optional<LocalDate> resolve(String filename) {
+        return resolver.resolve(new SourceScanner.Entry(SourceScanner.Kind.IMAGE, Path.of("/photos", filename)));
+    }
+}
@@ -0,0 +1,76 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MoveJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void read_whenPlannedAndDone_shouldReturnMovesInOrder() throws Exception {
+        final Path file;
+        try (MoveJournal journal = MoveJournal.create(directory)) {
+            file = journal.getFile();
+            final long first = journal.plan(Path.of("/src/IMG_0001.JPG"), Path.of("/dest/2023/01/IMG_0001.JPG"));
+            journal.plan(Path.of("/src/IMG\t0002.JPG"), Path.of("/dest/2023/01/IMG\t0002.JPG"));
+            journal.done(first);
+        }
+
+        final List<MoveJournal.Move> moves = MoveJournal.read(file);
+
+        assertThat(moves).hasSize(2);
+        assertThat(moves.get(0).isDone()).isTrue();
+        assertThat(moves.get(1).isDone()).isFalse();
+        assertThat(moves.get(1).getSource()).isEqualTo(Path.of("/src/IMG\t0002.JPG"));
+    }
+
+    @Test
+    void read_whenCancelled_shouldDropMove() throws Exception {
+        final Path file;
+        try (MoveJournal journal = MoveJournal.create(directory)) {
+            file = journal.getFile();
+            journal.cancel(journal.plan(Path.of("/src/IMG_0001.JPG"), Path.of("/dest/IMG_0001.JPG")));
+            journal.plan(Path.of("/src/IMG_0001.JPG"), Path.of("/dest/IMG_0001_1.JPG"));
+        }
+
+        final List<MoveJournal.Move> moves = MoveJournal.read(file);
+
+        assertThat(moves).hasSize(1);
+        assertThat(moves.get(0).getTarget()).isEqualTo(Path.of("/dest/IMG_0001_1.JPG"));
+    }
+
+    @Test
+    void open_whenLastRecordIsTorn_shouldIgnoreIt() throws Exception {
+        final Path file;
+        try (MoveJournal journal = MoveJournal.create(directory)) {
+            file = journal.getFile();
+            journal.plan(Path.of("/src/IMG_0001.JPG"), Path.of("/dest/IMG_0001.JPG"));
+        }
+        Files.writeString(file, "DONE\t", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        try (MoveJournal journal = MoveJournal.open(file)) {
+            assertThat(journal.pending()).hasSize(1);
+            // ids continue after the existing records
+            assertThat(journal.plan(Path.of("/src/IMG_0002.JPG"), Path.of("/dest/IMG_0002.JPG"))).isEqualTo(2);
+        }
+    }
+
+    @Test
+    void latest_whenJournalUndone_shouldSkipIt() throws Exception {
+        Files.createFile(directory.resolve("journal-20230101-100000-000.log"));
+        Files.createFile(directory.resolve("journal-20230102-100000-000.log"));
+        Files.createFile(directory.resolve("journal-20230103-100000-000.log.undone"));
+
+        assertThat(MoveJournal.latest(directory)).hasValue(directory.resolve("journal-20230102-100000-000.log"));
+    }
+}
@@ -0,0 +1,53 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NameRegistryTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reserve_whenNameIsFree_shouldReturnIt() {
+        final NameRegistry names = new NameRegistry();
+
+        assertThat(names.reserve(directory, "IMG_0001.JPG")).isEqualTo(directory.resolve("IMG_0001.JPG"));
+        assertThat(names.reserve(directory, "IMG_0001.JPG")).isEqualTo(directory.resolve("IMG_0001_1.JPG"));
+    }
+
+    @Test
+    void reserve_whenNamesAreListed_shouldSkipThem() throws Exception {
+        Files.createFile(directory.resolve("IMG_0001.JPG"));
+        Files.createFile(directory.resolve("IMG_0001_1.JPG"));
+        Files.createFile(directory.resolve("IMG_0001_3.JPG"));
+        final NameRegistry names = new NameRegistry();
+
+        assertThat(names.reserve(directory, "IMG_0001.JPG")).isEqualTo(directory.resolve("IMG_0001_2.JPG"));
+        assertThat(names.reserve(directory, "IMG_0001.JPG")).isEqualTo(directory.resolve("IMG_0001_4.JPG"));
+        assertThat(names.reserve(directory, "IMG_0001.JPG")).isEqualTo(directory.resolve("IMG_0001_5.JPG"));
+    }
+
+    @Test
+    void reserve_whenDirectoryDoesNotExist_shouldTreatItAsEmpty() {
+        final NameRegistry names = new NameRegistry();
+
+        assertThat(names.reserve(directory.resolve("2023"), "IMG_0001.JPG"))
+                .isEqualTo(directory.resolve("2023").resolve("IMG_0001.JPG"));
+    }
+
+    @Test
+    void claim_whenNameIsReserved_shouldRefuse() {
+        final NameRegistry names = new NameRegistry();
+        names.reserve(directory, "IMG_0001.JPG");
+
+        assertThat(names.claim(directory.resolve("IMG_0001.JPG"))).isFalse();
+        assertThat(names.claim(directory.resolve("IMG_0002.JPG"))).isTrue();
+        assertThat(names.claim(directory.resolve("IMG_0002.JPG"))).isFalse();
+    }
+}
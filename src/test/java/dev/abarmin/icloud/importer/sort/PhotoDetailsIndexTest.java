@@ -0,0 +1,45 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PhotoDetailsIndexTest {
+
+    PhotoDetailsIndex index = new PhotoDetailsIndex();
+
+    @Test
+    void getCreationDate_whenFilenameAdded_shouldReturnDate() {
+        index.put("IMG_0001.JPG", LocalDate.of(2023, 1, 5));
+        index.put("Фото 2.HEIC", LocalDate.of(1999, 12, 31));
+
+        assertThat(index.getCreationDate("IMG_0001.JPG")).isEqualTo(LocalDate.of(2023, 1, 5));
+        assertThat(index.getCreationDate("Фото 2.HEIC")).isEqualTo(LocalDate.of(1999, 12, 31));
+        assertThat(index.getCreationDate("IMG_0002.JPG")).isNull();
+    }
+
+    @Test
+    void put_whenFilenameAddedTwice_shouldKeepLastDate() {
+        index.put("IMG_0001.JPG", LocalDate.of(2023, 1, 5));
+        index.put("IMG_0001.JPG", LocalDate.of(2023, 2, 6));
+
+        assertThat(index.size()).isEqualTo(1);
+        assertThat(index.getCreationDate("IMG_0001.JPG")).isEqualTo(LocalDate.of(2023, 2, 6));
+    }
+
+    @Test
+    void put_whenMillionEntries_shouldStayCompact() {
+        final int entries = 1_000_000;
+        final LocalDate start = LocalDate.of(2010, 1, 1);
+        for (int i = 0; i < entries; i++) {
+            index.put("IMG_%07d.JPG".formatted(i), start.plusDays(i % 5000));
+        }
+
+        assertThat(index.size()).isEqualTo(entries);
+        assertThat(index.getCreationDate("IMG_0123456.JPG")).isEqualTo(start.plusDays(123456 % 5000));
+        // a HashMap<String, PhotoDetails> needs around 200 bytes per entry
+        assertThat(index.footprint()).isLessThan(64L * entries);
+    }
+}
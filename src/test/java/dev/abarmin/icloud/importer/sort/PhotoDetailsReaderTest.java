@@ -0,0 +1,59 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PhotoDetailsReaderTest {
+
+    static final String HEADER = "imgName,fileChecksum,favorite,hidden,deleted,originalCreationDate,viewCount,importDate\n";
+
+    PhotoDetailsReader reader = new PhotoDetailsReader();
+
+    @Test
+    void parseDateFast_whenAnyDayOfYear_shouldMatchFormatter() {
+        final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("EEEE MMMM d,yyyy h:mm a z", Locale.ENGLISH);
+        ZonedDateTime date = ZonedDateTime.of(2024, 1, 1, 10, 20, 0, 0, ZoneId.of("GMT"));
+        for (int i = 0; i < 366; i++) {
+            final String formatted = date.format(formatter);
+
+            assertThat(PhotoDetailsReader.parseDateFast(formatted))
+                    .isEqualTo(ZonedDateTime.parse(formatted, formatter).toLocalDate());
+            date = date.plusDays(1).plusHours(1);
+        }
+    }
+
+    @Test
+    void parseDateFast_whenNotIcloudFormat_shouldReturnNull() {
+        assertThat(PhotoDetailsReader.parseDateFast("2023-01-05T10:20:30Z")).isNull();
+        assertThat(PhotoDetailsReader.parseDateFast("Thursday Janvier 5,2023 10:20 AM GMT")).isNull();
+        assertThat(PhotoDetailsReader.parseDateFast("Thursday January 32,2023 10:20 AM GMT")).isNull();
+        assertThat(PhotoDetailsReader.parseDateFast("Thursday January 5,23 10:20 AM GMT")).isNull();
+    }
+
+    @Test
+    void read_whenRowHasNoDate_shouldSkipItAndKeepOthers() throws Exception {
+        final Path file = Files.createTempFile("Photo Details", ".csv");
+        Files.writeString(file, HEADER
+                + "IMG_0001.JPG,abc,no,no,no,\"Thursday January 5,2023 10:20 AM GMT\",0,\"Friday January 6,2023 8:00 PM GMT\"\n"
+                + "IMG_0002.JPG,abc,no,no,no,,0,\"Friday January 6,2023 8:00 PM GMT\"\n"
+                + "IMG_0003.JPG,abc,no,no,no,yesterday,0,\n"
+                + "IMG_0004.JPG,abc\n");
+        final PhotoDetailsIndex index = new PhotoDetailsIndex();
+
+        final int skipped = reader.read(file, index);
+
+        assertThat(skipped).isEqualTo(2);
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.getCreationDate("IMG_0001.JPG")).isEqualTo(LocalDate.of(2023, 1, 5));
+        assertThat(index.getCreationDate("IMG_0002.JPG")).isEqualTo(LocalDate.of(2023, 1, 6));
+    }
+}
@@ -0,0 +1,53 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SourceScannerTest {
+
+    SourceScanner scanner = new SourceScanner();
+
+    @Test
+    void scan_whenNestedDirectories_shouldClassifyAllFiles() throws Exception {
+        final Path source = Files.createTempDirectory("source");
+        final Path photos = Files.createDirectories(source.resolve("Photos").resolve("2023"));
+        final Path details = Files.createFile(source.resolve("Photo Details.csv"));
+        final Path image = Files.createFile(photos.resolve("IMG_0001.JPG"));
+        final Path video = Files.createFile(photos.resolve("IMG_0002.MOV"));
+        Files.createFile(photos.resolve("notes.txt"));
+        Files.createFile(photos.resolve(".IMG_0003.JPG"));
+
+        final Queue<SourceScanner.Entry> entries = new ConcurrentLinkedQueue<>();
+        scanner.scan(List.of(source), entries::add).join();
+
+        assertThat(entries).containsExactlyInAnyOrder(
+                new SourceScanner.Entry(SourceScanner.Kind.DETAILS, details),
+                new SourceScanner.Entry(SourceScanner.Kind.IMAGE, image),
+                new SourceScanner.Entry(SourceScanner.Kind.VIDEO, video)
+        );
+    }
+
+    @Test
+    void scan_whenManyDirectories_shouldVisitEachFileOnce() throws Exception {
+        final Path source = Files.createTempDirectory("source");
+        for (int folder = 0; folder < 20; folder++) {
+            final Path directory = Files.createDirectories(source.resolve("folder_" + folder));
+            for (int file = 0; file < 10; file++) {
+                Files.createFile(directory.resolve("IMG_" + file + ".jpg"));
+            }
+        }
+
+        final Queue<SourceScanner.Entry> entries = new ConcurrentLinkedQueue<>();
+        scanner.scan(List.of(source), entries::add).join();
+
+        assertThat(entries).hasSize(200);
+        assertThat(entries.stream().map(SourceScanner.Entry::getPath).distinct().count()).isEqualTo(200L);
+    }
+}
@@ -0,0 +1,42 @@
+package dev.abarmin.icloud.importer.sort;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SourceWatcherTest {
+
+    private static final Duration QUIET_PERIOD = Duration.ofMillis(200);
+
+    @TempDir
+    Path source;
+
+    @Test
+    void next_whenFilesExistAtStart_shouldReportThem() throws Exception {
+        final Path file = Files.writeString(Files.createDirectories(source.resolve("batch-1")).resolve("IMG_0001.JPG"), "first");
+
+        try (SourceWatcher watcher = new SourceWatcher(source, QUIET_PERIOD)) {
+            assertThat(watcher.next()).containsExactly(file);
+        }
+    }
+
+    @Test
+    void next_whenFileIsWrittenInNewDirectory_shouldReportItOnceSettled() throws Exception {
+        try (SourceWatcher watcher = new SourceWatcher(source, QUIET_PERIOD)) {
+            final Path directory = Files.createDirectories(source.resolve("batch-2"));
+            final Path file = Files.writeString(directory.resolve("IMG_0002.JPG"), "second");
+            final long started = System.nanoTime();
+
+            final List<Path> settled = watcher.next();
+
+            assertThat(settled).containsExactly(file);
+            assertThat(System.nanoTime() - started).isGreaterThanOrEqualTo(QUIET_PERIOD.toNanos());
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BandwidthLimitTest {
+
+    @Test
+    void parse_whenUnitsGiven_shouldUseDecimalMultipliers() {
+        assertThat(BandwidthLimit.parse("0").isUnlimited()).isTrue();
+        assertThat(BandwidthLimit.parse("40MB/s").isUnlimited()).isFalse();
+        assertThat(BandwidthLimit.parse("1.5 gb").isUnlimited()).isFalse();
+        assertThat(BandwidthLimit.parse("500k").isUnlimited()).isFalse();
+    }
+
+    @Test
+    void parse_whenValueIsNotBandwidth_shouldThrow() {
+        assertThatThrownBy(() -> BandwidthLimit.parse("fast")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void acquire_whenOverLimit_shouldSlowDown() {
+        final BandwidthLimit limit = BandwidthLimit.of(1_000_000);
+
+        final long started = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            limit.acquire(100_000);
+        }
+        final long elapsedMillis = (System.nanoTime() - started) / 1_000_000;
+
+        // the first acquire is free, the other three wait for 100 ms each
+        assertThat(elapsedMillis).isGreaterThanOrEqualTo(250L);
+    }
+}
@@ -0,0 +1,21 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChecksumsTest {
+
+    @Test
+    void find_whenServerHasSeveralChecksums_shouldReturnSha1() {
+        assertThat(Checksums.find("MD5:d41d8cd98f00b204e9800998ecf8427e SHA1:DA39A3EE5E6B4B0D3255BFEF95601890AFD80709"))
+                .isEqualTo("SHA1:da39a3ee5e6b4b0d3255bfef95601890afd80709");
+    }
+
+    @Test
+    void find_whenServerHasNoSha1_shouldReturnNull() {
+        assertThat(Checksums.find("MD5:d41d8cd98f00b204e9800998ecf8427e")).isNull();
+        assertThat(Checksums.find("")).isNull();
+        assertThat(Checksums.find(null)).isNull();
+    }
+}
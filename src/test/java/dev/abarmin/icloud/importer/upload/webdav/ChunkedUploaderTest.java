@@ -0,0 +1,128 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.github.sardine.Sardine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ChunkedUploaderTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    @TempDir
+    Path directory;
+
+    LocalWebDavServer server;
+    Sardine sardine;
+    ChunkedUploader uploader;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new LocalWebDavServer();
+        server.createFolder("/remote.php/dav/files/abc/photos");
+        server.createFolder("/remote.php/dav/uploads/abc");
+        sardine = new WebDavClient();
+        uploader = new ChunkedUploader(sardine, server.url("/remote.php/dav/uploads/abc/"),
+                directory.resolve("state"), CHUNK_SIZE, CHUNK_SIZE, BandwidthLimit.UNLIMITED);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        sardine.shutdown();
+        server.close();
+    }
+
+    @Test
+    void upload_whenFileIsBig_shouldAssembleItFromChunks() throws Exception {
+        final Path file = file("MOV_0001.MOV", 4500);
+
+        upload(file);
+
+        assertThat(server.content("/remote.php/dav/files/abc/photos/MOV_0001.MOV")).isEqualTo(Files.readAllBytes(file));
+        assertThat(server.requests()).filteredOn(r -> r.startsWith("PUT")).hasSize(5);
+        assertThat(directory.resolve("state")).isEmptyDirectory();
+    }
+
+    @Test
+    void upload_whenStarted_shouldCreateUploadFolderWithDestination() throws Exception {
+        final Path file = file("MOV_0001.MOV", 4500);
+
+        upload(file);
+
+        final String mkcol = server.requests().stream()
+                .filter(r -> r.startsWith("MKCOL"))
+                .findFirst()
+                .orElseThrow();
+        assertThat(server.uploadDestination(mkcol.substring("MKCOL ".length())))
+                .isEqualTo(server.url("/remote.php/dav/files/abc/photos/MOV_0001.MOV"));
+    }
+
+    @Test
+    void upload_whenInterrupted_shouldResumeFromMissingChunk() throws Exception {
+        final Path file = file("MOV_0001.MOV", 4500);
+        server.fail("PUT", path -> path.endsWith("/00003"), 1, 503);
+
+        assertThatThrownBy(() -> upload(file)).isInstanceOf(IOException.class);
+        upload(file);
+
+        assertThat(server.content("/remote.php/dav/files/abc/photos/MOV_0001.MOV")).isEqualTo(Files.readAllBytes(file));
+        // the first two chunks are not sent again
+        assertThat(server.requests()).filteredOn(r -> r.startsWith("PUT") && r.endsWith("/00001")).hasSize(1);
+        assertThat(server.requests()).filteredOn(r -> r.startsWith("PUT") && r.endsWith("/00003")).hasSize(2);
+        assertThat(server.requests()).filteredOn(r -> r.startsWith("MKCOL")).hasSize(1);
+    }
+
+    @Test
+    void upload_whenResumed_shouldSendChecksumOfWholeFile() throws Exception {
+        final Path file = file("MOV_0001.MOV", 4500);
+        server.fail("PUT", path -> path.endsWith("/00003"), 1, 503);
+        assertThatThrownBy(() -> upload(file)).isInstanceOf(IOException.class);
+
+        final String checksum = upload(file);
+
+        assertThat(checksum).isEqualTo(Checksums.of(file));
+        assertThat(server.checksum("/remote.php/dav/files/abc/photos/MOV_0001.MOV")).isEqualTo(checksum);
+    }
+
+    @Test
+    void upload_whenFileChangedSinceInterruption_shouldStartOver() throws Exception {
+        final Path file = file("MOV_0001.MOV", 4500);
+        server.fail("PUT", path -> path.endsWith("/00003"), 1, 503);
+        assertThatThrownBy(() -> upload(file)).isInstanceOf(IOException.class);
+
+        final Path changed = file("MOV_0001.MOV", 3000);
+        Files.setLastModifiedTime(changed, FileTime.fromMillis(Files.getLastModifiedTime(changed).toMillis() + 1000));
+        upload(changed);
+
+        assertThat(server.content("/remote.php/dav/files/abc/photos/MOV_0001.MOV")).isEqualTo(Files.readAllBytes(changed));
+        assertThat(server.requests()).filteredOn(r -> r.startsWith("MKCOL")).hasSize(2);
+    }
+
+    @Test
+    void uploadsUrl_whenNextcloudFilesUrl_shouldPointToUserUploads() {
+        assertThat(ChunkedUploader.uploadsUrl("http://hub.local/remote.php/dav/files/abc/dev/"))
+                .hasValue("http://hub.local/remote.php/dav/uploads/abc/");
+        assertThat(ChunkedUploader.uploadsUrl("http://hub.local/webdav/dev/")).isEmpty();
+    }
+
+    private String upload(Path file) throws IOException {
+        return uploader.upload(file, server.url("/remote.php/dav/files/abc/photos/" + file.getFileName()),
+                Files.size(file), Files.getLastModifiedTime(file).toMillis());
+    }
+
+    private Path file(String name, int size) throws IOException {
+        final byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return Files.write(directory.resolve(name), content);
+    }
+}
@@ -0,0 +1,82 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CircuitBreakerTest {
+
+    final AtomicLong clock = new AtomicLong();
+    final CircuitBreaker breaker = new CircuitBreaker(3, Duration.ofSeconds(30), clock::get);
+
+    @Test
+    void failed_whenThresholdReached_shouldOpen() {
+        breaker.failed();
+        breaker.failed();
+        assertThat(breaker.isOpen()).isFalse();
+
+        breaker.failed();
+        assertThat(breaker.isOpen()).isTrue();
+    }
+
+    @Test
+    void succeeded_whenFailuresInterleaved_shouldResetCount() {
+        breaker.failed();
+        breaker.failed();
+        breaker.succeeded();
+        breaker.failed();
+
+        assertThat(breaker.isOpen()).isFalse();
+    }
+
+    @Test
+    void awaitClosed_whenPauseIsOver_shouldLetOneProbeThrough() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            breaker.failed();
+        }
+        clock.addAndGet(Duration.ofSeconds(31).toNanos());
+
+        breaker.awaitClosed();
+        final CompletableFuture<Void> second = CompletableFuture.runAsync(() -> {
+            try {
+                breaker.awaitClosed();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(200);
+        assertThat(second.isDone()).isFalse();
+
+        breaker.succeeded();
+        second.get(5, TimeUnit.SECONDS);
+        assertThat(breaker.isOpen()).isFalse();
+    }
+
+    @Test
+    void awaitClosed_whenProbeIsIgnored_shouldLetNextProbeThrough() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            breaker.failed();
+        }
+        clock.addAndGet(Duration.ofSeconds(31).toNanos());
+
+        breaker.awaitClosed();
+        final CompletableFuture<Void> second = CompletableFuture.runAsync(() -> {
+            try {
+                breaker.awaitClosed();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(200);
+        assertThat(second.isDone()).isFalse();
+
+        breaker.ignored();
+        second.get(5, TimeUnit.SECONDS);
+        assertThat(breaker.isOpen()).isTrue();
+    }
+}
@@ -0,0 +1,85 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConcurrencyLimitTest {
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    void succeeded_whenThroughputGrows_shouldRaiseLimit() throws Exception {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(1, 2, 8, clock::get);
+
+        // every upload takes the same time, so more of them in parallel finish the window sooner
+        completeWindow(limit, 2, 100);
+        completeWindow(limit, 3, 100);
+        completeWindow(limit, 4, 100);
+
+        assertThat(limit.getLimit()).isEqualTo(5);
+    }
+
+    @Test
+    void succeeded_whenUploadsSlowDownWithoutGain_shouldLowerLimit() throws Exception {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(1, 4, 8, clock::get);
+
+        completeWindow(limit, 4, 100);
+        assertThat(limit.getLimit()).isEqualTo(5);
+        // the link is saturated, five uploads take as long as four did and each is slower
+        completeWindow(limit, 5, 125);
+
+        assertThat(limit.getLimit()).isEqualTo(4);
+    }
+
+    @Test
+    void overloaded_whenManyUploadsFail_shouldHalveLimitOnce() throws Exception {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(1, 8, 8, clock::get);
+        for (int i = 0; i < 8; i++) {
+            limit.acquire();
+        }
+        for (int i = 0; i < 8; i++) {
+            limit.overloaded();
+        }
+
+        assertThat(limit.getLimit()).isEqualTo(4);
+    }
+
+    @Test
+    void acquire_whenLimitReached_shouldWaitForRelease() throws Exception {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(1, 1, 1, clock::get);
+        limit.acquire();
+
+        final CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> {
+            try {
+                limit.acquire();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(200);
+        assertThat(blocked.isDone()).isFalse();
+
+        limit.ignored();
+        blocked.get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Runs as many 1 MB uploads in parallel as the limit allows, each taking the given time.
+     */
+    private void completeWindow(ConcurrencyLimit limit, int uploads, long millis) throws InterruptedException {
+        for (int i = 0; i < uploads; i++) {
+            limit.acquire();
+        }
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        for (int i = 0; i < uploads; i++) {
+            limit.succeeded(MEGABYTE, TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.github.sardine.impl.SardineException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeadLettersTest {
+
+    private static final String DESTINATION = "http://hub.local/remote.php/dav/files/abc/dev/";
+
+    @TempDir
+    Path source;
+
+    @Test
+    void read_whenWrittenByPreviousRun_shouldReturnEntries() throws Exception {
+        final DeadLetters previous = DeadLetters.open(source, DESTINATION);
+        previous.file(source.resolve("2023/IMG\t0001.JPG"), DESTINATION + "2023/IMG%090001.JPG",
+                new SardineException("Unavailable\nretry later", 503, ""));
+        previous.folder(source.resolve("2024"), DESTINATION + "2024/", new IOException("Connection reset"));
+        previous.write();
+
+        final List<DeadLetters.Entry> entries = DeadLetters.open(source, DESTINATION).read();
+
+        assertThat(entries).hasSize(2);
+        assertThat(entries.get(0).getKind()).isEqualTo(DeadLetters.Kind.FILE);
+        assertThat(entries.get(0).getPath()).isEqualTo(source.resolve("2023/IMG\t0001.JPG"));
+        assertThat(entries.get(0).getError()).isEqualTo("Unavailable retry later");
+        assertThat(entries.get(1).getKind()).isEqualTo(DeadLetters.Kind.FOLDER);
+        assertThat(entries.get(1).getUrl()).isEqualTo(DESTINATION + "2024/");
+    }
+
+    @Test
+    void write_whenNothingFailed_shouldRemoveFile() throws Exception {
+        final DeadLetters previous = DeadLetters.open(source, DESTINATION);
+        previous.folder(source.resolve("2024"), DESTINATION + "2024/", new IOException("Connection reset"));
+        previous.write();
+
+        final DeadLetters next = DeadLetters.open(source, DESTINATION);
+        next.write();
+
+        assertThat(Files.exists(next.getFile())).isFalse();
+        assertThat(next.read()).isEmpty();
+    }
+}
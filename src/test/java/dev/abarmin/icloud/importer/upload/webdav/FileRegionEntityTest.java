@@ -0,0 +1,63 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FileRegionEntityTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writeTo_whenRegionIsBiggerThanBuffer_shouldWriteExactlyTheRegion() throws Exception {
+        final byte[] content = new byte[1024 * 1024];
+        new Random(1).nextBytes(content);
+        final Path file = Files.write(directory.resolve("MOV_0001.MOV"), content);
+        final FileRegionEntity entity = new FileRegionEntity(file, 1000, 600_000, BandwidthLimit.UNLIMITED);
+
+        final ByteArrayOutputStream first = new ByteArrayOutputStream();
+        entity.writeTo(first);
+        final ByteArrayOutputStream second = new ByteArrayOutputStream();
+        entity.writeTo(second);
+
+        assertThat(entity.getContentLength()).isEqualTo(600_000L);
+        assertThat(first.toByteArray()).isEqualTo(Arrays.copyOfRange(content, 1000, 601_000));
+        assertThat(second.toByteArray()).isEqualTo(first.toByteArray());
+    }
+
+    @Test
+    void getDigest_whenRegionsWrittenInOrder_shouldHashTheWholeFile() throws Exception {
+        final Path file = Files.writeString(directory.resolve("IMG_0001.JPG"), "0123456789");
+        final FileRegionEntity first = new FileRegionEntity(file, 0, 4, BandwidthLimit.UNLIMITED, Checksums.newDigest());
+        assertThat(first.getDigest()).isNull();
+        first.writeTo(OutputStream.nullOutputStream());
+        final FileRegionEntity second = new FileRegionEntity(file, 4, 6, BandwidthLimit.UNLIMITED, first.getDigest());
+        try (InputStream content = second.getContent()) {
+            content.transferTo(OutputStream.nullOutputStream());
+        }
+
+        assertThat(Checksums.format(second.getDigest())).isEqualTo(Checksums.of(file));
+        // the same as sha1sum prints
+        assertThat(Checksums.of(file)).isEqualTo("SHA1:87acec17cd9dcd20a716cc2cf67417b71c8a7016");
+    }
+
+    @Test
+    void getContent_whenRead_shouldReturnTheRegion() throws Exception {
+        final Path file = Files.writeString(directory.resolve("IMG_0001.JPG"), "0123456789");
+        final FileRegionEntity entity = new FileRegionEntity(file, 2, 5, BandwidthLimit.UNLIMITED);
+
+        try (InputStream content = entity.getContent()) {
+            assertThat(new String(content.readAllBytes())).isEqualTo("23456");
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * In-memory WebDAV server for tests. It understands the requests the uploader sends, including
+ * assembling Nextcloud chunked uploads on {@code MOVE .../.file}, and can be told to fail some of
+ * them. Checksums sent with {@code OC-Checksum} are returned in {@code oc:checksums} like
+ * Nextcloud does. Like Nextcloud's chunked uploads v2, a folder under {@code uploads/} is only
+ * created with the {@code Destination} of the file.
+ */
+class LocalWebDavServer implements AutoCloseable {
+
+    private final HttpServer server;
+    // path without the trailing slash to content, null content for folders
+    private final Map<String, byte[]> resources = new ConcurrentSkipListMap<>();
+    private final Set<String> folders = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> checksums = new ConcurrentHashMap<>();
+    // upload folder to the Destination it was created with
+    private final Map<String, String> uploadDestinations = new ConcurrentHashMap<>();
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final List<Fault> faults = new CopyOnWriteArrayList<>();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private volatile boolean discardContent;
+
+    LocalWebDavServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        folders.add("");
+    }
+
+    /**
+     * @return URL of the path on this server, ex. {@code url("/remote.php/dav/files/abc/")}
+     */
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    void createFolder(String path) {
+        folders.add(normalize(path));
+    }
+
+    byte[] content(String path) {
+        return resources.get(normalize(path));
+    }
+
+    String checksum(String path) {
+        return checksums.get(normalize(path));
+    }
+
+    /**
+     * Overrides the checksum the server reports for the file, ex. to pretend it got corrupted.
+     */
+    void setChecksum(String path, String checksum) {
+        checksums.put(normalize(path), checksum);
+    }
+
+    /**
+     * @return Destination the chunked upload folder was created with
+     */
+    String uploadDestination(String path) {
+        return uploadDestinations.get(normalize(path));
+    }
+
+    boolean exists(String path) {
+        final String normalized = normalize(path);
+        return folders.contains(normalized) || resources.containsKey(normalized);
+    }
+
+    /**
+     * Stores empty files instead of what was uploaded, so long runs don't keep everything in
+     * memory. Only {@link #receivedBytes()} tells how much was sent.
+     */
+    void discardContent() {
+        discardContent = true;
+    }
+
+    long receivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * @return requests received so far as {@code METHOD /path}
+     */
+    List<String> requests() {
+        return requests;
+    }
+
+    /**
+     * Answers the next {@code times} matching requests with the status, after reading the body.
+     */
+    void fail(String method, Predicate<String> path, int times, int status) {
+        faults.add(new Fault(method, path, new AtomicInteger(times), status));
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            final String method = exchange.getRequestMethod();
+            final String path = normalize(exchange.getRequestURI().getPath());
+            final byte[] body;
+            if (discardContent) {
+                receivedBytes.addAndGet(exchange.getRequestBody().transferTo(OutputStream.nullOutputStream()));
+                body = new byte[0];
+            } else {
+                body = exchange.getRequestBody().readAllBytes();
+                receivedBytes.addAndGet(body.length);
+            }
+            requests.add(method + " /" + path);
+
+            for (Fault fault : faults) {
+                if (fault.getMethod().equals(method) && fault.getPath().test(path)
+                        && fault.getRemaining().getAndDecrement() > 0) {
+                    exchange.sendResponseHeaders(fault.getStatus(), -1);
+                    return;
+                }
+            }
+
+            switch (method) {
+                case "HEAD" -> exchange.sendResponseHeaders(exists(path) ? 200 : 404, -1);
+                case "GET" -> get(exchange, path);
+                case "PUT" -> put(exchange, path, body);
+                case "MKCOL" -> mkcol(exchange, path);
+                case "MOVE" -> move(exchange, path);
+                case "DELETE" -> delete(exchange, path);
+                case "PROPFIND" -> propfind(exchange, path);
+                default -> exchange.sendResponseHeaders(405, -1);
+            }
+        }
+    }
+
+    private void get(HttpExchange exchange, String path) throws IOException {
+        final byte[] content = resources.get(path);
+        if (content == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, content.length == 0 ? -1 : content.length);
+        exchange.getResponseBody().write(content);
+    }
+
+    private void put(HttpExchange exchange, String path, byte[] body) throws IOException {
+        if (!folders.contains(parent(path))) {
+            exchange.sendResponseHeaders(409, -1);
+            return;
+        }
+        final boolean created = resources.put(path, body) == null;
+        setChecksum(path, exchange);
+        exchange.sendResponseHeaders(created ? 201 : 204, -1);
+    }
+
+    private void mkcol(HttpExchange exchange, String path) throws IOException {
+        final String destination = exchange.getRequestHeaders().getFirst("Destination");
+        final boolean upload = path.contains("/dav/uploads/") && parent(parent(path)).endsWith("/dav/uploads");
+        if (upload && destination == null) {
+            exchange.sendResponseHeaders(400, -1);
+        } else if (exists(path)) {
+            exchange.sendResponseHeaders(405, -1);
+        } else if (!folders.contains(parent(path))) {
+            exchange.sendResponseHeaders(409, -1);
+        } else {
+            folders.add(path);
+            if (upload) {
+                uploadDestinations.put(path, destination);
+            }
+            exchange.sendResponseHeaders(201, -1);
+        }
+    }
+
+    private void move(HttpExchange exchange, String path) throws IOException {
+        final String destination = normalize(URI.create(exchange.getRequestHeaders().getFirst("Destination")).getPath());
+        if (!folders.contains(parent(destination))) {
+            exchange.sendResponseHeaders(409, -1);
+            return;
+        }
+        if (path.endsWith("/.file")) {
+            // assemble chunks in the order of their names
+            final String upload = parent(path);
+            final ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+            for (Map.Entry<String, byte[]> chunk : children(upload).entrySet()) {
+                assembled.write(chunk.getValue());
+            }
+            final String totalLength = exchange.getRequestHeaders().getFirst("OC-Total-Length");
+            if (totalLength != null && Long.parseLong(totalLength) != assembled.size()) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            resources.put(destination, assembled.toByteArray());
+            setChecksum(destination, exchange);
+            deleteTree(upload);
+            exchange.sendResponseHeaders(201, -1);
+            return;
+        }
+        final byte[] content = resources.remove(path);
+        if (content == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        resources.put(destination, content);
+        final String checksum = checksums.remove(path);
+        if (checksum != null) {
+            checksums.put(destination, checksum);
+        }
+        exchange.sendResponseHeaders(201, -1);
+    }
+
+    private void setChecksum(String path, HttpExchange exchange) {
+        final String checksum = exchange.getRequestHeaders().getFirst("OC-Checksum");
+        if (checksum == null) {
+            checksums.remove(path);
+        } else {
+            checksums.put(path, checksum);
+        }
+    }
+
+    private void delete(HttpExchange exchange, String path) throws IOException {
+        if (!exists(path)) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        deleteTree(path);
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private void propfind(HttpExchange exchange, String path) throws IOException {
+        if (!exists(path)) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<d:multistatus xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\">\n");
+        appendResponse(xml, path);
+        if (folders.contains(path) && !"0".equals(exchange.getRequestHeaders().getFirst("Depth"))) {
+            for (String folder : folders) {
+                if (!folder.isEmpty() && parent(folder).equals(path)) {
+                    appendResponse(xml, folder);
+                }
+            }
+            for (String file : children(path).keySet()) {
+                appendResponse(xml, file);
+            }
+        }
+        xml.append("</d:multistatus>\n");
+        final byte[] response = xml.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/xml; charset=utf-8");
+        exchange.sendResponseHeaders(207, response.length);
+        exchange.getResponseBody().write(response);
+    }
+
+    private void appendResponse(StringBuilder xml, String path) {
+        final byte[] content = resources.get(path);
+        xml.append("<d:response><d:href>/").append(path).append(content == null && !path.isEmpty() ? "/" : "").append("</d:href>")
+                .append("<d:propstat><d:prop>");
+        if (content == null) {
+            xml.append("<d:resourcetype><d:collection/></d:resourcetype>");
+        } else {
+            xml.append("<d:resourcetype/>")
+                    .append("<d:getcontentlength>").append(content.length).append("</d:getcontentlength>")
+                    .append("<d:getetag>\"").append(Integer.toHexString(Arrays.hashCode(content))).append("\"</d:getetag>");
+            final String checksum = checksums.get(path);
+            if (checksum != null) {
+                xml.append("<oc:checksums><oc:checksum>").append(checksum).append("</oc:checksum></oc:checksums>");
+            }
+        }
+        xml.append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>\n");
+    }
+
+    private Map<String, byte[]> children(String folder) {
+        final Map<String, byte[]> children = new TreeMap<>();
+        resources.forEach((path, content) -> {
+            if (parent(path).equals(folder)) {
+                children.put(path, content);
+            }
+        });
+        return children;
+    }
+
+    private void deleteTree(String path) {
+        resources.keySet().removeIf(p -> p.equals(path) || p.startsWith(path + "/"));
+        checksums.keySet().removeIf(p -> p.equals(path) || p.startsWith(path + "/"));
+        folders.removeIf(p -> p.equals(path) || p.startsWith(path + "/"));
+    }
+
+    private static String parent(String path) {
+        final int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    private static String normalize(String path) {
+        String normalized = path;
+        while (normalized.startsWith("/")) {
+            normalized = normalized.substring(1);
+        }
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    @Data
+    private static class Fault {
+        private final String method;
+        private final Predicate<String> path;
+        private final AtomicInteger remaining;
+        private final int status;
+    }
+}
@@ -0,0 +1,79 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.github.sardine.impl.SardineException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RetryPolicyTest {
+
+    final RetryPolicy policy = new RetryPolicy(3, 5, Duration.ofMillis(100), Duration.ofMillis(1000));
+
+    @Test
+    void classify_whenErrorsDiffer_shouldTellThemApart() {
+        assertThat(RetryPolicy.classify(new SardineException("Locked", 423, "Locked"))).isEqualTo(RetryPolicy.Failure.TRANSIENT);
+        assertThat(RetryPolicy.classify(new SardineException("Unavailable", 503, "Service Unavailable"))).isEqualTo(RetryPolicy.Failure.THROTTLED);
+        assertThat(RetryPolicy.classify(new SardineException("Forbidden", 403, "Forbidden"))).isEqualTo(RetryPolicy.Failure.PERMANENT);
+        assertThat(RetryPolicy.classify(new SocketTimeoutException())).isEqualTo(RetryPolicy.Failure.TRANSIENT);
+        assertThat(RetryPolicy.classify(new NoSuchFileException("IMG_0001.JPG"))).isEqualTo(RetryPolicy.Failure.PERMANENT);
+    }
+
+    @Test
+    void nextDelay_whenAttemptsLeft_shouldStayUnderExponentialCap() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            final Optional<Duration> first = policy.nextDelay(new SocketTimeoutException(), 1, random);
+            final Optional<Duration> second = policy.nextDelay(new SocketTimeoutException(), 2, random);
+
+            assertThat(first.orElseThrow().toMillis()).isBetween(0L, 100L);
+            assertThat(second.orElseThrow().toMillis()).isBetween(0L, 200L);
+        }
+        // throttled requests start from the second step and are capped by the max delay
+        assertThat(policy.nextDelay(new SardineException("Too Many Requests", 429, ""), 4, random).orElseThrow().toMillis())
+                .isBetween(0L, 1000L);
+    }
+
+    @Test
+    void nextDelay_whenAttemptsUsedUpOrPermanent_shouldGiveUp() {
+        assertThat(policy.nextDelay(new SocketTimeoutException(), 3)).isEmpty();
+        assertThat(policy.nextDelay(new SardineException("Unavailable", 503, ""), 3)).isPresent();
+        assertThat(policy.nextDelay(new SardineException("Forbidden", 403, ""), 1)).isEmpty();
+        assertThat(RetryPolicy.NONE.nextDelay(new SocketTimeoutException(), 1)).isEmpty();
+    }
+
+    @Test
+    void call_whenActionFailsTransiently_shouldRepeatIt() throws Exception {
+        final RetryPolicy fast = new RetryPolicy(3, 3, Duration.ofMillis(1), Duration.ofMillis(5));
+        final AtomicInteger calls = new AtomicInteger();
+
+        final String result = fast.call("list", () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new SardineException("Locked", 423, "Locked");
+            }
+            return "listed";
+        });
+
+        assertThat(result).isEqualTo("listed");
+        assertThat(calls.get()).isEqualTo(3);
+    }
+
+    @Test
+    void call_whenActionFailsPermanently_shouldThrowRightAway() {
+        final AtomicInteger calls = new AtomicInteger();
+
+        assertThatThrownBy(() -> policy.call("create", () -> {
+            calls.incrementAndGet();
+            throw new SardineException("Forbidden", 403, "Forbidden");
+        })).isInstanceOf(IOException.class);
+        assertThat(calls.get()).isEqualTo(1);
+    }
+}
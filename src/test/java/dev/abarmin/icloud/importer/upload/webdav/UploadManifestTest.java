@@ -0,0 +1,125 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UploadManifestTest {
+
+    private static final String DESTINATION = "http://hub.local/remote.php/dav/files/abc/dev/";
+
+    @TempDir
+    Path source;
+
+    @Test
+    void isUploaded_whenReopened_shouldRememberUploadedFiles() throws Exception {
+        final Path file = source.resolve("2023/01/IMG_0001.JPG");
+        try (UploadManifest manifest = UploadManifest.open(source, DESTINATION)) {
+            manifest.uploaded(file, 100, 1000, "\"abc\"", "SHA1:0a");
+            manifest.folderExists(source.resolve("2023"));
+            manifest.verified(Instant.ofEpochMilli(5000));
+        }
+
+        try (UploadManifest manifest = UploadManifest.open(source, DESTINATION)) {
+            assertThat(manifest.isUploaded(file, 100, 1000)).isTrue();
+            assertThat(manifest.hasFolder(source.resolve("2023"))).isTrue();
+            assertThat(manifest.hasFolder(source.resolve("2023/01"))).isFalse();
+            assertThat(manifest.getVerifiedAt()).isEqualTo(Instant.ofEpochMilli(5000));
+            assertThat(manifest.getChecksum(file, 100, 1000)).isEqualTo("SHA1:0a");
+            assertThat(manifest.getChecksum(file, 100, 1001)).isNull();
+        }
+    }
+
+    @Test
+    void uploaded_whenChecksumUnknown_shouldKeepRecordedChecksum() throws Exception {
+        final Path file = source.resolve("IMG_0001.JPG");
+        try (UploadManifest manifest = UploadManifest.open(source, DESTINATION)) {
+            manifest.uploaded(file, 100, 1000, null, "SHA1:0a");
+            manifest.uploaded(file, 100, 1000, "\"abc\"", null);
+        }
+
+        try (UploadManifest manifest = UploadManifest.open(source, DESTINATION)) {
+            assertThat(manifest.getChecksum(file, 100, 1000)).isEqualTo("SHA1:0a");
+        }
+    }
+
+    @Test
+    void open_whenRecordsHaveNoChecksums_shouldReadThem() throws Exception {
+        final Path file = source.resolve("2023/IMG_0001.JPG");
+        final Path directory = Files.createDirectories(source.resolve(".icloud-importer"));
+        Files.writeString(directory.resolve("upload-manifest-" + UploadManifest.destinationKey(DESTINATION) + ".tsv"),
+                "F\t100\t1000\t-\t2023/IMG_0001.JPG\n", StandardCharsets.UTF_8);
+
+        try (UploadManifest manifest = UploadManifest.open(source, DESTINATION)) {
+            assertThat(manifest.isUploaded(file, 100, 1000)).isTrue();
+            assertThat(manifest.getChecksum(file, 100, 1000)).isNull();
+        }
+    }
+
+    @Test
+    void isUploaded_whenFileChanged_shouldReturnFalse() throws Exception {
+        final Path file = source.resolve("IMG_0001.JPG");
+        try (UploadManifest manifest = UploadManifest.open(source, DESTINATION)) {
+            manifest.uploaded(file, 100, 1000, null, null);
+
+            assertThat(manifest.isUploaded(file, 101, 1000)).isFalse();
+            assertThat(manifest.isUploaded(file, 100, 1001)).isFalse();
+            assertThat(manifest.isUploaded(source.resolve("IMG_0002.JPG"), 100, 1000)).isFalse();
+        }
+    }
+
+    @Test
+    void open_whenOtherDestination_shouldStartEmpty() throws Exception {
+        final Path file = source.resolve("IMG_0001.JPG");
+        try (UploadManifest manifest = UploadManifest.open(source, DESTINATION)) {
+            manifest.uploaded(file, 100, 1000, null, null);
+        }
+
+        try (UploadManifest manifest = UploadManifest.open(source, "http://other.local/dav/")) {
+            assertThat(manifest.size()).isZero();
+            assertThat(manifest.getVerifiedAt()).isEqualTo(Instant.EPOCH);
+        }
+    }
+
+    @Test
+    void open_whenLastRecordIsTorn_shouldKeepEarlierRecords() throws Exception {
+        final Path file = source.resolve("IMG_0001.JPG");
+        try (UploadManifest manifest = UploadManifest.open(source, DESTINATION)) {
+            manifest.uploaded(file, 100, 1000, null, null);
+        }
+        try (var files = Files.list(source.resolve(".icloud-importer"))) {
+            final Path manifestFile = files.findFirst().orElseThrow();
+            Files.writeString(manifestFile, "F\t12", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        }
+
+        try (UploadManifest manifest = UploadManifest.open(source, DESTINATION)) {
+            assertThat(manifest.isUploaded(file, 100, 1000)).isTrue();
+        }
+    }
+
+    @Test
+    void close_whenManyStaleRecords_shouldCompact() throws Exception {
+        final Path file = source.resolve("IMG_0001.JPG");
+        try (UploadManifest manifest = UploadManifest.open(source, DESTINATION)) {
+            for (int i = 0; i < 2000; i++) {
+                manifest.uploaded(file, 100, i, null, null);
+            }
+        }
+
+        final Path manifestFile;
+        try (var files = Files.list(source.resolve(".icloud-importer"))) {
+            manifestFile = files.findFirst().orElseThrow();
+        }
+        assertThat(Files.readAllLines(manifestFile)).hasSize(2);
+        try (UploadManifest manifest = UploadManifest.open(source, DESTINATION)) {
+            assertThat(manifest.isUploaded(file, 100, 1999)).isTrue();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UploadPlanTest {
+
+    private static final String DESTINATION = "http://hub.local/remote.php/dav/files/abc/dev/";
+
+    @TempDir
+    Path source;
+
+    @Test
+    void read_whenWrittenByDryRun_shouldKeepOrder() throws Exception {
+        final UploadPlan plan = UploadPlan.open(source, DESTINATION);
+        plan.folder(source.resolve("2023"), DESTINATION + "2023/");
+        plan.file(source.resolve("2023/IMG 0001.JPG"), DESTINATION + "2023/IMG+0001.JPG", 1024);
+        plan.write();
+
+        final List<UploadPlan.Entry> entries = UploadPlan.read(plan.getFile());
+
+        assertThat(entries).hasSize(2);
+        assertThat(entries.get(0).getKind()).isEqualTo(DeadLetters.Kind.FOLDER);
+        assertThat(entries.get(0).getUrl()).isEqualTo(DESTINATION + "2023/");
+        assertThat(entries.get(1).getKind()).isEqualTo(DeadLetters.Kind.FILE);
+        assertThat(entries.get(1).getPath()).isEqualTo(source.resolve("2023/IMG 0001.JPG"));
+        assertThat(entries.get(1).getSize()).isEqualTo(1024);
+    }
+
+    @Test
+    void bytesPerFolder_whenFilesArePlanned_shouldSumThemPerFolder() throws Exception {
+        final UploadPlan plan = UploadPlan.open(source, DESTINATION);
+        plan.folder(source.resolve("2023"), DESTINATION + "2023/");
+        plan.file(source.resolve("2023/IMG_0001.JPG"), DESTINATION + "2023/IMG_0001.JPG", 1000);
+        plan.file(source.resolve("2023/IMG_0002.JPG"), DESTINATION + "2023/IMG_0002.JPG", 500);
+        plan.file(source.resolve("2024/IMG_0003.JPG"), DESTINATION + "2024/IMG_0003.JPG", 200);
+
+        assertThat(plan.isNewFolder(DESTINATION + "2023/")).isTrue();
+        assertThat(plan.isNewFolder(DESTINATION + "2024/")).isFalse();
+        assertThat(plan.bytesPerFolder().get(source.resolve("2023"))).isEqualTo(1500L);
+        assertThat(plan.bytesPerFolder().get(source.resolve("2024"))).isEqualTo(200L);
+    }
+}
@@ -0,0 +1,251 @@
+package dev.abarmin.icloud.importer.upload.webdav;
+
+import com.github.sardine.Sardine;
+import com.github.sardine.impl.SardineException;
+import dev.abarmin.icloud.importer.metrics.ImportMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class UploadStageTest {
+
+    @TempDir
+    Path directory;
+
+    Sardine sardine = mock(Sardine.class);
+
+    @Test
+    void close_whenFilesSubmitted_shouldUploadAllOfThem() throws Exception {
+        final UploadStage uploads = new UploadStage(sardine, 3, 4);
+        for (int i = 0; i < 20; i++) {
+            uploads.submit(file("IMG_%04d.JPG".formatted(i)), "http://dav/IMG_%04d.JPG".formatted(i));
+        }
+        uploads.close();
+
+        verify(sardine, times(20)).put(anyString(), any(InputStream.class));
+        assertThat(uploads.getUploaded()).isEqualTo(20);
+    }
+
+    @Test
+    void submit_whenQueueIsFull_shouldWaitForWorkers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await();
+            return null;
+        }).when(sardine).put(anyString(), any(InputStream.class));
+        final UploadStage uploads = new UploadStage(sardine, 1, 2);
+        // one file is being uploaded, two are waiting in the queue
+        uploads.submit(file("IMG_0001.JPG"), "http://dav/IMG_0001.JPG");
+        uploads.submit(file("IMG_0002.JPG"), "http://dav/IMG_0002.JPG");
+        uploads.submit(file("IMG_0003.JPG"), "http://dav/IMG_0003.JPG");
+
+        final Path fourth = file("IMG_0004.JPG");
+        final CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> {
+            try {
+                uploads.submit(fourth, "http://dav/IMG_0004.JPG");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(200);
+        assertThat(blocked.isDone()).isFalse();
+
+        release.countDown();
+        blocked.get(5, TimeUnit.SECONDS);
+        uploads.close();
+        assertThat(uploads.getUploaded()).isEqualTo(4);
+    }
+
+    @Test
+    void close_whenUploadFails_shouldCountItAndContinue() throws Exception {
+        doThrow(new IOException("Connection reset")).when(sardine).put(eq("http://dav/IMG_0001.JPG"), any(InputStream.class));
+        final UploadStage uploads = new UploadStage(sardine, 2, 4);
+        uploads.submit(file("IMG_0001.JPG"), "http://dav/IMG_0001.JPG");
+        uploads.submit(file("IMG_0002.JPG"), "http://dav/IMG_0002.JPG");
+        uploads.close();
+
+        assertThat(uploads.getUploaded()).isEqualTo(1);
+        assertThat(uploads.getFailed()).isEqualTo(1);
+    }
+
+    @Test
+    void close_whenUploadFailsTransiently_shouldRetryIt() throws Exception {
+        doThrow(new SardineException("Unavailable", 503, "Service Unavailable"))
+                .doNothing()
+                .when(sardine).put(eq("http://dav/IMG_0001.JPG"), any(InputStream.class));
+        final UploadStage uploads = new UploadStage(sardine, new UploadOptions()
+                .setLimit(new ConcurrencyLimit(1, 1, 2))
+                .setCapacity(4)
+                .setRetryPolicy(new RetryPolicy(3, 3, Duration.ofMillis(1), Duration.ofMillis(10))));
+        uploads.submit(file("IMG_0001.JPG"), "http://dav/IMG_0001.JPG");
+        uploads.close();
+
+        verify(sardine, times(2)).put(eq("http://dav/IMG_0001.JPG"), any(InputStream.class));
+        assertThat(uploads.getUploaded()).isEqualTo(1);
+        assertThat(uploads.getRetried()).isEqualTo(1);
+        assertThat(uploads.getFailed()).isZero();
+    }
+
+    @Test
+    void close_whenRetriesUsedUp_shouldReportFailure() throws Exception {
+        doThrow(new SardineException("Locked", 423, "Locked")).when(sardine).put(anyString(), any(InputStream.class));
+        final List<Path> failed = new CopyOnWriteArrayList<>();
+        final UploadStage uploads = new UploadStage(sardine, new UploadOptions()
+                .setLimit(new ConcurrencyLimit(1, 1, 2))
+                .setCapacity(4)
+                .setRetryPolicy(new RetryPolicy(3, 3, Duration.ofMillis(1), Duration.ofMillis(10)))
+                .setListener(new UploadStage.Listener() {
+                    @Override
+                    public void uploaded(Path file, long size, long modified, String checksum) {
+                    }
+
+                    @Override
+                    public void failed(Path file, String url, Exception error) {
+                        failed.add(file);
+                    }
+                }));
+        final Path file = file("IMG_0001.JPG");
+        uploads.submit(file, "http://dav/IMG_0001.JPG");
+        uploads.close();
+
+        verify(sardine, times(3)).put(anyString(), any(InputStream.class));
+        assertThat(uploads.getFailed()).isEqualTo(1);
+        assertThat(failed).containsExactly(file);
+    }
+
+    @Test
+    void close_whenListenerFails_shouldCountUploadOnce() throws Exception {
+        final UploadStage uploads = new UploadStage(sardine, new UploadOptions()
+                .setLimit(new ConcurrencyLimit(1, 1, 2))
+                .setCapacity(4)
+                .setRetryPolicy(new RetryPolicy(3, 3, Duration.ofMillis(1), Duration.ofMillis(10)))
+                .setListener((file, size, modified, checksum) -> {
+                    throw new IllegalStateException("Manifest is closed");
+                }));
+        uploads.submit(file("IMG_0001.JPG"), "http://dav/IMG_0001.JPG");
+        uploads.submit(file("IMG_0002.JPG"), "http://dav/IMG_0002.JPG");
+        uploads.close();
+
+        verify(sardine, times(2)).put(anyString(), any(InputStream.class));
+        assertThat(uploads.getUploaded()).isEqualTo(2);
+        assertThat(uploads.getRetried()).isZero();
+        assertThat(uploads.getFailed()).isZero();
+    }
+
+    @Test
+    void close_whenProbeFailsPermanently_shouldLetOtherUploadsThrough() throws Exception {
+        doThrow(new SardineException("Forbidden", 403, "Forbidden"))
+                .when(sardine).put(eq("http://dav/IMG_0001.JPG"), any(InputStream.class));
+        final CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofMillis(1));
+        breaker.failed();
+        final UploadStage uploads = new UploadStage(sardine, new UploadOptions()
+                .setLimit(new ConcurrencyLimit(1, 1, 1))
+                .setCapacity(4)
+                .setCircuitBreaker(breaker));
+        uploads.submit(file("IMG_0001.JPG"), "http://dav/IMG_0001.JPG");
+        uploads.submit(file("IMG_0002.JPG"), "http://dav/IMG_0002.JPG");
+
+        final CompletableFuture<Void> closed = CompletableFuture.runAsync(() -> {
+            try {
+                uploads.close();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        closed.get(5, TimeUnit.SECONDS);
+        assertThat(uploads.getFailed()).isEqualTo(1);
+        assertThat(uploads.getUploaded()).isEqualTo(1);
+    }
+
+    @Test
+    void close_whenFailureListenerFails_shouldFinish() throws Exception {
+        doThrow(new SardineException("Forbidden", 403, "Forbidden")).when(sardine).put(anyString(), any(InputStream.class));
+        final UploadStage uploads = new UploadStage(sardine, new UploadOptions()
+                .setLimit(new ConcurrencyLimit(1, 1, 1))
+                .setCapacity(4)
+                .setListener(new UploadStage.Listener() {
+                    @Override
+                    public void uploaded(Path file, long size, long modified, String checksum) {
+                    }
+
+                    @Override
+                    public void failed(Path file, String url, Exception error) {
+                        throw new IllegalStateException("Report can't be written");
+                    }
+                }));
+        uploads.submit(file("IMG_0001.JPG"), "http://dav/IMG_0001.JPG");
+
+        final CompletableFuture<Void> closed = CompletableFuture.runAsync(() -> {
+            try {
+                uploads.close();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        closed.get(5, TimeUnit.SECONDS);
+        assertThat(uploads.getFailed()).isEqualTo(1);
+    }
+
+    @Test
+    void close_whenBookkeepingFails_shouldKeepWorkerRunning() throws Exception {
+        final UploadStage uploads = new UploadStage(sardine, new UploadOptions()
+                .setLimit(new ConcurrencyLimit(1, 1, 1))
+                .setCapacity(4)
+                .setMetrics(new ImportMetrics() {
+                    @Override
+                    public void count(String files, String outcome) {
+                        if ("uploaded".equals(outcome)) {
+                            throw new IllegalStateException("Meter registry is closed");
+                        }
+                        super.count(files, outcome);
+                    }
+                }));
+        uploads.submit(file("IMG_0001.JPG"), "http://dav/IMG_0001.JPG");
+        uploads.submit(file("IMG_0002.JPG"), "http://dav/IMG_0002.JPG");
+
+        final CompletableFuture<Void> closed = CompletableFuture.runAsync(() -> {
+            try {
+                uploads.close();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        closed.get(5, TimeUnit.SECONDS);
+        verify(sardine, times(2)).put(anyString(), any(InputStream.class));
+        assertThat(uploads.getFailed()).isEqualTo(2);
+    }
+
+    @Test
+    void isOverload_whenFailureIsNotAboutLoad_shouldReturnFalse() {
+        assertThat(UploadStage.isOverload(new SardineException("Unavailable", 503, "Service Unavailable"))).isTrue();
+        assertThat(UploadStage.isOverload(new SocketTimeoutException())).isTrue();
+        assertThat(UploadStage.isOverload(new SardineException("Forbidden", 403, "Forbidden"))).isFalse();
+        assertThat(UploadStage.isOverload(new FileNotFoundException())).isFalse();
+    }
+
+    private Path file(String name) throws IOException {
+        return Files.writeString(directory.resolve(name), name);
+    }
+}